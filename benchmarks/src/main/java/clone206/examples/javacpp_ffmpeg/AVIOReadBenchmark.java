@@ -0,0 +1,84 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.*;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+
+/**
+ * Demuxing through a custom AVIOContext: every read of libavformat goes
+ * through the AVIOInput read callback into a ByteBufferSource, as in
+ * AVIOReading. One operation opens the in-memory clip, reads all its
+ * packets and closes it again; the score is clips demuxed per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AVIOReadBenchmark {
+    @Param({ "4096", "32768" })
+    int buffer_size;
+
+    @Param({ "mp4", "nut" })
+    String container;
+
+    ByteBuffer media;
+    AVPacket   packet;
+
+    @Setup
+    public void setup () throws IOException {
+        av_register_all();
+        avfilter_register_all();
+
+        media  = new MediaGenerator().duration(4).generate("bench." + container);
+        packet = new AVPacket();
+    }
+
+    @TearDown
+    public void tearDown () {
+        packet.close();
+    }
+
+    @Benchmark
+    public long demux () throws IOException {
+        AVFormatContext fmt_ctx = avformat_alloc_context();
+        AVIOInput       input   = new AVIOInput(new ByteBufferSource(media.duplicate()), buffer_size);
+        long            bytes   = 0;
+
+        try {
+            Transcoding.check( input.openInput(fmt_ctx, "bench." + container) );
+            while (av_read_frame(fmt_ctx, packet) >= 0) {
+                bytes += packet.size();
+                av_packet_unref(packet);
+            }
+        }
+        finally {
+            avformat_close_input(fmt_ctx);
+            input.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.*;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * The encode side of TranscodeAAC: queue one encoder frame of samples in the
+ * FIFO, then load_encode_and_write() reads them into a fresh output frame,
+ * encodes it and writes the packet (as ADTS, into a NullSink). One operation
+ * is one 1024 sample stereo frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AacEncodeBenchmark {
+    TranscodeAAC      aac;
+    PointerPointer<?> samples;
+    FloatPointer[]    planes = new FloatPointer[TranscodeAAC.OUTPUT_CHANNELS];
+    int               frame_size;
+
+    @Setup
+    public void setup () throws IOException {
+        av_register_all();
+        avfilter_register_all();
+
+        ByteBuffer input = new MediaGenerator().video("mpeg4", 0).duration(1).generate("bench.m4a");
+
+        aac = new TranscodeAAC("bench.m4a", "bench.aac");
+        aac.input_format_context = aac.openInput(new ByteBufferSource(input), "bench.m4a");
+        aac.openOutput("bench.aac", aac.output_format_context, new NullSink());
+        aac.init_fifo();
+        Transcoding.check( avformat_write_header(aac.output_format_context, (AVDictionary) null) );
+
+        /* A sine per channel, in the encoder's fltp layout */
+        frame_size = aac.output_codec_context.frame_size();
+        samples    = new PointerPointer<>((long) planes.length);
+        for (int c = 0; c < planes.length; c++) {
+            planes[c] = new FloatPointer((long) frame_size);
+            for (int s = 0; s < frame_size; s++) {
+                planes[c].put(s, (float) (0.5 * Math.sin(2 * Math.PI * 440 * (c + 1) * s / MediaGenerator.DEFAULT_SAMPLE_RATE)));
+            }
+            samples.put(c, planes[c]);
+        }
+    }
+
+    @TearDown
+    public void tearDown () throws IOException {
+        aac.close();
+        samples.close();
+        for (FloatPointer plane : planes) {
+            plane.close();
+        }
+    }
+
+    @Benchmark
+    public int encodeAndWrite () {
+        av_audio_fifo_write(aac.fifo, samples, frame_size);
+        aac.load_encode_and_write(aac.output_format_context, aac.output_packet, aac.data_written);
+        return aac.data_written.get();
+    }
+}
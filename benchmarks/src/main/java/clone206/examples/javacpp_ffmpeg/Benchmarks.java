@@ -0,0 +1,44 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: the JMH command line, with the GC profiler
+ * on unless another profiler is asked for, so every run reports the
+ * allocation rate (gc.alloc.rate.norm, bytes per operation) next to the
+ * operations per second.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar [jmh options] [benchmark regexp]
+ */
+public final class Benchmarks {
+    private Benchmarks () {
+    }
+
+    public static void main (String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        if (!options.contains("-prof") && !options.contains("-lprof") && !options.contains("-h")) {
+            options.add(0, "gc");
+            options.add(0, "-prof");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,135 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.*;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.presets.avutil.AVERROR_EAGAIN;
+
+/**
+ * Decoding on its own: the packets of a one stream clip are demuxed into
+ * memory at setup, and one operation sends all of them through the decoder,
+ * drains it and resets it for the next round, with the thread count set the
+ * way Transcoding sets it. The score is clips decoded per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    /* The encoder of the generated clip; aac makes an audio only clip */
+    @Param({ "mpeg4", "libx264", "aac" })
+    String codec;
+
+    /* A CodecThreading spec */
+    @Param({ "1", "auto" })
+    String threads;
+
+    final List<AVPacket> packets = new ArrayList<>();
+    AVCodecContext       dec_ctx;
+    AVFrame              frame;
+
+    @Setup
+    public void setup () throws IOException {
+        av_register_all();
+        avfilter_register_all();
+
+        boolean         audio   = codec.equals("aac");
+        ByteBuffer      media   = new MediaGenerator().duration(4)
+                                                      .video(audio ? "mpeg4" : codec, audio ? 0 : 1)
+                                                      .audio(codec, audio ? 1 : 0, 2, MediaGenerator.DEFAULT_SAMPLE_RATE)
+                                                      .generate("bench.nut");
+        AVFormatContext fmt_ctx = avformat_alloc_context();
+        AVIOInput       input   = new AVIOInput(new ByteBufferSource(media));
+
+        try {
+            Transcoding.check( input.openInput(fmt_ctx, "bench.nut") );
+            Transcoding.check( avformat_find_stream_info(fmt_ctx, (PointerPointer) null) );
+
+            AVCodecParameters par     = fmt_ctx.streams(0).codecpar();
+            AVCodec           decoder = avcodec_find_decoder(par.codec_id());
+
+            dec_ctx = avcodec_alloc_context3(decoder);
+            Transcoding.check( avcodec_parameters_to_context(dec_ctx, par) );
+            dec_ctx.pkt_timebase(fmt_ctx.streams(0).time_base());
+            new CodecThreading(threads, "both", 1).apply(dec_ctx, 0);
+            Transcoding.check( avcodec_open2(dec_ctx, decoder, (AVDictionary) null) );
+
+            for (AVPacket packet = av_packet_alloc(); av_read_frame(fmt_ctx, packet) >= 0; packet = av_packet_alloc()) {
+                packets.add(packet);
+            }
+        }
+        finally {
+            avformat_close_input(fmt_ctx);
+            input.close();
+        }
+        frame = av_frame_alloc();
+    }
+
+    @TearDown
+    public void tearDown () {
+        for (AVPacket packet : packets) {
+            av_packet_free(packet);
+        }
+        packets.clear();
+        av_frame_free(frame);
+        avcodec_free_context(dec_ctx);
+    }
+
+    @Benchmark
+    public long decode () {
+        long frames = 0;
+
+        for (AVPacket packet : packets) {
+            Transcoding.check( avcodec_send_packet(dec_ctx, packet) );
+            frames += receive();
+        }
+        Transcoding.check( avcodec_send_packet(dec_ctx, null) );
+        frames += receive();
+
+        /* out of the draining state, ready for the first packet again */
+        avcodec_flush_buffers(dec_ctx);
+        return frames;
+    }
+
+    private long receive () {
+        long frames = 0;
+
+        while (true) {
+            int ret = avcodec_receive_frame(dec_ctx, frame);
+
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
+                return frames;
+            }
+            Transcoding.check(ret);
+            av_frame_unref(frame);
+            frames++;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.*;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * The per-frame path of Transcoding after the decoder: push a frame into the
+ * stream's filter graph, pull what comes out, encode it and hand the packets
+ * to the mux thread (writing into a NullSink). One operation is one decoded
+ * frame of the generated clip, sent again with the next timestamp.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterEncodeBenchmark {
+    @Param({ "video", "audio" })
+    String stream;
+
+    Transcoding transcoding;
+    int         index;
+    AVFrame     source,
+                work;
+    long        pts,
+                step;
+
+    @Setup
+    public void setup () throws IOException {
+        av_register_all();
+        avfilter_register_all();
+
+        ByteBuffer media = new MediaGenerator().duration(4).generate("bench.mp4");
+
+        /* MediaGenerator adds the video stream first; transcode only the one measured */
+        index       = stream.equals("video") ? 0 : 1;
+        transcoding = new Transcoding();
+        transcoding.reencode         = true;
+        transcoding.includeStream    = i -> i == index;
+        transcoding.decoderThreading = new CodecThreading("1", "both", 1);
+        transcoding.openInput(new ByteBufferSource(media), "bench.mp4");
+        transcoding.openOutput("bench.nut", new NullSink());
+        transcoding.initFilters();
+        transcoding.muxer = new PacketMuxer(transcoding.outputFormatContext, 1, 64, Transcoding.packetPool);
+        transcoding.muxer.start();
+
+        source = av_frame_alloc();
+        work   = av_frame_alloc();
+        step   = decodeFirstFrames();
+        pts    = source.pts();
+    }
+
+    /* Decode the stream's first frame into source, returns the timestamp step to the next one */
+    private long decodeFirstFrames () {
+        Transcoding.StreamContext context = transcoding.streamContexts[index];
+        AVFrame                   next    = av_frame_alloc();
+        int[]                     got     = new int[1];
+        int                       frames  = 0;
+
+        try (AVPacket packet = new AVPacket()) {
+            while (frames < 2 && av_read_frame(transcoding.inputFormatContext, packet) >= 0) {
+                if (packet.stream_index() == index) {
+                    av_packet_rescale_ts(packet, context.inputTimeBase, context.decoderTimeBase);
+                    Transcoding.check( context.type == AVMEDIA_TYPE_VIDEO
+                            ? avcodec_decode_video2(context.decoderContext, frames == 0 ? source : next, got, packet)
+                            : avcodec_decode_audio4(context.decoderContext, frames == 0 ? source : next, got, packet) );
+                    frames += got[0];
+                }
+                av_packet_unref(packet);
+            }
+            if (frames < 2) {
+                throw new IllegalStateException("The generated clip has less than two " + stream + " frames");
+            }
+            source.pts(source.best_effort_timestamp());
+            return Math.max(1, next.best_effort_timestamp() - source.pts());
+        }
+        finally {
+            av_frame_free(next);
+        }
+    }
+
+    @TearDown
+    public void tearDown () throws IOException, InterruptedException {
+        transcoding.muxer.finish();
+        transcoding.muxer.join();
+        transcoding.close();
+        av_frame_free(source);
+        av_frame_free(work);
+    }
+
+    @Benchmark
+    public void filterEncodeWrite () {
+        /* The buffer source takes over the references, the source frame keeps its own */
+        Transcoding.check( av_frame_ref(work, source) );
+        work.pts(pts += step);
+        transcoding.filterEncodeWriteFrame(work, index);
+        av_frame_unref(work);
+    }
+}
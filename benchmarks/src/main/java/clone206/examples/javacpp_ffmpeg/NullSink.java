@@ -0,0 +1,54 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Muxer output that consumes everything and keeps only the size, so the
+ * benchmarks measure the code producing the bytes rather than a disk.
+ */
+final class NullSink implements AVIOSink {
+    private long position,
+                 size;
+
+    @Override
+    public void write (ByteBuffer src) {
+        position += src.remaining();
+        size      = Math.max(size, position);
+        src.position(src.limit());
+    }
+
+    @Override
+    public long position () {
+        return position;
+    }
+
+    @Override
+    public void position (long new_position) {
+        position = new_position;
+    }
+
+    @Override
+    public long size () {
+        return size;
+    }
+
+    @Override
+    public void close () {
+    }
+}
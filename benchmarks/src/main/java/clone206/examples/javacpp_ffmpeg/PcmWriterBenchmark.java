@@ -0,0 +1,102 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Raw PCM output of decoded or filtered frames, the print_frame step of
+ * FilteringAudio: one operation writes one 1024 sample frame. Planar formats
+ * take the interleaving path, packed ones the single bulk copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PcmWriterBenchmark {
+    @Param({ "s16", "fltp" })
+    String sample_format;
+
+    @Param({ "1", "2", "6" })
+    int channels;
+
+    AVFrame   frame;
+    PcmWriter writer;
+
+    /* Takes everything PcmWriter hands it, without copying */
+    static final class NullChannel implements WritableByteChannel {
+        @Override
+        public int write (ByteBuffer src) {
+            int n = src.remaining();
+
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen () {
+            return true;
+        }
+
+        @Override
+        public void close () {
+        }
+    }
+
+    @Setup
+    public void setup () {
+        frame = av_frame_alloc();
+        frame.format(av_get_sample_fmt(sample_format));
+        frame.channel_layout(av_get_default_channel_layout(channels));
+        frame.channels(channels);
+        frame.sample_rate(MediaGenerator.DEFAULT_SAMPLE_RATE);
+        frame.nb_samples(1024);
+        Transcoding.check( av_frame_get_buffer(frame, 0) );
+
+        /* Deterministic, if not audible, content: byte patterns differ per plane and sample */
+        final int planes = av_sample_fmt_is_planar(frame.format()) != 0 ? channels : 1,
+                  size   = frame.linesize(0);
+
+        for (int p = 0; p < planes; p++) {
+            ByteBuffer plane = frame.extended_data(p).capacity(size).asByteBuffer();
+
+            for (int i = 0; i < size; i++) {
+                plane.put(i, (byte) (i * 31 + p));
+            }
+        }
+        writer = new PcmWriter(new NullChannel());
+    }
+
+    @TearDown
+    public void tearDown () {
+        av_frame_free(frame);
+    }
+
+    @Benchmark
+    public long write () throws IOException {
+        writer.write(frame);
+        return writer.bytesWritten();
+    }
+}
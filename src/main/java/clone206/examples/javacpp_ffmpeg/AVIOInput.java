@@ -0,0 +1,223 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Connects an {@link AVIOSource} to libavformat through a custom AVIOContext,
+ * so that any of the tools can demux from it instead of from a filename.
+ *
+ * The read and seek callbacks are shared by all inputs (JavaCPP can only
+ * allocate a handful of native callbacks per class), and find their input
+ * through the opaque pointer, the same way the C example passes its
+ * buffer_data struct.
+ *
+ * Usage:
+ *   fmt_ctx = avformat_alloc_context();
+ *   input   = new AVIOInput(source);
+ *   check( input.openInput(fmt_ctx, name) );
+ *   ...
+ *   avformat_close_input(fmt_ctx);
+ *   input.close();
+ */
+public class AVIOInput implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    /* Open inputs, by the address of their opaque pointer */
+    private static final Map<Long, AVIOInput> inputs = new ConcurrentHashMap<>();
+    private static final StageMetrics.Stage   OPEN   = StageMetrics.stage("open");
+
+    private static final Read_packet_Pointer_BytePointer_int read_callback = new Read_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int buf_size) {
+            AVIOInput input = inputs.get(opaque.address());
+            return input == null ? AVERROR_EINVAL() : input.read(buf, buf_size);
+        }
+    };
+
+    /*
+     * Also serves AVIOOutput: JavaCPP routes every native call of a callback type
+     * to the most recently allocated instance, so a second Seek_Pointer_long_int
+     * would steal the seeks of whichever class loaded first.
+     */
+    static final Seek_Pointer_long_int seek_callback = new Seek_Pointer_long_int() {
+        @Override
+        public long call(Pointer opaque, long offset, int whence) {
+            AVIOInput input = inputs.get(opaque.address());
+            return input == null ? AVIOOutput.seek(opaque, offset, whence) : input.seek(offset, whence);
+        }
+    };
+
+    private final AVIOSource source;
+    private final Pointer opaque;           // Unique address identifying this input to the callbacks
+    private final AVIOContext context;
+    private boolean verbose;                // Print a trace line per block read
+    private ByteBuffer view;                // Cached NIO view of the last AVIO buffer seen
+    private long view_address;              // Native address the cached view points to
+    private boolean closed;
+
+    public AVIOInput (AVIOSource source) {
+        this(source, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AVIOInput (AVIOSource source, int buffer_size) {
+        BytePointer buffer = new BytePointer( av_malloc(buffer_size) );
+
+        if (buffer.isNull()) {
+            throw new RuntimeException("Could not allocate AVIO buffer");
+        }
+
+        this.source = source;
+        this.opaque = new BytePointer(1);
+        inputs.put(opaque.address(), this);
+
+        // Only hand out the seek callback when the source can actually seek
+        context = avio_alloc_context(buffer, buffer_size, 0, opaque, read_callback, null,
+                source.seekable() ? seek_callback : null);
+
+        if (context == null || context.isNull()) {
+            inputs.remove(opaque.address());
+            av_free(buffer);
+            throw new RuntimeException("Could not allocate AVIO context");
+        }
+        if (!source.seekable()) {
+            context.seekable(0);
+        }
+    }
+
+    /** Prints the position and remaining size for every block read. */
+    public AVIOInput verbose (boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+
+    public AVIOContext context () {
+        return context;
+    }
+
+    public AVIOSource source () {
+        return source;
+    }
+
+    /**
+     * Opens fmt_ctx (allocated with avformat_alloc_context) on this input.
+     * name is only used for format guessing and messages.
+     * On failure libavformat frees fmt_ctx, but this input still has to be closed.
+     */
+    public int openInput (AVFormatContext fmt_ctx, String name) {
+        long start = StageMetrics.start();
+        int  ret;
+
+        fmt_ctx.pb(context);
+        ret = avformat_open_input(fmt_ctx, name == null ? "" : name, null, null);
+        OPEN.record(start);
+        return ret;
+    }
+
+    /* Returns a ByteBuffer over the native buffer, only recreated when the address changes or the buffer grows */
+    private ByteBuffer wrap (BytePointer buf, int buf_size) {
+        if (view == null || buf.address() != view_address || view.capacity() < buf_size) {
+            view = buf.capacity(buf_size).asByteBuffer();
+            view_address = buf.address();
+        }
+        view.clear();
+        view.limit(buf_size);
+        return view;
+    }
+
+    private int read (BytePointer buf, int buf_size) {
+        try {
+            long pos = source.position();
+            int len  = source.read( wrap(buf, buf_size) );
+
+            if (len <= 0) {
+                return AVERROR_EOF;
+            }
+            if (verbose) {
+                // Print the position of the source (in hex) and the size of the remaining source (in decimal)
+                long size = source.size();
+                System.out.println( String.format("ptr:0x%09x size:%d", pos, size < 0 ? -1 : size - pos) );
+            }
+            return len;
+        } catch (IOException e) {
+            return AVERROR_EIO();
+        }
+    }
+
+    /* Implements the fseek()-like semantics libavformat expects, plus AVSEEK_SIZE */
+    private long seek (long offset, int whence) {
+        try {
+            long size = source.size(),
+                 new_pos;
+
+            // Just report the size, don't move
+            if ((whence & AVSEEK_SIZE) != 0) {
+                return size < 0 ? AVERROR_ENOSYS() : size;
+            }
+
+            switch (whence & ~AVSEEK_FORCE) {
+                case 0: /* SEEK_SET */
+                    new_pos = offset;
+                    break;
+                case 1: /* SEEK_CUR */
+                    new_pos = source.position() + offset;
+                    break;
+                case 2: /* SEEK_END */
+                    if (size < 0) {
+                        return AVERROR_ENOSYS();
+                    }
+                    new_pos = size + offset;
+                    break;
+                default:
+                    return AVERROR_EINVAL();
+            }
+
+            if (new_pos < 0) {
+                return AVERROR_EINVAL();
+            }
+
+            source.position(new_pos);
+            return new_pos;
+        } catch (IOException e) {
+            return AVERROR_EIO();
+        }
+    }
+
+    /** Frees the AVIO context and closes the source. Call after avformat_close_input(). */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inputs.remove(opaque.address());
+
+        // libavformat may have replaced the buffer we allocated
+        av_free(context.buffer());
+        avio_context_free(context);
+        source.close();
+    }
+}
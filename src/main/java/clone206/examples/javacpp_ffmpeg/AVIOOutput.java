@@ -0,0 +1,242 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Connects an {@link AVIOSink} to libavformat through a custom AVIOContext
+ * with write and seek callbacks, the output counterpart of {@link AVIOInput}.
+ *
+ * Usage:
+ *   check( avformat_alloc_output_context2(ofmt_ctx, null, null, filename) );
+ *   output = new AVIOOutput(sink);
+ *   output.openOutput(ofmt_ctx);
+ *   ... avformat_write_header / av_interleaved_write_frame / av_write_trailer ...
+ *   output.close();
+ *   avformat_free_context(ofmt_ctx);
+ */
+public class AVIOOutput implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /* Open outputs, by the address of their opaque pointer */
+    private static final Map<Long, AVIOOutput> outputs = new ConcurrentHashMap<>();
+
+    private static final Write_packet_Pointer_BytePointer_int write_callback = new Write_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int buf_size) {
+            AVIOOutput output = outputs.get(opaque.address());
+            return output == null ? AVERROR_EINVAL() : output.write(buf, buf_size);
+        }
+    };
+
+    /* Seeks arrive through AVIOInput.seek_callback, which hands over the opaque pointers it doesn't own */
+    static long seek (Pointer opaque, long offset, int whence) {
+        AVIOOutput output = outputs.get(opaque.address());
+        return output == null ? AVERROR_EINVAL() : output.seek(offset, whence);
+    }
+
+    private final AVIOSink sink;
+    private final Pointer opaque;           // Unique address identifying this output to the callbacks
+    private final AVIOContext context;
+    private ByteBuffer view;                // Cached NIO view of the last AVIO buffer seen
+    private long view_address;              // Native address the cached view points to
+    private IOException error;              // First failure of the sink, rethrown on close
+    private boolean closed;
+
+    public AVIOOutput (AVIOSink sink) {
+        this(sink, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AVIOOutput (AVIOSink sink, int buffer_size) {
+        BytePointer buffer = new BytePointer( av_malloc(buffer_size) );
+
+        if (buffer.isNull()) {
+            throw new RuntimeException("Could not allocate AVIO buffer");
+        }
+
+        this.sink = sink;
+        this.opaque = new BytePointer(1);
+        outputs.put(opaque.address(), this);
+
+        context = avio_alloc_context(buffer, buffer_size, 1, opaque, null, write_callback, AVIOInput.seek_callback);
+
+        if (context == null || context.isNull()) {
+            outputs.remove(opaque.address());
+            av_free(buffer);
+            throw new RuntimeException("Could not allocate AVIO context");
+        }
+    }
+
+    public AVIOContext context () {
+        return context;
+    }
+
+    public AVIOSink sink () {
+        return sink;
+    }
+
+    /**
+     * Gives ofmt_ctx its I/O for name. Output goes to the sink if there is one,
+     * to a BackgroundFileSink for a local file (a plain path or file:), and
+     * through avio_open for every other protocol, e.g. pipe:1 or tcp:.
+     * Returns the AVIOOutput to close afterwards, null when libavformat owns
+     * the I/O (avio_open, or a format that opens its own files).
+     */
+    public static AVIOOutput open (AVFormatContext ofmt_ctx, String name, AVIOSink sink) throws IOException {
+        if ((ofmt_ctx.oformat().flags() & AVFMT_NOFILE) != 0) {
+            return null;
+        }
+        if (sink == null) {
+            String protocol = protocol(name);
+
+            if (!protocol.equals("file")) {
+                AVIOContext pb  = new AVIOContext(null);
+                int         err = avio_open(pb, name, AVIO_FLAG_WRITE);
+
+                if (err < 0) {
+                    try (BytePointer e = new BytePointer(512)) {
+                        av_strerror(err, e, 512);
+                        throw new IOException("Could not open output " + name + ": " + e.getString());
+                    }
+                }
+                ofmt_ctx.pb(pb);
+                return null;
+            }
+            sink = new BackgroundFileSink(Paths.get(name.startsWith("file:") ? name.substring(5) : name));
+        }
+
+        AVIOOutput output = new AVIOOutput(sink);
+
+        output.openOutput(ofmt_ctx);
+        return output;
+    }
+
+    /* The protocol libavformat would open name with, "file" for plain paths */
+    static String protocol (String name) {
+        String protocol = avio_find_protocol_name(name);
+
+        if (protocol == null) {
+            // No registered protocol: a path, unless it looks like a URL avio_open should reject
+            return name.contains("://") ? "" : "file";
+        }
+        return protocol;
+    }
+
+    /** Makes ofmt_ctx (from avformat_alloc_output_context2) write to this output. */
+    public void openOutput (AVFormatContext ofmt_ctx) {
+        ofmt_ctx.pb(context);
+    }
+
+    private int write (BytePointer buf, int buf_size) {
+        if (view == null || buf.address() != view_address || view.capacity() < buf_size) {
+            view = buf.capacity(buf_size).asByteBuffer();
+            view_address = buf.address();
+        }
+        view.clear();
+        view.limit(buf_size);
+
+        try {
+            sink.write(view);
+            return buf_size;
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            return AVERROR_EIO();
+        }
+    }
+
+    /* Implements the fseek()-like semantics libavformat expects, plus AVSEEK_SIZE */
+    private long seek (long offset, int whence) {
+        long new_pos;
+
+        // Just report the size, don't move
+        if ((whence & AVSEEK_SIZE) != 0) {
+            return sink.size();
+        }
+
+        switch (whence & ~AVSEEK_FORCE) {
+            case 0: /* SEEK_SET */
+                new_pos = offset;
+                break;
+            case 1: /* SEEK_CUR */
+                new_pos = sink.position() + offset;
+                break;
+            case 2: /* SEEK_END */
+                new_pos = sink.size() + offset;
+                break;
+            default:
+                return AVERROR_EINVAL();
+        }
+
+        if (new_pos < 0) {
+            return AVERROR_EINVAL();
+        }
+
+        try {
+            sink.position(new_pos);
+            return new_pos;
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            return AVERROR_EIO();
+        }
+    }
+
+    /**
+     * Flushes the AVIO buffer, frees the context and closes the sink.
+     * Call after av_write_trailer() and before avformat_free_context().
+     * Rethrows the first error the sink reported, if any.
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        avio_flush(context);
+        outputs.remove(opaque.address());
+
+        // libavformat may have replaced the buffer we allocated
+        av_free(context.buffer());
+        avio_context_free(context);
+
+        try {
+            sink.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -19,6 +19,8 @@
 package clone206.examples.javacpp_ffmpeg;
 
 import java.io.*;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import org.bytedeco.javacpp.*;
 
 import static org.bytedeco.javacpp.avcodec.*;
@@ -42,72 +44,23 @@ import static org.bytedeco.javacpp.swscale.*;
  * AVIOContext read callback.
  * @example AVIOReading.java
  */
-
-/** 
- * Defines the callback object. Used by the format context 
- * (via the associated I/O context) when reading packet by packet
- */ 
-class ReadInput extends Read_packet_Pointer_BytePointer_int {
-    private FileInputStream istream;    // Stream from user inputted file
-    private long file_size;             // Size of user inputted file
-
-    // Constructor
-    public ReadInput (FileInputStream istream, long file_size) {
-        super();
-        this.istream = istream;
-        this.file_size = file_size;
-    }
-
-    // The callback
-    @Override
-    public int call(Pointer opaque, BytePointer buf, int buf_size) {
-        byte[] b = new byte[buf_size];  // Allocate byte array
-        int len;                        // Length read from file
-        long pos;                       // Position of file stream
-
-        try {
-            // Get the current position
-            pos = istream.getChannel().position();
-            // Read from stream into byte array
-            len = istream.read(b);
-
-            // Check for EOF
-            if (len <= 0) {
-                return AVERROR_EOF;
-            }
-            else {
-                // Print the position of the file stream (in hex) 
-                // and the size of the remaining file stream (in decimal)
-                System.out.println( String.format("ptr:0x%09x size:%d", pos, (file_size - pos)) );
-                // Copy the byte array's contents into the passed-in buffer
-                buf.put(b, 0, len);
-            }
-        } catch (IOException e) {
-            return -1;
-        }
-
-        // If we got this far, return number of bytes read in.
-        return len;
-    }
-}
-
 public class AVIOReading {
     /* Called when we've finished or encountered a fatal error. Releases resources and prints any error msg */
-    private static void cleanup (AVFormatContext fmt_ctx, FileInputStream istream, int ret) {
+    private static void cleanup (AVFormatContext fmt_ctx, Closeable input, int ret) {
         int errbuf_size = 1024;                     // Max length for error msgs
         byte[] errbuf    = new byte[errbuf_size];   // Holds the error msgs
         
-        // Close file input stream
+        // Close format context
+        avformat_close_input(fmt_ctx);
+
+        // Close the I/O context and its source
         try {
-            istream.close();
+            input.close();
         }
         catch (IOException e) {
             System.exit(-1);
         }
 
-        // Close format context
-        avformat_close_input(fmt_ctx);
-
         // Print any errors
         if (ret < 0) {
             av_strerror(ret, errbuf, errbuf_size);
@@ -116,57 +69,126 @@ public class AVIOReading {
         }
     }
 
+    /*
+     * Picks the source the I/O context reads from:
+     * a file channel by default, a memory mapping with -m, or a page-cached
+     * stream with -s. "-" reads standard input through the page cache.
+     */
+    static AVIOSource openSource (String input_filename, char mode) throws IOException {
+        if (input_filename.equals("-")) {
+            return new CachedStreamSource(System.in);
+        }
+
+        switch (mode) {
+            case 'm':
+                return ByteBufferSource.map(Paths.get(input_filename));
+            case 's':
+                return new CachedStreamSource(new FileInputStream(input_filename));
+            default:
+                return FileChannelSource.open(Paths.get(input_filename));
+        }
+    }
+
     public static void main (String[] args) throws IOException {
         AVFormatContext fmt_ctx     = new AVFormatContext(null);
         int avio_ctx_buffer_size    = 4096,
             ret                     = 0;
-        BytePointer avio_ctx_buffer = new BytePointer( av_malloc(avio_ctx_buffer_size) );
-        AVDictionary options        = new AVDictionary();
+        boolean verbose             = false,
+                batch               = false,
+                batch_options       = false;    // -j, -p or -a given, they only apply to -b
+        char mode                   = 'f';
+        int argi                    = 0,
+            threads                 = Runtime.getRuntime().availableProcessors();
+        long probesize              = 0,
+             analyzeduration        = 0;
+
+        /*
+         * -v turns on the per-block trace printed by the read callback,
+         * -m reads through a memory mapping, -s through a page-cached InputStream.
+         * -b probes many inputs on -j threads, with optional -p probesize (bytes)
+         * and -a analyzeduration (microseconds) limits.
+         */
+        for (; argi < args.length && args[argi].length() == 2 && args[argi].startsWith("-"); argi++) {
+            if (args[argi].equals("-v")) {
+                verbose = true;
+            }
+            else if (args[argi].equals("-m") || args[argi].equals("-s")) {
+                mode = args[argi].charAt(1);
+            }
+            else if (args[argi].equals("-b")) {
+                batch = true;
+            }
+            else if (args[argi].equals("-j") && argi + 1 < args.length) {
+                threads = Integer.parseInt(args[++argi]);
+                batch_options = true;
+            }
+            else if (args[argi].equals("-p") && argi + 1 < args.length) {
+                probesize = Long.parseLong(args[++argi]);
+                batch_options = true;
+            }
+            else if (args[argi].equals("-a") && argi + 1 < args.length) {
+                analyzeduration = Long.parseLong(args[++argi]);
+                batch_options = true;
+            }
+            else {
+                break;
+            }
+        }
 
-        if (args.length < 1) {
+        // Without -b there is exactly one input and no batch options; -j needs at least one thread
+        if (args.length <= argi || (!batch && (batch_options || args.length - argi != 1)) || threads < 1) {
             System.err.println("\nexample usage: ");
-            System.err.println("java -jar avio_reading.jar <input_file>");
+            System.err.println("java -jar avio_reading.jar [-v] [-m|-s] <input_file|->");
+            System.err.println("java -jar avio_reading.jar -b [-j threads] [-p probesize] [-a analyzeduration] <file|dir|@list>...");
             System.err.println("API example program to show how to read from a custom buffer accessed through AVIOContext.\n");
             System.exit(-1);
         }
+
+        if (batch) {
+            // One JSON line per input on stdout, non-zero exit if any input failed
+            av_register_all();
+            av_log_set_level(AV_LOG_ERROR);
+            BatchProbe probe = new BatchProbe(threads, probesize, analyzeduration, System.out);
+
+            try {
+                System.exit( probe.run(BatchProbe.expand(Arrays.asList(args).subList(argi, args.length))) == 0 ? 0 : -1 );
+            }
+            catch (InterruptedException e) {
+                System.exit(-1);
+            }
+        }
         
-        // Set up the file input stream for passing to the aviocontext callback
-        String input_filename       = args[0];
-        File file                   = new File(input_filename);
-        long file_size              = file.length();
-        file.setWritable(false);
-        FileInputStream istream = new FileInputStream(file);
+        // Set up the source for the aviocontext callbacks to read from
+        String input_filename       = args[argi];
+        AVIOInput input             = new AVIOInput(openSource(input_filename, mode), avio_ctx_buffer_size).verbose(verbose);
 
         // So that stream/format-related calls below work
         av_register_all();
         
         // Allocate the format context 
         fmt_ctx = avformat_alloc_context();
-        // Set up the I/O context and pass it in to the format context. Null the opaque pointer since it's of no use in this example
-        fmt_ctx.pb( avio_alloc_context(avio_ctx_buffer, avio_ctx_buffer_size, 0, null, new ReadInput(istream, file_size), null, null) );
-        fmt_ctx.pb().seekable(0);   // Disable seeking
 
-        // Use the format context and its associated I/O context to open the file stream
-        ret = avformat_open_input(fmt_ctx, "", null, null);
+        // Use the format context and its associated I/O context to open the source
+        ret = input.openInput(fmt_ctx, input_filename);
 
         if (ret < 0) {
             System.err.println("Could not open input");
-            cleanup(fmt_ctx, istream, ret);
+            cleanup(fmt_ctx, input, ret);
         }
 
-        // Use the format context to get info about the streams contained in the file
-        ret = avformat_find_stream_info(fmt_ctx, options);
+        // Use the format context to get info about the streams contained in the file (cached with -Dprobe.cache)
+        ret = ProbeCache.findStreamInfo(fmt_ctx, input_filename);
         
         if (ret < 0) {
             System.err.println("Could not find stream information");
-            cleanup(fmt_ctx, istream, ret);
+            cleanup(fmt_ctx, input, ret);
         }
 
         // Dump the stream info to the screen
         av_dump_format(fmt_ctx, 0, input_filename, 0);
         
         // Free resources, print any errors
-        cleanup(fmt_ctx, istream, ret);
+        cleanup(fmt_ctx, input, ret);
 
         System.exit(0);
     }  
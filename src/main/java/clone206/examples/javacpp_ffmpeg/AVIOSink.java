@@ -0,0 +1,42 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a muxer's output goes when it writes through a custom AVIOContext
+ * (see {@link AVIOOutput}) instead of avio_open() on a filename.
+ *
+ * Muxers such as MP4 seek back to patch headers once the data is written,
+ * so sinks are random access. Calls come from the muxing thread only.
+ */
+public interface AVIOSink extends Closeable {
+    /** Writes all remaining bytes of src at the current position, and advances it. */
+    void write(ByteBuffer src) throws IOException;
+
+    /** The current write position, in bytes from the start. */
+    long position();
+
+    /** Moves the write position. Positions past the end leave a gap. */
+    void position(long new_position) throws IOException;
+
+    /** The size of the output so far. */
+    long size();
+}
@@ -0,0 +1,53 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of media bytes that libavformat reads through a custom
+ * AVIOContext (see {@link AVIOInput}), so a tool can be handed something
+ * other than a filename: an in-memory buffer, a file channel, or any
+ * InputStream.
+ *
+ * Calls come from the demuxer's thread only, so implementations don't
+ * need to be thread safe.
+ */
+public interface AVIOSource extends Closeable {
+    /**
+     * Reads bytes at the current position into dst.
+     * @return the number of bytes read, or -1 at the end of the source
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /** The current read position, in bytes from the start. */
+    long position() throws IOException;
+
+    /**
+     * Moves the read position. Only called when {@link #seekable()} is true.
+     * Positions past the end are allowed, the next read just returns -1.
+     */
+    void position(long new_position) throws IOException;
+
+    /** The total size in bytes, or -1 if not known (yet). */
+    long size() throws IOException;
+
+    /** Whether {@link #position(long)} may be called. */
+    boolean seekable();
+}
@@ -0,0 +1,134 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Decodes and filters one audio stream on its own thread, for FilteringAudio's
+ * multi-stream mode. The demuxing thread hands over packets through a bounded
+ * queue; the worker owns the stream's decoder, filter graph and output, so no
+ * native state is shared between workers.
+ */
+public class AudioStreamWorker implements Runnable {
+    private static final AVPacket END = new AVPacket();     // Queued after the last packet
+
+    private final int stream_index;
+    private final AVCodecContext dec_ctx;
+    private final FilteringAudio.Graph graph;
+    private final PcmWriter out;
+    private final BlockingQueue<AVPacket> packets;
+    private final Thread thread;
+    private volatile Throwable error;                       // Set by the worker thread on failure
+
+    public AudioStreamWorker (AVStream stream, String filters_descr, PcmWriter out, int queue_size) {
+        this.stream_index = stream.index();
+        this.dec_ctx      = FilteringAudio.open_stream_decoder(stream);
+        this.graph        = FilteringAudio.init_filters(filters_descr, FilteringAudio.abuffer_args(stream, dec_ctx));
+        this.out          = out;
+        this.packets      = new ArrayBlockingQueue<>(queue_size);
+        this.thread       = new Thread(this, "filter stream " + stream_index);
+    }
+
+    public int streamIndex () {
+        return stream_index;
+    }
+
+    public void start () {
+        thread.start();
+    }
+
+    /** Takes over the packet's data (the packet is left blank) and queues it for decoding. */
+    public void submit (AVPacket packet) throws InterruptedException {
+        AVPacket queued = av_packet_alloc();
+
+        av_packet_move_ref(queued, packet);
+        packets.put(queued);
+    }
+
+    /** Whether the worker has failed; {@link #close} rethrows the error. */
+    public boolean failed () {
+        return error != null;
+    }
+
+    /** Queues the end of the stream; the worker then flushes its decoder and filters. */
+    public void finish () throws InterruptedException {
+        packets.put(END);
+    }
+
+    @Override
+    public void run () {
+        AVFrame frame      = av_frame_alloc(),
+                filt_frame = av_frame_alloc();
+        AVPacket packet    = null;
+
+        try {
+            while ((packet = packets.take()) != END) {
+                FilteringAudio.decode_packet(dec_ctx, graph, out, packet, frame, filt_frame);
+                av_packet_free(packet);
+            }
+            FilteringAudio.decode_packet(dec_ctx, graph, out, null, frame, filt_frame);
+            FilteringAudio.filter_frame(graph, out, null, filt_frame);
+        } catch (Throwable t) {
+            error = t;
+
+            /* Keep taking packets, so the demuxing thread never blocks on a dead worker */
+            try {
+                while (packet != END) {
+                    if (packet != null) {
+                        av_packet_free(packet);
+                    }
+                    packet = packets.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            av_frame_free(frame);
+            av_frame_free(filt_frame);
+        }
+    }
+
+    /** Waits for the worker to finish, frees the decoder and graph, and closes the output. Rethrows a worker failure. */
+    public void close () throws IOException, InterruptedException {
+        try {
+            thread.join();
+        } finally {
+            avcodec_free_context(dec_ctx);
+            avfilter_graph_free(graph.graph);
+            out.close();
+        }
+
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new RuntimeException("Filtering stream " + stream_index + " failed", error);
+        }
+    }
+}
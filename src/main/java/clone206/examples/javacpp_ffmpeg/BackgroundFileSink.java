@@ -0,0 +1,212 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File sink that takes the disk off the encoding thread. Output is gathered
+ * into large pooled direct buffers, and full buffers are handed to a
+ * background thread that writes them with positional FileChannel writes.
+ *
+ * Writes are applied in the order they were made, so a muxer seeking back
+ * to patch a header (e.g. the MP4 mdat size) simply queues a later write
+ * to the earlier position. The encoder only waits when every pooled buffer
+ * is queued, i.e. when storage is slower than encoding for longer than the
+ * pool can absorb.
+ */
+public class BackgroundFileSink implements AVIOSink {
+    public static final int DEFAULT_BUFFER_SIZE  = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /* A filled buffer and where it goes in the file */
+    private static class Block {
+        final ByteBuffer buffer;
+        final long position;
+
+        Block (ByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    private static final Block END = new Block(null, -1);   // Tells the writer thread to stop
+    private static final long  WAIT_MS = 100;               // How often a waiting encoder checks on the writer
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free;           // Pooled buffers ready to be filled
+    private final BlockingQueue<Block> pending;             // Filled buffers waiting for the writer
+    private final Thread writer;
+    private volatile IOException error;                     // Set by the writer thread on failure
+    private ByteBuffer current;                             // Buffer being filled
+    private long current_position;                          // File position of current's first byte
+    private long size;
+    private boolean closed;
+
+    public BackgroundFileSink (Path path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    public BackgroundFileSink (Path path, int buffer_size, int buffer_count) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.free    = new ArrayBlockingQueue<>(buffer_count);
+        this.pending = new ArrayBlockingQueue<>(buffer_count + 1);
+
+        for (int i = 0; i < buffer_count; i++) {
+            free.add(ByteBuffer.allocateDirect(buffer_size));
+        }
+        current = free.poll();
+
+        writer = new Thread(this::drain, "avio-writer " + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* Writer thread: writes queued buffers in order and returns them to the pool */
+    private void drain () {
+        try {
+            Block block;
+
+            while ((block = pending.take()) != END) {
+                long position = block.position;
+
+                try {
+                    while (block.buffer.hasRemaining() && error == null) {
+                        position += channel.write(block.buffer, position);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (Throwable t) {
+                    // Keep recycling buffers, so the encoder sees the error instead of waiting forever
+                    error = new IOException("Writer thread failed", t);
+                }
+                block.buffer.clear();
+                free.add(block.buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Queues the current buffer (if it holds anything) and takes a fresh one from the pool */
+    private void submit () throws IOException {
+        if (current.position() == 0) {
+            return;
+        }
+
+        long next_position = current_position + current.position();
+
+        current.flip();
+        try {
+            queue(new Block(current, current_position));
+            while ((current = free.poll(WAIT_MS, TimeUnit.MILLISECONDS)) == null) {
+                checkWriter();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer thread", e);
+        }
+        current_position = next_position;
+    }
+
+    /* Hands a block to the writer thread, failing rather than waiting on a writer that is gone */
+    private void queue (Block block) throws IOException, InterruptedException {
+        while (!pending.offer(block, WAIT_MS, TimeUnit.MILLISECONDS)) {
+            checkWriter();
+        }
+    }
+
+    private void checkWriter () throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (!writer.isAlive()) {
+            throw new IOException("Writer thread stopped");
+        }
+    }
+
+    @Override
+    public void write (ByteBuffer src) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+
+        while (src.hasRemaining()) {
+            if (!current.hasRemaining()) {
+                submit();
+            }
+
+            int len   = Math.min(src.remaining(), current.remaining()),
+                limit = src.limit();
+
+            src.limit(src.position() + len);
+            current.put(src);
+            src.limit(limit);
+        }
+        size = Math.max(size, position());
+    }
+
+    @Override
+    public long position () {
+        return current_position + current.position();
+    }
+
+    @Override
+    public void position (long new_position) throws IOException {
+        if (new_position != position()) {
+            submit();
+            current_position = new_position;
+        }
+    }
+
+    @Override
+    public long size () {
+        return size;
+    }
+
+    /** Waits for all queued writes to land, then closes the file. Rethrows any write error. */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            submit();
+            queue(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer thread", e);
+        } finally {
+            channel.close();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Batch mode for AVIOReading: probes many files concurrently in one JVM,
+ * each on its own AVFormatContext and AVIOInput, and prints one JSON line
+ * of per-stream metadata per file instead of av_dump_format's text.
+ *
+ * Inputs can be files, directories (walked recursively) or @list files
+ * with one path per line (@- reads the list from stdin).
+ */
+public class BatchProbe {
+    private final int threads;
+    private final long probesize;           // Bytes, 0 for the libavformat default
+    private final long analyzeduration;     // Microseconds, 0 for the libavformat default
+    private final PrintStream out;
+
+    public BatchProbe (int threads, long probesize, long analyzeduration, PrintStream out) {
+        this.threads = threads;
+        this.probesize = probesize;
+        this.analyzeduration = analyzeduration;
+        this.out = out;
+    }
+
+    /* Expands directories and @list files into the paths to probe */
+    static List<Path> expand (List<String> args) throws IOException {
+        List<Path> paths = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("@")) {
+                BufferedReader reader = arg.equals("@-")
+                        ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : Files.newBufferedReader(Paths.get(arg.substring(1)), StandardCharsets.UTF_8);
+
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.trim().isEmpty()) {
+                            paths.add(Paths.get(line.trim()));
+                        }
+                    }
+                }
+                finally {
+                    if (!arg.equals("@-")) {
+                        reader.close();
+                    }
+                }
+            }
+            else if (Files.isDirectory(Paths.get(arg))) {
+                try (Stream<Path> walk = Files.walk(Paths.get(arg))) {
+                    walk.filter(Files::isRegularFile).sorted().forEach(paths::add);
+                }
+            }
+            else {
+                paths.add(Paths.get(arg));
+            }
+        }
+        return paths;
+    }
+
+    /** Probes every path and prints one JSON line each. Returns the number of failures. */
+    public int run (List<Path> paths) throws InterruptedException {
+        ExecutorService pool    = Executors.newFixedThreadPool(threads);
+        AtomicInteger failures  = new AtomicInteger();
+
+        for (final Path path : paths) {
+            pool.execute(() -> {
+                String line;
+
+                try {
+                    line = probe(path);
+                }
+                catch (Exception e) {
+                    failures.incrementAndGet();
+                    StringBuilder sb = new StringBuilder("{");
+                    Json.quote(Json.name(sb, "file"), path.toString());
+                    Json.quote(Json.name(sb, "error"), e.getMessage());
+                    line = sb.append('}').toString();
+                }
+
+                // One line per file, never interleaved
+                synchronized (out) {
+                    out.println(line);
+                }
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        return failures.get();
+    }
+
+    /* Opens one file on its own format context and returns its metadata as a JSON object */
+    String probe (Path path) throws IOException {
+        AVFormatContext fmt_ctx = avformat_alloc_context();
+        AVIOInput input         = new AVIOInput(FileChannelSource.open(path));
+
+        try {
+            if (probesize > 0) {
+                fmt_ctx.probesize(probesize);
+            }
+            if (analyzeduration > 0) {
+                fmt_ctx.max_analyze_duration(analyzeduration);
+            }
+
+            check( input.openInput(fmt_ctx, path.toString()), "Could not open input" );
+            check( ProbeCache.findStreamInfo(fmt_ctx, path.toString()), "Could not find stream information" );
+
+            return toJson(path.toString(), fmt_ctx);
+        }
+        finally {
+            avformat_close_input(fmt_ctx);
+            input.close();
+        }
+    }
+
+    /* Describes an opened input as a JSON object */
+    static String toJson (String file, AVFormatContext fmt_ctx) {
+        StringBuilder sb = new StringBuilder("{");
+
+        Json.quote(Json.name(sb, "file"), file);
+        Json.quote(Json.name(sb, "format"), fmt_ctx.iformat().name().getString());
+        Json.number(Json.name(sb, "duration"), fmt_ctx.duration() == AV_NOPTS_VALUE ? Double.NaN : fmt_ctx.duration() / (double) AV_TIME_BASE);
+        Json.name(sb, "bit_rate").append(fmt_ctx.bit_rate());
+        Json.name(sb, "streams").append('[');
+
+        for (int i = 0; i < fmt_ctx.nb_streams(); i++) {
+            AVStream stream         = fmt_ctx.streams(i);
+            AVCodecParameters par   = stream.codecpar();
+            BytePointer type        = av_get_media_type_string(par.codec_type());
+
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('{');
+            Json.name(sb, "index").append(i);
+            Json.quote(Json.name(sb, "type"), type == null || type.isNull() ? "unknown" : type.getString());
+            Json.quote(Json.name(sb, "codec"), avcodec_get_name(par.codec_id()).getString());
+            Json.number(Json.name(sb, "duration"), stream.duration() == AV_NOPTS_VALUE ? Double.NaN : stream.duration() * av_q2d(stream.time_base()));
+            Json.name(sb, "bit_rate").append(par.bit_rate());
+
+            if (par.codec_type() == AVMEDIA_TYPE_VIDEO) {
+                Json.name(sb, "width").append(par.width());
+                Json.name(sb, "height").append(par.height());
+                Json.number(Json.name(sb, "frame_rate"), stream.avg_frame_rate().den() == 0 ? Double.NaN : av_q2d(stream.avg_frame_rate()));
+            }
+            else if (par.codec_type() == AVMEDIA_TYPE_AUDIO) {
+                Json.name(sb, "sample_rate").append(par.sample_rate());
+                Json.name(sb, "channels").append(par.channels());
+            }
+            sb.append('}');
+        }
+
+        return sb.append("]}").toString();
+    }
+
+    /* Turns an ffmpeg error code into an exception carrying its message */
+    static void check (int err, String what) {
+        if (err < 0) {
+            try (BytePointer e = new BytePointer(512)) {
+                av_strerror(err, e, 512);
+                throw new RuntimeException(what + ": " + e.getString().substring(0, (int) BytePointer.strlen(e)));
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.bytedeco.javacpp.Pointer;
+
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Runs a manifest of transcode and aac jobs on a pool of workers in one JVM,
+ * handing out codec threads from a core budget shared by all of them, so a
+ * batch neither leaves cores idle nor runs more codec threads than there are
+ * cores.
+ *
+ * Each manifest line is a job in the daemon's syntax, e.g.
+ * "transcode --vcodec mpeg4 in.mp4 out.mp4" or just "in.mp4 out.mp4", optionally
+ * preceded by --priority n (higher runs first), --retries n, --timeout seconds,
+ * --max-memory size and --threads n. Lines starting with # are comments.
+ *
+ * A memory ceiling is a ceiling on the resident size of the whole process,
+ * not on one job: FFmpeg's native allocations can't be told apart by job.
+ * It is enforced at admission, a job only starts while the process is below
+ * its ceiling or runs nothing else, and by a watch that stops the most
+ * recently started job whose ceiling the process went over, so the others
+ * can finish and free memory; the stopped job is retried like a failed one.
+ * With one worker that amounts to a ceiling on the job itself.
+ *
+ * Every attempt prints one JSON line on stdout, and the aggregate throughput
+ * (real-time factor and files per minute) goes to stderr every few seconds
+ * and at the end.
+ *
+ * @author Kevin Witmer
+ */
+public class BatchTranscode {
+    static final long STATUS_INTERVAL_MS = 5000,
+                      MEMORY_CHECK_MS    = 250;
+
+    /* The cores running jobs take their codec threads from */
+    static class CoreBudget {
+        final int   total;
+        private int free;
+
+        CoreBudget (int total) {
+            this.total  = total;
+            this.free   = total;
+        }
+
+        /* Waits until a core is free, then takes as many as wanted of the free ones */
+        synchronized int acquire (int want) throws InterruptedException {
+            while (free == 0) {
+                wait();
+            }
+            int granted = Math.max(1, Math.min(want, free));
+            free -= granted;
+            return granted;
+        }
+
+        synchronized void release (int cores) {
+            free += cores;
+            notifyAll();
+        }
+    }
+
+    /* A job being run, as the memory watch sees it */
+    static class Running {
+        final Job                     job;
+        final TranscodeSession        session;
+        final AtomicReference<String> stop;         // Why the session was cancelled
+        final long                    baseline;     // Resident size when it started
+        final AtomicLong              peak = new AtomicLong();  // Largest growth since
+
+        Running (Job job, TranscodeSession session, AtomicReference<String> stop) {
+            this.job        = job;
+            this.session    = session;
+            this.stop       = stop;
+            this.baseline   = NativeMemory.physicalBytes();
+        }
+    }
+
+    /* One manifest line and its scheduling options */
+    static class Job implements Comparable<Job> {
+        final int          line;
+        final String       command;
+        final List<String> args;
+        int                priority    = 0,
+                           retries,
+                           threads     = 0;    // 0 for the fair share
+        long               timeout_ms,         // 0 for none
+                           max_memory;         // Process resident size in bytes, 0 for no ceiling
+        int                attempts    = 0;
+
+        Job (int line, String command, List<String> args, int retries, long timeout_ms, long max_memory) {
+            this.line       = line;
+            this.command    = command;
+            this.args       = args;
+            this.retries    = retries;
+            this.timeout_ms = timeout_ms;
+            this.max_memory = max_memory;
+        }
+
+        String input () {
+            return args.get(args.size() - 2);
+        }
+
+        String output () {
+            return args.get(args.size() - 1);
+        }
+
+        /* Highest priority first, manifest order among equals */
+        @Override
+        public int compareTo (Job other) {
+            return priority != other.priority ? Integer.compare(other.priority, priority) : Integer.compare(line, other.line);
+        }
+    }
+
+    private final int                      workers;
+    private final CoreBudget               budget;
+    private final PrintStream              out;
+    private final ScheduledExecutorService timers  = Executors.newSingleThreadScheduledExecutor(TranscodeDaemon.daemonThreads("job timer"));
+
+    private final AtomicInteger done        = new AtomicInteger(),
+                                failed      = new AtomicInteger();
+    private final AtomicLong    media_us    = new AtomicLong();     // Input time transcoded by finished jobs
+    private final Deque<Running> running    = new ArrayDeque<>();   // Oldest first, guarded by itself
+    private long                started;
+
+    public BatchTranscode (int workers, int cores, PrintStream out) {
+        this.workers    = workers;
+        this.budget     = new CoreBudget(cores);
+        this.out        = out;
+    }
+
+    /* Reads the jobs of a manifest, "-" for stdin */
+    static List<Job> manifest (String name, int retries, long timeout_ms, long max_memory) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        BufferedReader reader = name.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(name), StandardCharsets.UTF_8);
+
+        try {
+            String text;
+
+            for (int line = 1; (text = reader.readLine()) != null; line++) {
+                if (text.trim().isEmpty() || text.trim().startsWith("#")) {
+                    continue;
+                }
+                try {
+                    jobs.add(parse(line, TranscodeDaemon.tokenize(text), retries, timeout_ms, max_memory));
+                }
+                catch (RuntimeException e) {
+                    throw new IOException(name + ":" + line + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        finally {
+            if (!name.equals("-")) {
+                reader.close();
+            }
+        }
+        return jobs;
+    }
+
+    /* [--priority n] [--retries n] [--timeout s] [--max-memory size] [--threads n] [transcode|aac] [options] <input> <output> */
+    static Job parse (int line, List<String> args, int retries, long timeout_ms, long max_memory) {
+        int priority    = 0,
+            threads     = 0,
+            argi        = 0;
+
+        for (; argi + 1 < args.size(); argi += 2) {
+            String option = args.get(argi);
+
+            if (option.equals("--priority")) {
+                priority = Integer.parseInt(args.get(argi + 1));
+            }
+            else if (option.equals("--retries")) {
+                retries = Integer.parseInt(args.get(argi + 1));
+            }
+            else if (option.equals("--timeout")) {
+                timeout_ms = Math.round(Double.parseDouble(args.get(argi + 1)) * 1000);
+            }
+            else if (option.equals("--max-memory")) {
+                max_memory = Pointer.parseBytes(args.get(argi + 1));
+            }
+            else if (option.equals("--threads")) {
+                threads = Integer.parseInt(args.get(argi + 1));
+            }
+            else {
+                break;
+            }
+        }
+
+        String command = "transcode";
+
+        if (argi < args.size() && (args.get(argi).equals("transcode") || args.get(argi).equals("aac"))) {
+            command = args.get(argi++);
+        }
+        if (args.size() - argi < 2) {
+            throw new IllegalArgumentException("Expected [transcode|aac] [options] <input> <output>");
+        }
+
+        Job job         = new Job(line, command, args.subList(argi, args.size()), retries, timeout_ms, max_memory);
+        job.priority    = priority;
+        job.threads     = threads;
+        return job;
+    }
+
+    /** Runs every job, retrying failed ones. Returns the number of jobs that never succeeded. */
+    public int run (List<Job> jobs) throws InterruptedException {
+        PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(Math.max(1, jobs.size()), Comparator.naturalOrder());
+        ExecutorService pool             = Executors.newFixedThreadPool(workers);
+        int share                        = Math.max(1, budget.total / workers);
+
+        queue.addAll(jobs);
+        started = System.nanoTime();
+        ScheduledFuture<?> status = timers.scheduleAtFixedRate(() -> System.err.println(throughput()),
+                STATUS_INTERVAL_MS, STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS),
+                           memory = timers.scheduleAtFixedRate(this::checkMemory,
+                MEMORY_CHECK_MS, MEMORY_CHECK_MS, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < workers; i++) {
+            pool.execute(() -> {
+                Job job;
+
+                // A worker that requeues a job polls again, so no retry is left behind
+                while ((job = queue.poll()) != null) {
+                    try {
+                        if (!attempt(job, share) && job.attempts <= job.retries) {
+                            queue.add(job);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        status.cancel(false);
+        memory.cancel(false);
+        timers.shutdown();
+
+        System.err.println(throughput());
+        return jobs.size() - done.get();
+    }
+
+    /* Waits until the process is below the job's memory ceiling, or runs no other job */
+    void admit (Job job) throws InterruptedException {
+        if (job.max_memory <= 0) {
+            return;
+        }
+        synchronized (running) {
+            while (!running.isEmpty() && NativeMemory.physicalBytes() >= job.max_memory) {
+                running.wait(MEMORY_CHECK_MS);
+            }
+        }
+    }
+
+    /*
+     * Tracks every running job's memory growth, and stops the most recently started
+     * job whose ceiling the process is over, one at a time: stopping it may be enough
+     */
+    void checkMemory () {
+        long resident = NativeMemory.physicalBytes();
+
+        synchronized (running) {
+            for (Running r : running) {
+                NativeMemory.peak(r.peak, resident - r.baseline);
+            }
+            for (Iterator<Running> it = running.descendingIterator(); it.hasNext(); ) {
+                Running r = it.next();
+
+                if (r.job.max_memory > 0 && resident > r.job.max_memory) {
+                    if (r.stop.compareAndSet(null, "memory")) {
+                        r.session.cancel();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Runs one attempt at a job on as many codec threads as the budget allows, and reports it */
+    boolean attempt (Job job, int share) throws InterruptedException {
+        admit(job);
+
+        int threads             = budget.acquire(job.command.equals("aac") ? 1 : job.threads > 0 ? job.threads : share);
+        long start              = System.nanoTime();
+        String status           = "done",
+               message          = null;
+        ScheduledFuture<?> timer = null;
+        AtomicReference<String> stop = new AtomicReference<>();   // Why the session was cancelled
+        TranscodeSession session;
+        Running run;
+
+        job.attempts++;
+        try {
+            session = TranscodeDaemon.new_session(job.command, job.args, threads);
+        }
+        catch (IllegalArgumentException e) {
+            // A bad job line fails the same way every time
+            budget.release(threads);
+            job.retries = 0;
+            report(job, "failed", e.getMessage(), threads, start, 0, 0);
+            failed.incrementAndGet();
+            return false;
+        }
+
+        run = new Running(job, session, stop);
+        synchronized (running) {
+            running.add(run);
+        }
+
+        try (TranscodeSession s = session) {
+            if (job.timeout_ms > 0) {
+                timer = timers.schedule(() -> {
+                    stop.compareAndSet(null, "timeout");
+                    s.cancel();
+                }, job.timeout_ms, TimeUnit.MILLISECONDS);
+            }
+            s.run();
+        }
+        catch (CancellationException e) {
+            status  = stop.get() != null ? stop.get() : "cancelled";
+        }
+        catch (Throwable t) {
+            status  = "failed";
+            message = t.getMessage() != null ? t.getMessage() : t.toString();
+        }
+        finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            synchronized (running) {
+                running.remove(run);
+                running.notifyAll();
+            }
+            budget.release(threads);
+        }
+
+        long media = 0;
+
+        if (status.equals("done")) {
+            media = session.duration();
+            media_us.addAndGet(media);
+            done.incrementAndGet();
+        }
+        else {
+            failed.incrementAndGet();
+        }
+        report(job, status, message, threads, start, media, run.peak.get());
+        return status.equals("done");
+    }
+
+    /* One JSON line per attempt, never interleaved */
+    void report (Job job, String status, String message, int threads, long start, long media, long memory) {
+        StringBuilder sb = new StringBuilder("{");
+
+        Json.name(sb, "line").append(job.line);
+        Json.quote(Json.name(sb, "input"), job.input());
+        Json.quote(Json.name(sb, "output"), job.output());
+        Json.quote(Json.name(sb, "status"), status);
+        Json.name(sb, "attempt").append(job.attempts);
+        Json.name(sb, "threads").append(threads);
+        Json.number(Json.name(sb, "elapsed_ms"), (System.nanoTime() - start) / 1e6);
+        Json.number(Json.name(sb, "media_s"), media / (double) AV_TIME_BASE);
+        Json.name(sb, "memory_growth").append(memory);
+        if (message != null) {
+            Json.quote(Json.name(sb, "error"), message);
+        }
+        sb.append('}');
+
+        synchronized (out) {
+            out.println(sb);
+        }
+    }
+
+    /* Finished files and input time against the wall clock so far */
+    String throughput () {
+        double wall_s   = (System.nanoTime() - started) / 1e9,
+               media_s  = media_us.get() / (double) AV_TIME_BASE;
+        StringBuilder sb = new StringBuilder("{");
+
+        Json.name(sb, "done").append(done.get());
+        Json.name(sb, "failed_attempts").append(failed.get());
+        Json.number(Json.name(sb, "wall_s"), wall_s);
+        Json.number(Json.name(sb, "media_s"), media_s);
+        Json.number(Json.name(sb, "realtime_factor"), wall_s > 0 ? media_s / wall_s : 0);
+        Json.number(Json.name(sb, "files_per_min"), wall_s > 0 ? done.get() * 60 / wall_s : 0);
+        Json.name(sb, "memory").append(NativeMemory.toJson());
+        return sb.append('}').toString();
+    }
+
+    public static void main (String[] args) throws IOException {
+        int cores       = Runtime.getRuntime().availableProcessors(),
+            workers     = 0,
+            retries     = 0,
+            argi        = 0;
+        long timeout_ms = 0,
+             max_memory = 0;
+
+        // -j workers, -c cores shared by their codecs, -r retries, -t timeout (seconds) and -m the process memory ceiling every job runs under
+        for (; argi + 1 < args.length; argi += 2) {
+            if (args[argi].equals("-j")) {
+                workers = Integer.parseInt(args[argi + 1]);
+            }
+            else if (args[argi].equals("-c")) {
+                cores = Integer.parseInt(args[argi + 1]);
+            }
+            else if (args[argi].equals("-r")) {
+                retries = Integer.parseInt(args[argi + 1]);
+            }
+            else if (args[argi].equals("-t")) {
+                timeout_ms = Math.round(Double.parseDouble(args[argi + 1]) * 1000);
+            }
+            else if (args[argi].equals("-m")) {
+                max_memory = Pointer.parseBytes(args[argi + 1]);
+            }
+            else {
+                break;
+            }
+        }
+        if (argi != args.length - 1) {
+            System.err.println("\nexample usage: ");
+            System.err.println("java -jar batch_transcode.jar [-j workers] [-c cores] [-r retries] [-t timeout_s] [-m max_memory] <manifest|->");
+            System.err.println("Runs the transcode and aac jobs listed in the manifest, sharing the cores between their codecs.\n");
+            System.exit(-1);
+        }
+        if (workers <= 0) {
+            // Two codec threads per job keeps every core busy through the single-threaded stages
+            workers = Math.max(1, cores / 2);
+        }
+
+        List<Job> jobs = manifest(args[argi], retries, timeout_ms, max_memory);
+
+        av_register_all();
+        avfilter_register_all();
+        av_log_set_level(AV_LOG_ERROR);
+
+        try {
+            System.exit( new BatchTranscode(workers, cores, System.out).run(jobs) == 0 ? 0 : -1 );
+        }
+        catch (InterruptedException e) {
+            System.exit(-1);
+        }
+    }
+}
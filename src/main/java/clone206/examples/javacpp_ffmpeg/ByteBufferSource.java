@@ -0,0 +1,126 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * In-memory source over one or more ByteBuffers, laid out back to back.
+ * Several buffers are needed to memory-map files larger than 2GB, see
+ * {@link #map(Path)}. Reads copy from the buffers straight into the
+ * native AVIO buffer, so a mapped file costs a few page faults to probe.
+ */
+public class ByteBufferSource implements AVIOSource {
+    private static final long CHUNK_SIZE = 1L << 30;   // Bytes per mapped region
+
+    private final ByteBuffer[] buffers;     // The source bytes, in order
+    private final long[] offsets;           // Position of the first byte of each buffer
+    private final long size;                // Sum of the buffers' remaining bytes
+    private long pos;                       // Current read position
+
+    /** Serves the remaining bytes of each buffer. The buffers' own positions aren't touched. */
+    public ByteBufferSource (ByteBuffer... buffers) {
+        long total = 0;
+
+        this.buffers = new ByteBuffer[buffers.length];
+        this.offsets = new long[buffers.length];
+
+        for (int i = 0; i < buffers.length; i++) {
+            this.buffers[i] = buffers[i].slice();
+            this.offsets[i] = total;
+            total += this.buffers[i].capacity();
+        }
+        this.size = total;
+    }
+
+    /** Maps a whole file read-only. The mapping stays valid after this returns. */
+    public static ByteBufferSource map (Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long file_size       = channel.size();
+            ByteBuffer[] chunks  = new ByteBuffer[(int) ((file_size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, file_size - start));
+            }
+            return new ByteBufferSource(chunks);
+        }
+    }
+
+    @Override
+    public int read (ByteBuffer dst) {
+        if (pos >= size) {
+            return -1;
+        }
+
+        int start = dst.position();
+        int index = find(pos);
+
+        // A read may straddle two buffers
+        while (dst.hasRemaining() && index < buffers.length) {
+            ByteBuffer src = buffers[index];
+            int offset     = (int) (pos - offsets[index]),
+                len        = Math.min(dst.remaining(), src.capacity() - offset);
+
+            src.limit(offset + len).position(offset);
+            dst.put(src);
+            src.clear();
+            pos += len;
+            index++;
+        }
+
+        return dst.position() - start;
+    }
+
+    /* Index of the buffer holding position p */
+    private int find (long p) {
+        int i = buffers.length - 1;
+
+        while (i > 0 && offsets[i] > p) {
+            i--;
+        }
+        return i;
+    }
+
+    @Override
+    public long position () {
+        return pos;
+    }
+
+    @Override
+    public void position (long new_position) {
+        pos = new_position;
+    }
+
+    @Override
+    public long size () {
+        return size;
+    }
+
+    @Override
+    public boolean seekable () {
+        return true;
+    }
+
+    @Override
+    public void close () {
+    }
+}
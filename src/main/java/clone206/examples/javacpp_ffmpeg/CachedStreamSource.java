@@ -0,0 +1,210 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Source over an arbitrary InputStream (e.g. an object storage download),
+ * made seekable by an LRU cache of fixed-size off-heap pages.
+ *
+ * Every page read from the stream is kept until it is evicted, so demuxers
+ * that seek backwards a little are served from the cache. Seeking forwards
+ * reads (and caches) through to the target. Going back to a page that has
+ * already been evicted needs an {@link Opener} that can restart the stream
+ * at an offset, e.g. with a ranged request; without one the read fails.
+ */
+public class CachedStreamSource implements AVIOSource {
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PAGES = 256;
+
+    /** Restarts the underlying stream at a byte offset. */
+    public interface Opener {
+        InputStream open(long offset) throws IOException;
+    }
+
+    private final Opener opener;                        // May be null, in which case evicted pages are lost
+    private final int page_size;                        // Bytes per cached page
+    private final int max_pages;                        // Cache bound
+    private final Map<Long, ByteBuffer> pages;          // Page index -> direct buffer, in LRU order
+    private final ArrayDeque<ByteBuffer> free_pages;    // Evicted pages, recycled for new reads
+    private final byte[] transfer;                      // InputStream can only read into a heap array
+    private InputStream in;
+    private long stream_pos;                            // Bytes consumed from the stream, page aligned until EOF
+    private long size;                                  // -1 until known
+    private long pos;                                   // Current read position
+
+    public CachedStreamSource (InputStream in) {
+        this(in, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+
+    public CachedStreamSource (InputStream in, int page_size, int max_pages) {
+        this(null, in, -1, page_size, max_pages);
+    }
+
+    /** Opens the stream at offset 0 right away. size may be -1 if not known. */
+    public CachedStreamSource (Opener opener, long size, int page_size, int max_pages) throws IOException {
+        this(opener, opener.open(0), size, page_size, max_pages);
+    }
+
+    private CachedStreamSource (Opener opener, InputStream in, long size, int page_size, int max_pages) {
+        if (page_size <= 0 || max_pages <= 0) {
+            throw new IllegalArgumentException("Page size and page count must be positive");
+        }
+
+        this.opener     = opener;
+        this.in         = in;
+        this.size       = size;
+        this.page_size  = page_size;
+        this.max_pages  = max_pages;
+        this.transfer   = new byte[Math.min(page_size, 64 * 1024)];
+        this.free_pages = new ArrayDeque<>();
+        this.pages      = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<Long, ByteBuffer> eldest) {
+                if (size() > CachedStreamSource.this.max_pages) {
+                    free_pages.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public int read (ByteBuffer dst) throws IOException {
+        if (size >= 0 && pos >= size) {
+            return -1;
+        }
+
+        ByteBuffer page = page(pos / page_size);
+        int offset      = (int) (pos % page_size);
+
+        // Past the end of a short last page
+        if (page == null || offset >= page.limit()) {
+            return -1;
+        }
+
+        int len   = Math.min(dst.remaining(), page.limit() - offset),
+            limit = page.limit();
+
+        page.limit(offset + len).position(offset);
+        dst.put(page);
+        page.limit(limit).position(0);
+        pos += len;
+
+        return len;
+    }
+
+    /* Returns the cached page with the given index, reading it from the stream if needed. null past EOF. */
+    private ByteBuffer page (long index) throws IOException {
+        ByteBuffer page = pages.get(index);
+        long start      = index * page_size;
+
+        if (page != null) {
+            return page;
+        }
+
+        // Behind the stream (the page was evicted), or so far ahead that reading through would flush the cache
+        if (start < stream_pos || (opener != null && start - stream_pos > (long) max_pages * page_size)) {
+            if (opener == null) {
+                throw new IOException("Offset " + start + " was evicted from the page cache and the stream can't be reopened");
+            }
+            in.close();
+            in = opener.open(start);
+            stream_pos = start;
+        }
+
+        // Read forward, caching every page passed over
+        while (true) {
+            long current = stream_pos / page_size;
+            ByteBuffer replaced;
+
+            if ((page = fill()) == null) {
+                size = stream_pos;
+                return null;
+            }
+
+            // After a reopen the stream can pass pages that are still cached; keep their buffers for reuse
+            if ((replaced = pages.put(current, page)) != null) {
+                free_pages.add(replaced);
+            }
+            stream_pos += page.limit();
+
+            if (page.limit() < page_size) {
+                size = stream_pos;
+            }
+            if (current == index) {
+                return page;
+            }
+            if (page.limit() < page_size) {
+                return null;
+            }
+        }
+    }
+
+    /* Reads the next page worth of bytes from the stream into a (possibly recycled) direct buffer */
+    private ByteBuffer fill () throws IOException {
+        ByteBuffer page = free_pages.isEmpty() ? ByteBuffer.allocateDirect(page_size) : free_pages.poll();
+        int len;
+
+        page.clear();
+
+        while (page.hasRemaining() && (len = in.read(transfer, 0, Math.min(transfer.length, page.remaining()))) >= 0) {
+            page.put(transfer, 0, len);
+        }
+        page.flip();
+
+        if (page.limit() == 0) {
+            free_pages.add(page);
+            return null;
+        }
+        return page;
+    }
+
+    @Override
+    public long position () {
+        return pos;
+    }
+
+    @Override
+    public void position (long new_position) {
+        pos = new_position;
+    }
+
+    @Override
+    public long size () {
+        return size;
+    }
+
+    @Override
+    public boolean seekable () {
+        return true;
+    }
+
+    @Override
+    public void close () throws IOException {
+        pages.clear();
+        free_pages.clear();
+        in.close();
+    }
+}
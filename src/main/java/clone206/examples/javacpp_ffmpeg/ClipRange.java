@@ -0,0 +1,103 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+import org.bytedeco.javacpp.avutil.AVRational;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * The part of an input to process, from a start time up to, not including,
+ * an end time. Either end may be left open.
+ *
+ * Times are given in seconds or as [[hh:]mm:]ss[.frac], and kept in
+ * AV_TIME_BASE units. Rather than decoding up to the start, the input is
+ * seeked to the nearest keyframe before it, so only the pre-roll from that
+ * keyframe is decoded and thrown away.
+ */
+public class ClipRange {
+    static final AVRational TIME_BASE_Q = av_make_q(1, AV_TIME_BASE);
+
+    /** The whole input */
+    public static final ClipRange ALL = new ClipRange(AV_NOPTS_VALUE, AV_NOPTS_VALUE);
+
+    public final long start;    // AV_NOPTS_VALUE when open
+    public final long end;
+
+    public ClipRange (long start, long end) {
+        if (start != AV_NOPTS_VALUE && end != AV_NOPTS_VALUE && end <= start) {
+            throw new IllegalArgumentException("Clip end must be after its start");
+        }
+        this.start = start;
+        this.end   = end;
+    }
+
+    /** From the --ss and --to option values, either may be null */
+    public static ClipRange parse (String start, String end) {
+        return new ClipRange(start != null ? parseTime(start) : AV_NOPTS_VALUE,
+                end != null ? parseTime(end) : AV_NOPTS_VALUE);
+    }
+
+    /** "90", "1:30" and "0:01:30.5" style times, in AV_TIME_BASE units */
+    public static long parseTime (String time) {
+        double seconds = 0;
+
+        for (String part : time.trim().split(":", 3)) {
+            seconds = seconds * 60 + Double.parseDouble(part);
+        }
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Time can't be negative: " + time);
+        }
+        return Math.round(seconds * AV_TIME_BASE);
+    }
+
+    public boolean hasStart () {
+        return start != AV_NOPTS_VALUE;
+    }
+
+    public boolean hasEnd () {
+        return end != AV_NOPTS_VALUE;
+    }
+
+    /** Start in time_base, Long.MIN_VALUE when open */
+    public long start (AVRational time_base) {
+        return hasStart() ? av_rescale_q(start, TIME_BASE_Q, time_base) : Long.MIN_VALUE;
+    }
+
+    /** End in time_base, Long.MAX_VALUE when open */
+    public long end (AVRational time_base) {
+        return hasEnd() ? av_rescale_q(end, TIME_BASE_Q, time_base) : Long.MAX_VALUE;
+    }
+
+    /**
+     * The same range in an opened input's own timestamps, which may not start at 0.
+     * The start and end used for seeking and comparing should come from this.
+     */
+    public ClipRange in (AVFormatContext fmt_ctx) {
+        long origin = fmt_ctx.start_time() != AV_NOPTS_VALUE ? fmt_ctx.start_time() : 0;
+
+        if (!hasStart() && !hasEnd()) {
+            return this;
+        }
+        return new ClipRange(hasStart() ? start + origin : AV_NOPTS_VALUE, hasEnd() ? end + origin : AV_NOPTS_VALUE);
+    }
+
+    /** Seeks an input to the last keyframe at or before the start, if there is one */
+    public int seek (AVFormatContext fmt_ctx) {
+        return hasStart() ? avformat_seek_file(fmt_ctx, -1, Long.MIN_VALUE, start, start, 0) : 0;
+    }
+}
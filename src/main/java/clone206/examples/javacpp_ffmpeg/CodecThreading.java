@@ -0,0 +1,160 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Thread settings for the decoders or the encoders of a transcode, applied to
+ * each codec context before avcodec_open2().
+ *
+ * A spec is a comma separated list of thread counts: a bare value is the
+ * default for every stream, and index:value overrides one stream, e.g.
+ * "auto,1:2". A value is a number, or "auto" for a share of the job's cores:
+ * the available cores divided by the number of jobs sharing the machine, or a
+ * given budget. share() splits those cores between the codecs a job opens;
+ * without it every "auto" codec takes all of them. The thread type is frame,
+ * slice or both; codecs only use the kinds they support.
+ */
+public class CodecThreading {
+    /* From libavcodec/avcodec.h */
+    public static final int FF_THREAD_FRAME = 1;
+    public static final int FF_THREAD_SLICE = 2;
+
+    private static final int AUTO = -1;
+
+    private final int default_threads;
+    private final Map<Integer, Integer> stream_threads = new HashMap<>();
+    private final int thread_type;
+    private int cores;
+    private int video_threads = AUTO,   // "auto" as resolved by share()
+                audio_threads = AUTO;
+
+    public CodecThreading (String spec, String type, int jobs) {
+        int threads = AUTO;
+
+        for (String entry : spec.split(",")) {
+            int colon = entry.indexOf(':');
+
+            if (colon < 0) {
+                threads = parseCount(entry);
+            } else {
+                stream_threads.put(Integer.parseInt(entry.substring(0, colon).trim()), parseCount(entry.substring(colon + 1)));
+            }
+        }
+        this.default_threads = threads;
+        this.thread_type     = parseType(type);
+        this.cores           = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, jobs));
+    }
+
+    /** Automatic thread counts and both kinds of threading, for one job */
+    public static CodecThreading auto () {
+        return new CodecThreading("auto", "both", 1);
+    }
+
+    /** Automatic thread counts within a budget of cores granted to the job, e.g. by a BatchTranscode */
+    public static CodecThreading budget (int cores) {
+        CodecThreading threading = auto();
+
+        threading.cores = Math.max(1, cores);
+        return threading;
+    }
+
+    /**
+     * Splits the job's cores between the "auto" codecs it is about to open, so
+     * that together they stay within the budget instead of each taking all of
+     * it. Audio codecs hardly keep a thread busy and get one each; of the rest,
+     * the video decoders get a quarter and the video encoders, which is where
+     * the time goes, the remainder. Explicit counts are taken as given.
+     */
+    public static void share (CodecThreading decoding, int video_decoders, int audio_decoders,
+                              CodecThreading encoding, int video_encoders, int audio_encoders) {
+        int video   = Math.max(1, decoding.cores - audio_decoders - audio_encoders),
+            decode  = video_decoders == 0 ? 0 : video_encoders == 0 ? video : Math.max(1, video / 4);
+
+        decoding.video_threads = Math.max(1, decode / Math.max(1, video_decoders));
+        encoding.video_threads = Math.max(1, (video - decode) / Math.max(1, video_encoders));
+        decoding.audio_threads = 1;
+        encoding.audio_threads = 1;
+    }
+
+    private static int parseCount (String value) {
+        value = value.trim();
+        if (value.equals("auto")) {
+            return AUTO;
+        }
+
+        int threads = Integer.parseInt(value);
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + value);
+        }
+        return threads;
+    }
+
+    private static int parseType (String type) {
+        switch (type) {
+            case "frame":
+                return FF_THREAD_FRAME;
+            case "slice":
+                return FF_THREAD_SLICE;
+            case "both":
+                return FF_THREAD_FRAME | FF_THREAD_SLICE;
+            default:
+                throw new IllegalArgumentException("Thread type must be frame, slice or both: " + type);
+        }
+    }
+
+    /** Thread count used for a stream of the given media type */
+    public int threads (int stream_index, int codec_type) {
+        Integer threads = stream_threads.get(stream_index);
+        int count       = threads != null ? threads : default_threads,
+            shared      = codec_type == AVMEDIA_TYPE_AUDIO ? audio_threads : video_threads;
+
+        return count != AUTO ? count : shared != AUTO ? shared : cores;
+    }
+
+    /** Sets thread_count and thread_type on a codec context that is about to be opened */
+    public void apply (AVCodecContext ctx, int stream_index) {
+        ctx.thread_count(threads(stream_index, ctx.codec_type()));
+        ctx.thread_type(thread_type);
+    }
+
+    /**
+     * What an opened codec actually ended up with, e.g. "4 threads, frame".
+     * Codecs like libx264 run their own threads, so libavcodec reports no active type for them.
+     */
+    public static String describe (AVCodecContext ctx) {
+        int active = ctx.active_thread_type();
+        String type;
+
+        if ((active & FF_THREAD_FRAME) != 0) {
+            type = "frame";
+        } else if ((active & FF_THREAD_SLICE) != 0) {
+            type = "slice";
+        } else if (ctx.codec() != null && (ctx.codec().capabilities() & AV_CODEC_CAP_AUTO_THREADS) != 0) {
+            type = "threaded inside the codec";
+        } else {
+            type = "no threading";
+        }
+        return ctx.thread_count() + (ctx.thread_count() == 1 ? " thread, " : " threads, ") + type;
+    }
+}
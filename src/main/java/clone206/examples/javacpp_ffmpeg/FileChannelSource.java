@@ -0,0 +1,70 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Source reading from a FileChannel. The channel reads straight into the
+ * native AVIO buffer, and seeks are just channel repositioning.
+ */
+public class FileChannelSource implements AVIOSource {
+    private final FileChannel channel;
+
+    public FileChannelSource (FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Opens a file read-only. The channel is closed along with the source. */
+    public static FileChannelSource open (Path path) throws IOException {
+        return new FileChannelSource(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    @Override
+    public int read (ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public long position () throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public void position (long new_position) throws IOException {
+        channel.position(new_position);
+    }
+
+    @Override
+    public long size () throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public boolean seekable () {
+        return true;
+    }
+
+    @Override
+    public void close () throws IOException {
+        channel.close();
+    }
+}
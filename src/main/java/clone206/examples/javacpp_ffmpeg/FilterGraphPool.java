@@ -0,0 +1,167 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Bounded pool of configured filter graphs, keyed by the filter spec and the
+ * buffer source/sink parameters they were built for. Parsing the spec and
+ * running avfilter_graph_config() is a noticeable share of the runtime for
+ * batches of short clips, so a graph that is done with one input is drained
+ * and handed to the next input with the same parameters instead of being
+ * freed and rebuilt.
+ *
+ * libavfilter can't undo end of stream on a buffer source, so only graphs
+ * that never received a NULL frame can go back into the pool; the others
+ * must be {@link #discard discarded}. Graphs with filters that hold frames
+ * or history, like aresample, have to be flushed with a NULL frame at the
+ * end of an input, or what they hold is lost or turns up in the next input,
+ * so only those {@link #isStateless} reports as per-frame filters only can
+ * be released unflushed. In practice that means the transcoders' pass-through
+ * graphs; FilteringAudio always resamples, so it builds and frees its own.
+ *
+ * The pool holds at most filter.pool.size idle graphs (8 by default); the
+ * least recently released ones are freed first.
+ */
+public class FilterGraphPool {
+    /* Filters that don't keep anything from one frame to the next, including the auto-inserted converters */
+    private static final Set<String> STATELESS = new HashSet<>(Arrays.asList(
+            "buffer", "buffersink", "abuffer", "abuffersink", "null", "anull", "format", "aformat", "scale"));
+
+    private static FilterGraphPool shared;
+
+    /** A configured graph and its endpoints */
+    public static class Graph {
+        public final String key;
+        public final AVFilterGraph graph;
+        public final AVFilterContext source, sink;
+
+        public Graph (String key, AVFilterGraph graph, AVFilterContext source, AVFilterContext sink) {
+            this.key    = key;
+            this.graph  = graph;
+            this.source = source;
+            this.sink   = sink;
+        }
+    }
+
+    private final ArrayDeque<Graph> idle = new ArrayDeque<>();  // Most recently released first
+    private final int max_idle;
+    private long hits, misses;
+
+    public FilterGraphPool (int max_idle) {
+        this.max_idle = max_idle;
+    }
+
+    /** The pool shared by the tools in this JVM */
+    public static synchronized FilterGraphPool shared () {
+        if (shared == null) {
+            shared = new FilterGraphPool(Integer.getInteger("filter.pool.size", 8));
+        }
+        return shared;
+    }
+
+    /** Builds the pool key for a spec and the parameter strings of its endpoints */
+    public static String key (String filter_spec, String source_args, String sink_args) {
+        return filter_spec + '|' + source_args + '|' + sink_args;
+    }
+
+    /** Takes an idle graph built for key, or returns null when the caller has to build one. */
+    public synchronized Graph acquire (String key) {
+        for (Iterator<Graph> it = idle.iterator(); it.hasNext(); ) {
+            Graph g = it.next();
+
+            if (g.key.equals(key)) {
+                it.remove();
+                hits++;
+                return g;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Returns a graph that never received end of stream. Frames still waiting
+     * in the sink are dropped, so they can't leak into the next input.
+     */
+    public void release (Graph g) {
+        AVFrame frame = av_frame_alloc();
+
+        try {
+            while (av_buffersink_get_frame(g.sink, frame) >= 0) {
+                av_frame_unref(frame);
+            }
+        } finally {
+            av_frame_free(frame);
+        }
+
+        Graph evicted = null;
+
+        synchronized (this) {
+            idle.addFirst(g);
+            if (idle.size() > max_idle) {
+                evicted = idle.removeLast();
+            }
+        }
+        if (evicted != null) {
+            discard(evicted);
+        }
+    }
+
+    /** Frees a graph that can't be reused, e.g. after it was flushed */
+    public void discard (Graph g) {
+        avfilter_graph_free(g.graph);
+    }
+
+    /** Whether every filter in the graph works frame by frame, so it can be reused without a flush */
+    public static boolean isStateless (AVFilterGraph graph) {
+        for (int i = 0; i < graph.nb_filters(); i++) {
+            AVFilterContext filter = graph.filters(i);
+
+            if (!STATELESS.contains(filter.filter().name().getString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized long hits () {
+        return hits;
+    }
+
+    public synchronized long misses () {
+        return misses;
+    }
+
+    /** Frees all idle graphs */
+    public synchronized void clear () {
+        Graph g;
+
+        while ((g = idle.poll()) != null) {
+            discard(g);
+        }
+    }
+}
@@ -19,6 +19,15 @@
 package clone206.examples.javacpp_ffmpeg;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.bytedeco.javacpp.*;
 
 import static org.bytedeco.javacpp.avcodec.*;
@@ -41,12 +50,35 @@ public class FilteringAudio {
                            buffersrc_ctx    = new AVFilterContext();
     static AVFilterGraph filter_graph       = new AVFilterGraph();
     static int audio_stream_index           = -1;
+    static AVIOInput input_io               = null;
+    static PcmWriter pcm_out                = null;
+    static List<SpscRingBuffer> pcm_rings   = new ArrayList<>();
+    static Graph graph                      = null;
+
+    /* Where the time goes, see StageMetrics */
+    static final StageMetrics.Stage READ    = StageMetrics.stage("read"),
+                                    DECODE  = StageMetrics.stage("decode"),
+                                    FILTER  = StageMetrics.stage("filter"),
+                                    WRITE   = StageMetrics.stage("write");
+
+    /* A configured filtergraph and its endpoints */
+    static class Graph {
+        final AVFilterGraph graph;
+        final AVFilterContext source, sink;
+
+        Graph (AVFilterGraph graph, AVFilterContext source, AVFilterContext sink) {
+            this.graph  = graph;
+            this.source = source;
+            this.sink   = sink;
+        }
+    }
 
     /* Custom implementation of missing av_err2str() ffmpeg function */
     static String my_av_err2str (int err) {
-        BytePointer e = new BytePointer(512);
-        av_strerror(err, e, 512);
-        return e.getString().substring(0, (int) BytePointer.strlen(e));
+        try (BytePointer e = new BytePointer(512)) {
+            av_strerror(err, e, 512);
+            return e.getString().substring(0, (int) BytePointer.strlen(e));
+        }
     }
     
     /* Check for error code returned by ffmpeg func and throw error */
@@ -58,31 +90,116 @@ public class FilteringAudio {
 
     /* Open an input file and the required decoder. */
     static void open_input_file (String filename) {
-        AVCodec dec = new AVCodec();
-        
+        open_container(filename);
+        open_decoder();
+    }
+
+    /* Open a custom source (see AVIOSource) and the required decoder. The name is only used for format guessing. */
+    static void open_input_source (AVIOSource source, String name) {
+        open_container(source, name);
+        open_decoder();
+    }
+
+    /* Open an input file, or stdin for "-", without opening any decoder. */
+    static void open_container (String filename) {
+        if (filename.equals("-")) {
+            /* Read from stdin, made seekable by a page cache */
+            open_container(new CachedStreamSource(System.in), "pipe:");
+            return;
+        }
+
         /* Open the input file to read from it. */
+        fmt_ctx = new AVFormatContext(null);
         check( avformat_open_input(fmt_ctx, filename, null, null) );
-        /* Get information on the input file (number of streams etc.). */
-        check( avformat_find_stream_info(fmt_ctx, (PointerPointer) null) );
+        find_stream_info(filename);
+    }
+
+    static void open_container (AVIOSource source, String name) {
+        fmt_ctx = avformat_alloc_context();
+        input_io = new AVIOInput(source);
+        check( input_io.openInput(fmt_ctx, name) );
+        find_stream_info(name);
+    }
+
+    /* Get information on the input file (number of streams etc.), from the probe cache if enabled. */
+    static void find_stream_info (String filename) {
+        check( ProbeCache.findStreamInfo(fmt_ctx, filename) );
+    }
 
+    /* Select the audio stream of the opened input and open its decoder. */
+    static void open_decoder () {
         /* select the audio stream */
-        check( audio_stream_index = av_find_best_stream(fmt_ctx, AVMEDIA_TYPE_AUDIO, -1, -1, dec, 0) );
+        check( audio_stream_index = av_find_best_stream(fmt_ctx, AVMEDIA_TYPE_AUDIO, -1, -1, (AVCodec) null, 0) );
+
+        dec_ctx = open_stream_decoder(fmt_ctx.streams(audio_stream_index));
+    }
+
+    /* Create and open a decoder for one stream */
+    static AVCodecContext open_stream_decoder (AVStream stream) {
+        AVCodec dec = avcodec_find_decoder(stream.codecpar().codec_id());
+
+        if (dec == null || dec.isNull()) {
+            throw new RuntimeException("No decoder for stream " + stream.index());
+        }
 
         /* create decoding context */
-        dec_ctx = avcodec_alloc_context3(dec);
+        AVCodecContext dec_ctx = avcodec_alloc_context3(dec);
 
         if (dec_ctx.isNull()) {
             throw new RuntimeException( "Error: " + my_av_err2str(AVERROR_ENOMEM()) );
         }
 
-        check( avcodec_parameters_to_context(dec_ctx, fmt_ctx.streams(audio_stream_index).codecpar()) );
+        check( avcodec_parameters_to_context(dec_ctx, stream.codecpar()) );
         av_opt_set_int(dec_ctx, "refcounted_frames", 1, 0);
 
         /* init the audio decoder */
         check( avcodec_open2(dec_ctx, dec, (AVDictionary) null) );
+        return dec_ctx;
+    }
+
+    /* Parameters of the abuffer source, i.e. of the decoded audio */
+    static String abuffer_args () {
+        return abuffer_args(fmt_ctx.streams(audio_stream_index), dec_ctx);
+    }
+
+    static String abuffer_args (AVStream stream, AVCodecContext dec_ctx) {
+        AVRational time_base = stream.time_base();
+
+        if (dec_ctx.channel_layout() == 0) {
+            dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
+        }
+
+        return String.format(
+                "time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=0x%x",
+                time_base.num(), time_base.den(), dec_ctx.sample_rate(),
+                av_get_sample_fmt_name(dec_ctx.sample_fmt()).getString(), dec_ctx.channel_layout()
+        );
+    }
+
+    /* Build the graph for the current input */
+    static void open_filters (String filters_descr) {
+        graph          = init_filters(filters_descr, abuffer_args());
+        filter_graph   = graph.graph;
+        buffersrc_ctx  = graph.source;
+        buffersink_ctx = graph.sink;
+    }
+
+    /*
+     * Done with the graph at the end of an input: flush it with a null frame, so
+     * the samples the resampler still holds are written out, and free it, as it
+     * takes no frames after that.
+     */
+    static void close_filters (AVFrame filt_frame) throws IOException {
+        filter_frame(null, filt_frame);
+        avfilter_graph_free(graph.graph);
+        graph = null;
     }
 
-    static void init_filters (String filters_descr) {
+    static Graph init_filters (String filters_descr, String abuffer_args) {
+        AVFilterGraph filter_graph     = null;
+        AVFilterContext buffersrc_ctx  = new AVFilterContext(),
+                        buffersink_ctx = new AVFilterContext();
+        boolean configured             = false;
         BytePointer args      = new BytePointer(512);
         AVFilter abuffersrc   = avfilter_get_by_name("abuffer"),
                  abuffersink  = avfilter_get_by_name("abuffersink");
@@ -102,8 +219,7 @@ public class FilteringAudio {
         out_sample_rates.putInt(0, 8000);
         out_sample_rates.putInt(4, -1);
 
-        AVFilterLink outlink = new AVFilterLink();
-        AVRational time_base = fmt_ctx.streams(audio_stream_index).time_base();
+        AVFilterLink outlink = null;
 
         try {
             filter_graph = avfilter_graph_alloc();
@@ -113,17 +229,11 @@ public class FilteringAudio {
             }
 
             /* buffer audio source: the decoded frames from the decoder will be inserted here. */ 
-            if (dec_ctx.channel_layout() == 0) {
-                dec_ctx.channel_layout( av_get_default_channel_layout(dec_ctx.channels()) );
-            }
+            args.putString( abuffer_args );
 
-            args.putString(String.format(
-                        "time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=0x%x",
-                        time_base.num(), time_base.den(), dec_ctx.sample_rate(),
-                        av_get_sample_fmt_name(dec_ctx.sample_fmt()).getString(), dec_ctx.channel_layout()
-            ));
-
-            check( avfilter_graph_create_filter(buffersrc_ctx, abuffersrc, new BytePointer("in"), args, null, filter_graph) );
+            try (BytePointer name = new BytePointer("in")) {
+                check( avfilter_graph_create_filter(buffersrc_ctx, abuffersrc, name, args, null, filter_graph) );
+            }
 
             /* buffer audio sink: to terminate the filter chain. */
             check( avfilter_graph_create_filter(buffersink_ctx, abuffersink, "out", null, null, filter_graph) );
@@ -144,7 +254,7 @@ public class FilteringAudio {
              * filter input label is not specified, it is set to "in" by
              * default.
              */
-            outputs.name( new BytePointer("in") );
+            outputs.name( new BytePointer(av_strdup("in")) );    // Freed by avfilter_inout_free, so not a JavaCPP allocation
             outputs.filter_ctx(buffersrc_ctx);
             outputs.pad_idx(0);
             outputs.next(null);
@@ -155,7 +265,7 @@ public class FilteringAudio {
              * filter output label is not specified, it is set to "out" by
              * default.
              */
-            inputs.name( new BytePointer("out") );
+            inputs.name( new BytePointer(av_strdup("out")) );
             inputs.filter_ctx(buffersink_ctx);
             inputs.pad_idx(0);
             inputs.next(null);
@@ -165,7 +275,7 @@ public class FilteringAudio {
 
             /* Print summary of the sink buffer
              * Note: args buffer is reused to store channel layout string */
-            args = new BytePointer(512); // Clear out args string for reuse
+            args.zero(); // Clear out args string for reuse
             outlink = buffersink_ctx.inputs(0);
             av_get_channel_layout_string( args, (int) args.capacity(), -1, outlink.channel_layout() );
 
@@ -173,34 +283,258 @@ public class FilteringAudio {
                 "Output: srate:%dHz fmt:%s chlayout:%s\n",
                 outlink.sample_rate(),
                 ( av_get_sample_fmt_name( outlink.format() ) ).getString(),
-                args.getString()
+                args.getString().substring(0, (int) BytePointer.strlen(args))
             ) );
+
+            configured = true;
+            return new Graph(filter_graph, buffersrc_ctx, buffersink_ctx);
         }
         finally {
             avfilter_inout_free(inputs);
             avfilter_inout_free(outputs);
+            if (!configured && filter_graph != null) {
+                avfilter_graph_free(filter_graph);
+            }
+            // The graph keeps copies of the options, free ours now rather than whenever the GC gets to them
+            args.close();
+            out_sample_fmts.close();
+            out_channel_layouts.close();
+            out_sample_rates.close();
+        }
+    }
+
+    /* av_read_frame, recorded as the read stage */
+    static int read_frame (AVFormatContext fmt_ctx, AVPacket packet) {
+        long start = StageMetrics.start();
+        int  ret   = av_read_frame(fmt_ctx, packet);
+
+        READ.record(start, 0, ret < 0 ? 0 : packet.size(), 0);
+        return ret;
+    }
+
+    /* Push a decoded frame (null at the end of the last input) into the filtergraph and write out what comes back */
+    static void filter_frame (AVFrame frame, AVFrame filt_frame) throws IOException {
+        filter_frame(graph, pcm_out, frame, filt_frame);
+    }
+
+    static void filter_frame (Graph graph, PcmWriter out, AVFrame frame, AVFrame filt_frame) throws IOException {
+        int ret;
+        /* one filter call is the push and the pulls, not the writing in between */
+        long start   = StageMetrics.start();
+        long frames  = 0,
+             samples = 0;
+
+        if (av_buffersrc_add_frame_flags(graph.source, frame, AV_BUFFERSRC_FLAG_KEEP_REF) < 0) {
+            System.err.println("Error while feeding the audio filtergraph");
+            return;
+        }
+        long elapsed = StageMetrics.since(start);
+
+        /* pull filtered audio from the filtergraph */
+        while (true) {
+            start    = StageMetrics.start();
+            ret      = av_buffersink_get_frame(graph.sink, filt_frame);
+            elapsed += StageMetrics.since(start);
+
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                break;
+            }
+            if (ret < 0) {
+                throw new RuntimeException("Couldn't get frame from filtergraph");
+            }
+            frames++;
+            samples += filt_frame.nb_samples();
+
+            long written = out.bytesWritten();
+
+            start = StageMetrics.start();
+            out.write(filt_frame);
+            WRITE.record(start, 1, out.bytesWritten() - written, filt_frame.nb_samples());
+            av_frame_unref(filt_frame);
+        }
+        FILTER.add(elapsed, frames, 0, samples);
+    }
+
+    /* Send a packet (null to drain the decoder) and filter every frame it decodes to */
+    static void decode_packet (AVPacket packet, AVFrame frame, AVFrame filt_frame) throws IOException {
+        decode_packet(dec_ctx, graph, pcm_out, packet, frame, filt_frame);
+    }
+
+    static void decode_packet (AVCodecContext dec_ctx, Graph graph, PcmWriter out,
+                               AVPacket packet, AVFrame frame, AVFrame filt_frame) throws IOException {
+        int ret;
+        /* one decode call is the send and the receives, not the filtering in between */
+        long start   = StageMetrics.start();
+        long frames  = 0,
+             samples = 0;
+
+        check( avcodec_send_packet(dec_ctx, packet) );
+        long elapsed = StageMetrics.since(start);
+
+        while (true) {
+            start    = StageMetrics.start();
+            ret      = avcodec_receive_frame(dec_ctx, frame);
+            elapsed += StageMetrics.since(start);
+
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                break;
+            }
+            else if (ret < 0) {
+                throw new RuntimeException("Error while receiving frame from the decoder");
+            }
+            frames++;
+            samples += frame.nb_samples();
+
+            /* push the audio data from decoded frame into the filtergraph */
+            filter_frame(graph, out, frame, filt_frame);
+            av_frame_unref(frame);
+        }
+        DECODE.add(elapsed, frames, packet == null ? 0 : packet.size(), samples);
+    }
+
+    /* Close the current input and its decoder */
+    static void close_input () throws IOException {
+        avcodec_free_context(dec_ctx);
+        avformat_close_input(fmt_ctx);
+        if (input_io != null) {
+            input_io.close();
+            input_io = null;
         }
     }
 
-    static void print_frame (final AVFrame frame) throws IOException {
-        final int n         = frame.nb_samples() * av_get_channel_layout_nb_channels( frame.channel_layout() );
-        byte[] sample_bytes = new byte[2];
+    /* Open a PCM output: the file if given, else the stdout file descriptor, optionally behind a ring buffer */
+    static PcmWriter open_output (String output, int ring_size, SpscRingBuffer.Policy policy) throws IOException {
+        WritableByteChannel out = output != null
+                ? FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : new FileOutputStream(FileDescriptor.out).getChannel();
+
+        if (ring_size > 0) {
+            /* A separate thread does the output I/O, so a slow reader doesn't stall decoding */
+            SpscRingBuffer ring = new SpscRingBuffer(out, ring_size, policy);
+
+            pcm_rings.add(ring);
+            out = ring;
+        }
+        return new PcmWriter(out);
+    }
+
+    /*
+     * Filter several audio streams of one input in a single demuxing pass. Every
+     * selected stream (all audio streams when selection is null) gets its own
+     * decoder, filtergraph, worker thread and output file, named by formatting
+     * output_pattern with the stream index.
+     */
+    static void filter_streams (String filename, Set<Integer> selection, String output_pattern,
+                                int ring_size, SpscRingBuffer.Policy policy) throws IOException, InterruptedException {
+        AVPacket packet                 = new AVPacket();
+        List<AudioStreamWorker> workers = new ArrayList<>();
+        AudioStreamWorker[] by_stream;
+        int ret                         = 0;
+
+        open_container(filename);
+        by_stream = new AudioStreamWorker[fmt_ctx.nb_streams()];
+
+        try {
+            for (int i = 0; i < fmt_ctx.nb_streams(); i++) {
+                AVStream stream = fmt_ctx.streams(i);
+
+                if (stream.codecpar().codec_type() != AVMEDIA_TYPE_AUDIO || (selection != null && !selection.contains(i))) {
+                    continue;
+                }
+                by_stream[i] = new AudioStreamWorker(stream, filter_descr,
+                        open_output(String.format(output_pattern, i), ring_size, policy), 64);
+                workers.add(by_stream[i]);
+            }
+            if (workers.isEmpty()) {
+                throw new RuntimeException("No audio streams selected in " + filename);
+            }
+            for (AudioStreamWorker worker : workers) {
+                worker.start();
+            }
+
+            /* read all packets and hand each one to its stream's worker, until one of them fails */
+            while (!any_failed(workers) && (ret = read_frame(fmt_ctx, packet)) >= 0) {
+                AudioStreamWorker worker = packet.stream_index() < by_stream.length ? by_stream[packet.stream_index()] : null;
 
+                if (worker != null) {
+                    worker.submit(packet);
+                }
+                av_packet_unref(packet);
+            }
+            if (ret < 0 && ret != AVERROR_EOF) {
+                check(ret);
+            }
+        }
+        finally {
+            for (AudioStreamWorker worker : workers) {
+                worker.finish();
+            }
+            for (AudioStreamWorker worker : workers) {
+                worker.close();
+            }
+            packet.close();
+        }
+    }
 
-        for (int i = 0; i <= n*2 - 2; i += 2) {
-            sample_bytes[0] = frame.data(0).get(i);
-            sample_bytes[1] = frame.data(0).get(i+1);
-            System.out.write( sample_bytes );
+    /* The failure itself is rethrown by the worker's close() */
+    static boolean any_failed (List<AudioStreamWorker> workers) {
+        for (AudioStreamWorker worker : workers) {
+            if (worker.failed()) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    static void usage () {
+        System.err.println("Usage: filtering_audio.java [-r ring_bytes] [-d] [-o output_pcm_file] <file|->... | " + player);
+        System.err.println("       filtering_audio.java [-r ring_bytes] [-d] -a|-s stream[,stream...] -o output_%d.pcm <file|->");
+        System.exit(-1);
     }
 
     public static void main (String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Usage: filtering_audio.java <file> | " + player);
-            System.exit(-1);
+        /* Off-heap ring between the filtergraph and the output writer; 0 writes directly */
+        int ring_size                = SpscRingBuffer.DEFAULT_CAPACITY;
+        SpscRingBuffer.Policy policy = SpscRingBuffer.Policy.BLOCK;
+        String output                = null;
+        boolean all_streams          = false;
+        Set<Integer> selection       = null;
+        int argi                     = 0;
+
+        for (; argi < args.length && args[argi].startsWith("-") && args[argi].length() > 1; argi++) {
+            if (args[argi].equals("-r") && argi + 1 < args.length) {
+                ring_size = Integer.parseInt(args[++argi]);
+            }
+            else if (args[argi].equals("-o") && argi + 1 < args.length) {
+                output = args[++argi];
+            }
+            else if (args[argi].equals("-d")) {
+                /* Drop frames instead of stalling the decoder when the reader falls behind */
+                policy = SpscRingBuffer.Policy.DROP;
+            }
+            else if (args[argi].equals("-a")) {
+                all_streams = true;
+            }
+            else if (args[argi].equals("-s") && argi + 1 < args.length) {
+                selection = new HashSet<>();
+                for (String index : args[++argi].split(",")) {
+                    selection.add(Integer.parseInt(index.trim()));
+                }
+            }
+            else {
+                usage();
+            }
+        }
+        args = Arrays.copyOfRange(args, argi, args.length);
+
+        boolean multi_stream = all_streams || selection != null;
+
+        if (args.length < 1 || (multi_stream && (args.length != 1 || output == null || !output.contains("%d")))) {
+            usage();
         }
 
         int ret             = 0;
+        boolean failed      = false;
         AVPacket packet     = new AVPacket();
         AVFrame frame       = av_frame_alloc(),
                 filt_frame  = av_frame_alloc();
@@ -213,67 +547,78 @@ public class FilteringAudio {
             av_register_all();
             avfilter_register_all();
 
-            open_input_file(args[0]);
-            init_filters(filter_descr);
-
-            /* read all packets */
-            while (true) {
-                check( ret = av_read_frame(fmt_ctx, packet) );
-
-                if (packet.stream_index() == audio_stream_index) {
-                    check( avcodec_send_packet(dec_ctx, packet) );
-
-                    while (ret >= 0) {
-                        /* push the audio data from decoded frame into the filtergraph */
-                        ret = avcodec_receive_frame(dec_ctx, frame);
-
-                        if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
-                            break;
-                        }
-                        else if (ret < 0) {
-                            throw new RuntimeException("Error while receiving frame from the decoder");
-                        }
-
-                        if (ret >= 0) {
-                            /* push the audio data from decoded frame into the filtergraph */
-                            if (av_buffersrc_add_frame_flags(buffersrc_ctx, frame, AV_BUFFERSRC_FLAG_KEEP_REF) < 0) {
-                                System.err.println("Error while feeding the audio filtergraph");
-                                break;
-                            }
-
-                            /* pull filtered audio from the filtergraph */
-                            while (true) {
-                                ret = av_buffersink_get_frame(buffersink_ctx, filt_frame);
-
-                                if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
-                                    break;
-                                }
-                                if (ret < 0) {
-                                    throw new RuntimeException("Couldn't get frame from filtergraph");
-                                }
-                                print_frame(filt_frame);
-                                av_frame_unref(filt_frame);
-                            }
-                            av_frame_unref(frame);
-                        }
+            if (multi_stream) {
+                filter_streams(args[0], selection, output, ring_size, policy);
+                return;
+            }
+
+            /* Raw PCM goes to the output file if given, else straight to the stdout file descriptor */
+            pcm_out = open_output(output, ring_size, policy);
+
+            for (int i = 0; i < args.length; i++) {
+                open_input_file(args[i]);
+                open_filters(filter_descr);
+
+                /* read all packets */
+                while ((ret = read_frame(fmt_ctx, packet)) >= 0) {
+                    if (packet.stream_index() == audio_stream_index) {
+                        decode_packet(packet, frame, filt_frame);
                     }
+                    av_packet_unref(packet);
                 }
-                av_packet_unref(packet);
+                if (ret != AVERROR_EOF) {
+                    check(ret);
+                }
+                decode_packet(null, frame, filt_frame);
+                close_filters(filt_frame);
+                close_input();
             }
         }
+        catch (RuntimeException | InterruptedException e) {
+            System.err.println("Error occurred: " + e.getMessage());
+            failed = true;
+        }
+        catch (IOException e) {
+            /* e.g. the output can't be created, or the reader of a ring buffer went away */
+            System.err.println("I/O error: " + e);
+            failed = true;
+        }
         finally {
-            avfilter_graph_free(filter_graph);
-            avcodec_free_context(dec_ctx);
-            avformat_close_input(fmt_ctx);
+            try {
+                if (pcm_out != null) {
+                    pcm_out.close();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("I/O error: " + e);
+                failed = true;
+            }
+            for (SpscRingBuffer ring : pcm_rings) {
+                if (ring.droppedWrites() > 0) {
+                    System.err.println(String.format("Dropped %d frames (%d bytes) the reader couldn't keep up with",
+                                ring.droppedWrites(), ring.droppedBytes()));
+                }
+            }
+            if (graph != null) {
+                avfilter_graph_free(graph.graph);
+            }
+            try {
+                close_input();
+            }
+            catch (IOException e) {
+                System.err.println("I/O error: " + e);
+                failed = true;
+            }
             av_frame_free(frame);
             av_frame_free(filt_frame);
+            packet.close();
 
-            if (ret < 0 && ret != AVERROR_EOF) {
+            if (!failed && ret < 0 && ret != AVERROR_EOF) {
                 System.err.println("Error occurred: " + my_av_err2str(ret));
                 System.exit(-1);
             }
 
-            System.exit(0);
+            System.exit(failed ? -1 : 0);
         }
     }
 }
@@ -0,0 +1,97 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Recycles AVFrames instead of allocating and freeing one per decoded or
+ * filtered frame. A released frame drops its data references and is kept
+ * for the next acquire(); the data buffers themselves come from the
+ * codecs' and filters' own buffer pools. Safe to use from several threads.
+ *
+ * The counters show whether the steady state really is allocation free:
+ * allocated() stops growing once the pool covers the frames in flight.
+ */
+public class FramePool {
+    private final BlockingQueue<AVFrame> free;
+    private final AtomicLong allocated = new AtomicLong(),
+                             reused    = new AtomicLong(),
+                             freed     = new AtomicLong();
+
+    /** capacity bounds the idle frames kept; more released at once are freed */
+    public FramePool (int capacity) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public AVFrame acquire () {
+        AVFrame frame = free.poll();
+
+        if (frame != null) {
+            reused.incrementAndGet();
+            return frame;
+        }
+
+        frame = av_frame_alloc();
+        if (frame == null || frame.isNull()) {
+            throw new OutOfMemoryError("Could not allocate frame");
+        }
+        allocated.incrementAndGet();
+        return frame;
+    }
+
+    /** Unreferences the frame's data and keeps it for reuse */
+    public void release (AVFrame frame) {
+        av_frame_unref(frame);
+
+        if (!free.offer(frame)) {
+            av_frame_free(frame);
+            freed.incrementAndGet();
+        }
+    }
+
+    /** Frees every idle frame */
+    public void clear () {
+        AVFrame frame;
+
+        while ((frame = free.poll()) != null) {
+            av_frame_free(frame);
+            freed.incrementAndGet();
+        }
+    }
+
+    public long allocated () {
+        return allocated.get();
+    }
+
+    public long reused () {
+        return reused.get();
+    }
+
+    public long freed () {
+        return freed.get();
+    }
+
+    @Override
+    public String toString () {
+        return String.format("%d allocated, %d reused, %d freed", allocated(), reused(), freed());
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+/**
+ * Just enough JSON writing for the tools' machine-readable output,
+ * so the examples don't pull in a JSON library.
+ */
+final class Json {
+    private Json () {
+    }
+
+    /* Appends s as a quoted, escaped JSON string, or null */
+    static StringBuilder quote (StringBuilder sb, String s) {
+        if (s == null) {
+            return sb.append("null");
+        }
+
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n");  break;
+                case '\r': sb.append("\\r");  break;
+                case '\t': sb.append("\\t");  break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+
+    /* Appends a number, mapping the values JSON can't represent to null */
+    static StringBuilder number (StringBuilder sb, double d) {
+        return Double.isNaN(d) || Double.isInfinite(d) ? sb.append("null") : sb.append(d);
+    }
+
+    /* Appends ,"name": (the comma is left out after an opening brace) */
+    static StringBuilder name (StringBuilder sb, String name) {
+        char last = sb.length() == 0 ? '{' : sb.charAt(sb.length() - 1);
+
+        if (last != '{' && last != '[') {
+            sb.append(',');
+        }
+        return quote(sb, name).append(':');
+    }
+}
@@ -0,0 +1,568 @@
+package clone206.examples.javacpp_ffmpeg;
+
+
+import org.bytedeco.javacpp.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.presets.avutil.AVERROR_EAGAIN;
+
+/**
+ * Adaptive bitrate ladder from a single decode: the video is decoded once and
+ * every rendition gets a reference to each decoded frame. Every rendition has
+ * its own thread, which scales the frames in its own filter graph and encodes
+ * them, and its own output file and mux thread, so the renditions are scaled
+ * and encoded concurrently. Other streams (audio,
+ * subtitles) are copied into every output unchanged.
+ *
+ * All renditions get the same fixed GOP, with scene cut detection off, so
+ * their keyframes line up and a player can switch between them at any
+ * segment boundary.
+ *
+ * Like Transcoding, each instance is one TranscodeSession.
+ *
+ * @see Transcoding
+ */
+public class LadderTranscode implements TranscodeSession {
+    /** One output of the ladder: a name for the file, a frame size and a video bit rate */
+    static class Rendition {
+        final String name;
+        final int width;    /* -2 keeps the aspect ratio, rounded to an even size */
+        final int height;
+        final long bitRate;
+
+        Rendition(String name, int width, int height, long bitRate) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.bitRate = bitRate;
+        }
+
+        /* "name:WxH:bitrate,...", e.g. "720p:-2x720:2800k,360p:-2x360:800k" */
+        static List<Rendition> parse(String spec) {
+            List<Rendition> renditions = new ArrayList<>();
+
+            for (String entry : spec.split(",")) {
+                String[] parts = entry.trim().split(":");
+                String[] size = parts.length == 3 ? parts[1].split("x") : new String[0];
+
+                if (size.length != 2) {
+                    throw new IllegalArgumentException("Rendition is not name:WxH:bitrate: " + entry);
+                }
+                renditions.add(new Rendition(parts[0], Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                        parseBitRate(parts[2])));
+            }
+            return renditions;
+        }
+
+        static long parseBitRate(String rate) {
+            String r = rate.toLowerCase();
+
+            if (r.endsWith("k")) {
+                return (long) (Double.parseDouble(r.substring(0, r.length() - 1)) * 1000);
+            } else if (r.endsWith("m")) {
+                return (long) (Double.parseDouble(r.substring(0, r.length() - 1)) * 1000000);
+            }
+            return Long.parseLong(r);
+        }
+    }
+
+    /* Queued after the last frame of a branch */
+    static final AVFrame END_OF_STREAM = new AVFrame();
+
+    /* Scaler, encoder and output of one rendition, fed with decoded frames by the decoding thread */
+    class Branch implements Runnable {
+        final Rendition rendition;
+        final BlockingQueue<AVFrame> frames = new ArrayBlockingQueue<>(8);
+        final Thread thread;
+        final int[] outputIndex;    /* per input stream, -1 when not in the output */
+        AVFilterGraph filterGraph;
+        AVFilterContext source;
+        AVFilterContext sink;
+        AVRational sinkTimeBase;
+        AVCodecContext encoderContext;
+        AVRational encoderTimeBase, videoTimeBase;
+        AVFormatContext outputFormatContext;
+        AVIOOutput outputIO;
+        PacketMuxer muxer;
+        volatile Throwable error;
+
+        Branch(Rendition rendition, int nbStreams) {
+            this.rendition = rendition;
+            this.outputIndex = new int[nbStreams];
+            this.thread = new Thread(this, "rendition " + rendition.name);
+        }
+
+        /* queues a reference to the frame's data, the caller keeps its own */
+        void submit(AVFrame frame) throws InterruptedException {
+            AVFrame queued = Transcoding.framePool.acquire();
+            Transcoding.check(av_frame_ref(queued, frame));
+            frames.put(queued);
+        }
+
+        @Override
+        public void run() {
+            AVFrame frame = null;
+            AVFrame filtered = av_frame_alloc();
+            AVPacket packet = av_packet_alloc();
+
+            try {
+                while ((frame = frames.take()) != END_OF_STREAM) {
+                    filter(frame, filtered, packet);
+                    Transcoding.framePool.release(frame);
+                }
+                filter(null, filtered, packet);
+                encode(null, packet);
+            } catch (Throwable t) {
+                error = t;
+
+                /* keep draining, so the decoding thread never blocks on a dead branch */
+                try {
+                    while (frame != END_OF_STREAM) {
+                        if (frame != null) {
+                            Transcoding.framePool.release(frame);
+                        }
+                        frame = frames.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                av_frame_free(filtered);
+                av_packet_free(packet);
+                try {
+                    muxer.finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /* Push a decoded frame, null at the end, through the scaler and encode what comes out */
+        void filter(AVFrame frame, AVFrame filtered, AVPacket packet) throws InterruptedException {
+            long start = StageMetrics.start();
+            long frames = 0;
+
+            Transcoding.check(av_buffersrc_add_frame_flags(source, frame, 0));
+            long elapsed = StageMetrics.since(start);
+
+            while (true) {
+                start = StageMetrics.start();
+                int ret = av_buffersink_get_frame(sink, filtered);
+                elapsed += StageMetrics.since(start);
+
+                if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
+                    break;
+                }
+                Transcoding.check(ret);
+                frames++;
+
+                if (filtered.pts() != AV_NOPTS_VALUE) {
+                    filtered.pts(av_rescale_q(filtered.pts(), sinkTimeBase, encoderTimeBase));
+                }
+                filtered.pict_type(AV_PICTURE_TYPE_NONE);
+                encode(filtered, packet);
+                av_frame_unref(filtered);
+            }
+            Transcoding.FILTER.add(elapsed, frames, 0, 0);
+        }
+
+        /* send a frame, null to flush, and mux every packet that comes out */
+        void encode(AVFrame frame, AVPacket packet) throws InterruptedException {
+            long start = StageMetrics.start();
+            long frames = 0;
+            long bytes = 0;
+
+            Transcoding.check(avcodec_send_frame(encoderContext, frame));
+            while (true) {
+                int ret = avcodec_receive_packet(encoderContext, packet);
+
+                if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
+                    break;
+                }
+                Transcoding.check(ret);
+                frames++;
+                bytes += packet.size();
+
+                packet.stream_index(outputIndex[videoStream]);
+                av_packet_rescale_ts(packet, encoderTimeBase, videoTimeBase);
+                muxer.submit(packet);
+            }
+            Transcoding.ENCODE.record(start, frames, bytes, 0);
+        }
+    }
+
+    final String input;
+    final String outputPattern;
+    final List<Rendition> renditions;
+    String videoEncoder;    /* null for the input's codec */
+    CodecThreading decoderThreading = CodecThreading.auto();
+    CodecThreading encoderThreading = CodecThreading.auto();
+
+    AVFormatContext inputFormatContext;
+    int videoStream = -1;
+    AVCodecContext decoderContext;
+    final List<Branch> branches = new ArrayList<>();
+    boolean opened;
+
+    /* outputPattern names the outputs, with %s replaced by the rendition name */
+    LadderTranscode(String input, String outputPattern, List<Rendition> renditions) {
+        if (!outputPattern.contains("%s")) {
+            throw new IllegalArgumentException("Output name needs a %s for the rendition: " + outputPattern);
+        }
+        this.input = input;
+        this.outputPattern = outputPattern;
+        this.renditions = renditions;
+    }
+
+    void openInput() {
+        inputFormatContext = new AVFormatContext(null);
+        Transcoding.check(avformat_open_input(inputFormatContext, input, null, null));
+        Transcoding.check(ProbeCache.findStreamInfo(inputFormatContext, input));
+
+        videoStream = av_find_best_stream(inputFormatContext, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+        if (videoStream < 0) {
+            throw new RuntimeException("No video stream in " + input);
+        }
+
+        AVStream stream = inputFormatContext.streams(videoStream);
+        AVCodec decoder = avcodec_find_decoder(stream.codecpar().codec_id());
+
+        if (decoder == null) {
+            throw new RuntimeException("No decoder for " + avcodec_get_name(stream.codecpar().codec_id()).getString());
+        }
+        decoderContext = avcodec_alloc_context3(decoder);
+        Transcoding.check(avcodec_parameters_to_context(decoderContext, stream.codecpar()));
+        decoderContext.framerate(av_guess_frame_rate(inputFormatContext, stream, null));
+        decoderContext.pkt_timebase(stream.time_base());
+        /* one decoder and an encoder per rendition share the job's cores */
+        CodecThreading.share(decoderThreading, 1, 0, encoderThreading, renditions.size(), 0);
+        decoderThreading.apply(decoderContext, videoStream);
+        Transcoding.check(avcodec_open2(decoderContext, decoder, (AVDictionary) null));
+        System.err.println(String.format("Stream #%d decoder %s: %s", videoStream,
+                decoder.name().getString(), CodecThreading.describe(decoderContext)));
+        av_dump_format(inputFormatContext, 0, input, 0);
+    }
+
+    AVCodec findEncoder() {
+        AVCodec encoder = videoEncoder != null ? avcodec_find_encoder_by_name(videoEncoder)
+                : avcodec_find_encoder(decoderContext.codec_id());
+
+        if (encoder == null) {
+            throw new RuntimeException("Encoder not found: "
+                    + (videoEncoder != null ? videoEncoder : avcodec_get_name(decoderContext.codec_id()).getString()));
+        }
+        return encoder;
+    }
+
+    /*
+     * A graph per rendition, run by its branch thread:
+     * buffer -> scale,format -> buffersink
+     */
+    void initFilters(AVCodec encoder) {
+        AVStream stream = inputFormatContext.streams(videoStream);
+        int pixFmt = encoder.pix_fmts() != null && encoder.pix_fmts().asBuffer() != null
+                ? encoder.pix_fmts().get(0) : decoderContext.pix_fmt();
+        String args = String.format("video_size=%dx%d:pix_fmt=%d:time_base=%d/%d:pixel_aspect=%d/%d",
+                decoderContext.width(), decoderContext.height(), decoderContext.pix_fmt(),
+                stream.time_base().num(), stream.time_base().den(),
+                decoderContext.sample_aspect_ratio().num(), Math.max(1, decoderContext.sample_aspect_ratio().den()));
+
+        for (Branch branch : branches) {
+            Rendition r = branch.rendition;
+            String spec = String.format("scale=%d:%d,format=%s", r.width, r.height,
+                    av_get_pix_fmt_name(pixFmt).getString());
+
+            branch.filterGraph = avfilter_graph_alloc();
+            branch.source = new AVFilterContext();
+            branch.sink = new AVFilterContext();
+            Transcoding.check(avfilter_graph_create_filter(branch.source, avfilter_get_by_name("buffer"), "in",
+                    args, null, branch.filterGraph));
+            Transcoding.check(avfilter_graph_create_filter(branch.sink, avfilter_get_by_name("buffersink"), "out",
+                    null, null, branch.filterGraph));
+
+            /* Endpoints for the filter graph: our source feeds "in", "out" feeds the sink */
+            AVFilterInOut outputs = avfilter_inout_alloc();
+            AVFilterInOut inputs = avfilter_inout_alloc();
+
+            outputs.name(new BytePointer(av_strdup("in")));
+            outputs.filter_ctx(branch.source);
+            outputs.pad_idx(0);
+            outputs.next(null);
+
+            inputs.name(new BytePointer(av_strdup("out")));
+            inputs.filter_ctx(branch.sink);
+            inputs.pad_idx(0);
+            inputs.next(null);
+
+            try {
+                Transcoding.check(avfilter_graph_parse_ptr(branch.filterGraph, spec, inputs, outputs, null));
+                Transcoding.check(avfilter_graph_config(branch.filterGraph, null));
+            } finally {
+                avfilter_inout_free(inputs);
+                avfilter_inout_free(outputs);
+            }
+        }
+    }
+
+    void openOutput(Branch branch, AVCodec encoder, int gopSize) {
+        String fileName = outputPattern.replace("%s", branch.rendition.name);
+        AVRational frameRate = decoderContext.framerate();
+
+        branch.outputFormatContext = new AVFormatContext(null);
+        Transcoding.check(avformat_alloc_output_context2(branch.outputFormatContext, null, null, fileName));
+
+        for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
+            AVStream inStream = inputFormatContext.streams(i);
+            int type = inStream.codecpar().codec_type();
+
+            branch.outputIndex[i] = -1;
+            if (type == AVMEDIA_TYPE_UNKNOWN || (type == AVMEDIA_TYPE_VIDEO && i != videoStream)) {
+                continue;
+            }
+
+            AVStream outStream = avformat_new_stream(branch.outputFormatContext, null);
+
+            branch.outputIndex[i] = outStream.index();
+            if (i != videoStream) {
+                /* copied into every rendition */
+                Transcoding.check(avcodec_parameters_copy(outStream.codecpar(), inStream.codecpar()));
+                outStream.codecpar().codec_tag(0);
+                outStream.time_base(inStream.time_base());
+                continue;
+            }
+
+            AVCodecContext encoderContext = avcodec_alloc_context3(encoder);
+            AVDictionary options = new AVDictionary(null);
+
+            encoderContext.width(av_buffersink_get_w(branch.sink));
+            encoderContext.height(av_buffersink_get_h(branch.sink));
+            encoderContext.pix_fmt(av_buffersink_get_format(branch.sink));
+            encoderContext.sample_aspect_ratio(av_buffersink_get_sample_aspect_ratio(branch.sink));
+            encoderContext.time_base(av_inv_q(frameRate));
+            encoderContext.framerate(frameRate);
+            encoderContext.bit_rate(branch.rendition.bitRate);
+
+            /* same keyframes in every rendition */
+            encoderContext.gop_size(gopSize);
+            encoderContext.keyint_min(gopSize);
+            av_dict_set(options, "sc_threshold", "0", 0);
+
+            if ((branch.outputFormatContext.oformat().flags() & AVFMT_GLOBALHEADER) == AVFMT_GLOBALHEADER) {
+                encoderContext.flags(encoderContext.flags() | CODEC_FLAG_GLOBAL_HEADER);
+            }
+            encoderThreading.apply(encoderContext, videoStream);
+            try {
+                Transcoding.check(avcodec_open2(encoderContext, encoder, options));
+            } finally {
+                av_dict_free(options);
+            }
+            System.err.println(String.format("Rendition %s encoder %s %dx%d %d kb/s: %s", branch.rendition.name,
+                    encoder.name().getString(), encoderContext.width(), encoderContext.height(),
+                    branch.rendition.bitRate / 1000, CodecThreading.describe(encoderContext)));
+            Transcoding.check(avcodec_parameters_from_context(outStream.codecpar(), encoderContext));
+            outStream.time_base(encoderContext.time_base());
+
+            branch.encoderContext = encoderContext;
+            branch.encoderTimeBase = encoderContext.time_base();
+            branch.sinkTimeBase = av_buffersink_get_time_base(branch.sink);
+        }
+
+        av_dump_format(branch.outputFormatContext, 0, fileName, 1);
+        branch.outputIO = Transcoding.openOutputIO(branch.outputFormatContext, fileName, null);
+        Transcoding.check(avformat_write_header(branch.outputFormatContext, (AVDictionary) null));
+        branch.videoTimeBase = branch.outputFormatContext.streams(branch.outputIndex[videoStream]).time_base();
+
+        /* the decoding thread copies the other streams, the branch thread writes the video */
+        branch.muxer = new PacketMuxer(branch.outputFormatContext, 2, 64, Transcoding.packetPool);
+    }
+
+    /* Send a packet, null to drain the decoder, and hand every frame it decodes to each rendition */
+    void decode(AVPacket packet, AVFrame frame) throws InterruptedException {
+        long start = StageMetrics.start();
+        long frames = 0;
+
+        Transcoding.check(avcodec_send_packet(decoderContext, packet));
+        long elapsed = StageMetrics.since(start);
+
+        while (true) {
+            start = StageMetrics.start();
+            int ret = avcodec_receive_frame(decoderContext, frame);
+            elapsed += StageMetrics.since(start);
+
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
+                break;
+            }
+            Transcoding.check(ret);
+            frames++;
+
+            frame.pts(frame.best_effort_timestamp());
+            for (Branch branch : branches) {
+                branch.submit(frame);
+            }
+            av_frame_unref(frame);
+        }
+        Transcoding.DECODE.add(elapsed, frames, packet == null ? 0 : packet.size(), 0);
+    }
+
+    /* the source packet goes to every output, each gets its own reference */
+    void copyPacket(AVPacket packet) throws InterruptedException {
+        AVRational inTimeBase = inputFormatContext.streams(packet.stream_index()).time_base();
+        AVPacket copy = Transcoding.packetPool.acquire();
+
+        try {
+            for (Branch branch : branches) {
+                int outIndex = branch.outputIndex[packet.stream_index()];
+
+                if (outIndex < 0) {
+                    continue;
+                }
+                Transcoding.check(av_packet_ref(copy, packet));
+                av_packet_rescale_ts(copy, inTimeBase, branch.outputFormatContext.streams(outIndex).time_base());
+                copy.stream_index(outIndex);
+                branch.muxer.submit(copy);
+            }
+        } finally {
+            Transcoding.packetPool.release(copy);
+        }
+    }
+
+    @Override
+    public void open() {
+        openInput();
+
+        AVRational frameRate = decoderContext.framerate();
+        AVCodec encoder = findEncoder();
+        /* two second GOPs, the usual segment length is a multiple of that */
+        int gopSize = frameRate.num() > 0 && frameRate.den() > 0
+                ? (int) Math.round(2.0 * frameRate.num() / frameRate.den()) : 50;
+
+        for (Rendition rendition : renditions) {
+            branches.add(new Branch(rendition, inputFormatContext.nb_streams()));
+        }
+        initFilters(encoder);
+        for (Branch branch : branches) {
+            openOutput(branch, encoder, gopSize);
+        }
+        opened = true;
+    }
+
+    @Override
+    public void run() {
+        if (!opened) {
+            open();
+        }
+        transcode();
+
+        for (Branch branch : branches) {
+            Transcoding.check(av_write_trailer(branch.outputFormatContext));
+        }
+    }
+
+    void transcode() {
+        AVPacket packet = new AVPacket();
+        AVFrame frame = av_frame_alloc();
+        Throwable error = null;
+
+        for (Branch branch : branches) {
+            branch.muxer.start();
+            branch.thread.start();
+        }
+
+        try {
+            for (long start = StageMetrics.start(); av_read_frame(inputFormatContext, packet) >= 0;
+                    start = StageMetrics.start()) {
+                Transcoding.READ.record(start, 0, packet.size(), 0);
+                try {
+                    if (branchFailed()) {
+                        /* the error is rethrown below, reading the rest of the input would only waste time */
+                        break;
+                    }
+                    if (packet.stream_index() == videoStream) {
+                        decode(packet, frame);
+                    } else {
+                        copyPacket(packet);
+                    }
+                } finally {
+                    av_packet_unref(packet);
+                }
+            }
+            if (!branchFailed()) {
+                decode(null, frame);
+            }
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            /* let every branch finish, even after an error, so no thread is left blocked */
+            try {
+                for (Branch branch : branches) {
+                    branch.frames.put(END_OF_STREAM);
+                    branch.muxer.finish();
+                }
+                for (Branch branch : branches) {
+                    branch.thread.join();
+                    if (error == null) {
+                        error = branch.error;
+                    }
+                    branch.muxer.join();
+                }
+            } catch (Throwable t) {
+                if (error == null) {
+                    error = t;
+                }
+            }
+            av_frame_free(frame);
+            packet.close();
+        }
+
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new RuntimeException("Transcoding failed", error);
+        }
+    }
+
+    /* A branch or its muxer has failed */
+    boolean branchFailed() {
+        for (Branch branch : branches) {
+            if (branch.error != null || branch.muxer.failed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Branch branch : branches) {
+            if (branch.encoderContext != null) {
+                avcodec_free_context(branch.encoderContext);
+            }
+            if (branch.filterGraph != null) {
+                avfilter_graph_free(branch.filterGraph);
+            }
+            if (branch.outputFormatContext != null && !branch.outputFormatContext.isNull()) {
+                Transcoding.closeOutput(branch.outputFormatContext, branch.outputIO);
+            }
+        }
+        branches.clear();
+        if (decoderContext != null) {
+            avcodec_free_context(decoderContext);
+        }
+        if (inputFormatContext != null) {
+            avformat_close_input(inputFormatContext);
+        }
+        decoderContext = null;
+        inputFormatContext = null;
+        opened = false;
+    }
+}
@@ -0,0 +1,412 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Synthesizes test media in process, so benchmarks and scale tests need no
+ * fixtures on disk and no network: libavfilter sources (testsrc2 for video,
+ * sine or anoisesrc for audio) are encoded and muxed into a file or any
+ * AVIOSink, e.g. a MemorySink to demux again through a ByteBufferSource.
+ *
+ * The output is the same on every run: the sources are deterministic (the
+ * noise is seeded per stream) and the encoders run single threaded.
+ *
+ *   av_register_all();
+ *   avfilter_register_all();
+ *
+ *   ByteBuffer media = new MediaGenerator().size(640, 360).duration(5).audio("aac", 2, 2, 48000).generate("in.mp4");
+ *
+ * Every video stream shows the test pattern, each with its own hue, and
+ * every audio stream a tone a harmonic above the previous one (or noise).
+ */
+public class MediaGenerator {
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+
+    /* Where the time goes, see StageMetrics */
+    static final StageMetrics.Stage FILTER = StageMetrics.stage("generate.filter"),
+                                    ENCODE = StageMetrics.stage("generate.encode"),
+                                    WRITE  = StageMetrics.stage("generate.write");
+
+    int     width           = 320,
+            height          = 240,
+            frame_rate      = 25,
+            video_streams   = 1,
+            audio_streams   = 1,
+            channels        = 2,
+            sample_rate     = DEFAULT_SAMPLE_RATE;
+    double  duration        = 10;
+    String  video_codec     = "mpeg4",
+            audio_codec     = "aac";
+    boolean noise           = false;
+
+    /* Source graph -> encoder -> output stream, for one stream of the output */
+    private static final class Track {
+        final int             type;
+        final AVFilterGraph   graph;
+        final AVFilterContext sink;
+        final AVRational      sink_time_base;
+        final AVCodecContext  ctx;
+        final AVStream        stream;
+        final AVFrame         frame     = av_frame_alloc();
+        long                  next_pts  = 0;        // In the encoder time base
+        boolean               done      = false;
+
+        Track (int type, AVFilterGraph graph, AVFilterContext sink, AVCodecContext ctx, AVStream stream) {
+            this.type           = type;
+            this.graph          = graph;
+            this.sink           = sink;
+            this.sink_time_base = av_buffersink_get_time_base(sink);
+            this.ctx            = ctx;
+            this.stream         = stream;
+        }
+    }
+
+    static String my_av_err2str (int err) {
+        try (BytePointer e = new BytePointer(512)) {
+            av_strerror(err, e, 512);
+            return e.getString().substring(0, (int) BytePointer.strlen(e));
+        }
+    }
+
+    static int check (int err, String what) {
+        if (err < 0) {
+            throw new RuntimeException(what + " (error '" + my_av_err2str(err) + "')");
+        }
+        return err;
+    }
+
+    public MediaGenerator size (int width, int height) {
+        this.width  = width;
+        this.height = height;
+        return this;
+    }
+
+    public MediaGenerator frameRate (int frame_rate) {
+        this.frame_rate = frame_rate;
+        return this;
+    }
+
+    public MediaGenerator duration (double seconds) {
+        this.duration = seconds;
+        return this;
+    }
+
+    /** Encoder name and number of video streams, 0 for none */
+    public MediaGenerator video (String codec, int streams) {
+        this.video_codec   = codec;
+        this.video_streams = streams;
+        return this;
+    }
+
+    /** Encoder name, number of audio streams (0 for none), channels and sample rate of each */
+    public MediaGenerator audio (String codec, int streams, int channels, int sample_rate) {
+        this.audio_codec   = codec;
+        this.audio_streams = streams;
+        this.channels      = channels;
+        this.sample_rate   = sample_rate;
+        return this;
+    }
+
+    /** White noise (anoisesrc) instead of sine tones */
+    public MediaGenerator noise (boolean noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    /** Writes the media to a file, the extension picking the container. */
+    public void write (String filename) throws IOException {
+        write(filename, null);
+    }
+
+    /** Writes the media into a MemorySink and returns its bytes; the name only picks the container. */
+    public ByteBuffer generate (String name) throws IOException {
+        MemorySink sink = new MemorySink();
+
+        write(name, sink);
+        return sink.toByteBuffer();
+    }
+
+    /** Writes the media into sink, or to the named file or URL (e.g. pipe:1) when sink is null. */
+    public void write (String name, AVIOSink sink) throws IOException {
+        AVFormatContext ofmt_ctx = new AVFormatContext(null);
+        AVIOOutput      io       = null;
+        Track[]         tracks   = new Track[video_streams + audio_streams];
+
+        if (tracks.length == 0) {
+            throw new IllegalArgumentException("No video or audio streams to generate");
+        }
+        check( avformat_alloc_output_context2(ofmt_ctx, null, null, name), "Could not find a container for " + name );
+
+        try (AVPacket packet = new AVPacket()) {
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = i < video_streams ? openVideo(ofmt_ctx, i) : openAudio(ofmt_ctx, i - video_streams);
+            }
+            av_dump_format(ofmt_ctx, 0, name, 1);
+
+            io = AVIOOutput.open(ofmt_ctx, name, sink);
+            check( avformat_write_header(ofmt_ctx, (AVDictionary) null), "Could not write the header" );
+
+            /* Always feed the track that is furthest behind, so the muxer's interleaving queue stays short */
+            for (Track track; (track = earliest(tracks)) != null; ) {
+                encode(ofmt_ctx, track, packet);
+            }
+            check( av_write_trailer(ofmt_ctx), "Could not write the trailer" );
+        }
+        finally {
+            for (Track track : tracks) {
+                if (track != null) {
+                    avfilter_graph_free(track.graph);
+                    avcodec_free_context(track.ctx);
+                    av_frame_free(track.frame);
+                }
+            }
+            if (io != null) {
+                io.close();
+            }
+            else if ((ofmt_ctx.oformat().flags() & AVFMT_NOFILE) == 0) {
+                avio_closep(ofmt_ctx.pb());
+            }
+            avformat_free_context(ofmt_ctx);
+        }
+    }
+
+    private static Track earliest (Track[] tracks) {
+        Track earliest = null;
+
+        for (Track track : tracks) {
+            if (!track.done && (earliest == null
+                    || av_compare_ts(track.next_pts, track.ctx.time_base(), earliest.next_pts, earliest.ctx.time_base()) < 0)) {
+                earliest = track;
+            }
+        }
+        return earliest;
+    }
+
+    private Track openVideo (AVFormatContext ofmt_ctx, int index) {
+        AVCodec        codec   = findEncoder(video_codec, AVMEDIA_TYPE_VIDEO);
+        AVCodecContext ctx     = avcodec_alloc_context3(codec);
+        int            pix_fmt = codec.pix_fmts() != null ? codec.pix_fmts().get(0) : AV_PIX_FMT_YUV420P;
+        String         spec    = "testsrc2=size=" + width + "x" + height + ":rate=" + frame_rate + ":duration=" + duration
+                               + (index > 0 ? ",hue=h=" + (index * 360 / video_streams) : "")
+                               + ",format=pix_fmts=" + av_get_pix_fmt_name(pix_fmt).getString();
+
+        ctx.width(width);
+        ctx.height(height);
+        ctx.pix_fmt(pix_fmt);
+        ctx.sample_aspect_ratio(av_make_q(1, 1));
+        ctx.time_base(av_make_q(1, frame_rate));
+        ctx.framerate(av_make_q(frame_rate, 1));
+        ctx.gop_size(frame_rate);
+        ctx.bit_rate((long) width * height * frame_rate / 8);
+
+        return openTrack(ofmt_ctx, AVMEDIA_TYPE_VIDEO, codec, ctx, spec, "buffersink");
+    }
+
+    private Track openAudio (AVFormatContext ofmt_ctx, int index) {
+        AVCodec        codec      = findEncoder(audio_codec, AVMEDIA_TYPE_AUDIO);
+        AVCodecContext ctx        = avcodec_alloc_context3(codec);
+        int            sample_fmt = codec.sample_fmts() != null ? codec.sample_fmts().get(0) : AV_SAMPLE_FMT_FLTP;
+        String         source     = noise
+                                  ? "anoisesrc=sample_rate=" + sample_rate + ":amplitude=0.5:seed=" + (index + 1)
+                                  : "sine=frequency=" + 440 * (index + 1) + ":sample_rate=" + sample_rate;
+        String         spec       = source + ":duration=" + duration
+                                  + ",aformat=sample_fmts=" + av_get_sample_fmt_name(sample_fmt).getString()
+                                  + ":sample_rates=" + sample_rate + ":channel_layouts=" + channels + "c";
+
+        ctx.sample_fmt(sample_fmt);
+        ctx.sample_rate(sample_rate);
+        ctx.channels(channels);
+        ctx.channel_layout(av_get_default_channel_layout(channels));
+        ctx.bit_rate(64000L * channels);
+        ctx.time_base(av_make_q(1, sample_rate));
+
+        return openTrack(ofmt_ctx, AVMEDIA_TYPE_AUDIO, codec, ctx, spec, "abuffersink");
+    }
+
+    private static AVCodec findEncoder (String name, int type) {
+        AVCodec codec = avcodec_find_encoder_by_name(name);
+
+        if (codec == null || codec.type() != type) {
+            throw new IllegalArgumentException("No " + av_get_media_type_string(type).getString() + " encoder " + name);
+        }
+        return codec;
+    }
+
+    /* Open the encoder, add its output stream and build the source graph ending in a sink named "out" */
+    private static Track openTrack (AVFormatContext ofmt_ctx, int type, AVCodec codec, AVCodecContext ctx,
+            String spec, String sink_name) {
+        AVFilterGraph   graph  = avfilter_graph_alloc();
+        AVFilterContext sink   = new AVFilterContext();
+        AVFilterInOut   inputs = avfilter_inout_alloc();
+        AVStream        stream = avformat_new_stream(ofmt_ctx, null);
+
+        try {
+            if ((ofmt_ctx.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+                ctx.flags(ctx.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+            }
+            /* Threads would make the packets depend on the machine */
+            ctx.thread_count(1);
+            check( avcodec_open2(ctx, codec, (AVDictionary) null), "Could not open encoder " + codec.name().getString() );
+            check( avcodec_parameters_from_context(stream.codecpar(), ctx), "Could not set the stream parameters" );
+            stream.time_base(ctx.time_base());
+
+            check( avfilter_graph_create_filter(sink, avfilter_get_by_name(sink_name), "out", null, null, graph),
+                   "Could not create " + sink_name );
+            inputs.name(new BytePointer(av_strdup("out")));
+            inputs.filter_ctx(sink);
+            inputs.pad_idx(0);
+            inputs.next(null);
+
+            /* Sources have no inputs, so the only open end is the sink */
+            check( avfilter_graph_parse_ptr(graph, spec, inputs, (AVFilterInOut) null, null), "Could not parse " + spec );
+            check( avfilter_graph_config(graph, null), "Could not configure " + spec );
+
+            /* Encoders that take whole frames of one size, e.g. aac, get exactly that */
+            if (type == AVMEDIA_TYPE_AUDIO && (codec.capabilities() & AV_CODEC_CAP_VARIABLE_FRAME_SIZE) == 0
+                    && ctx.frame_size() > 0) {
+                av_buffersink_set_frame_size(sink, ctx.frame_size());
+            }
+        }
+        catch (RuntimeException e) {
+            avfilter_graph_free(graph);
+            avcodec_free_context(ctx);
+            throw e;
+        }
+        finally {
+            avfilter_inout_free(inputs);
+        }
+        return new Track(type, graph, sink, ctx, stream);
+    }
+
+    /* Pull the track's next frame from its graph, or flush at the end, and write every packet the encoder has ready */
+    private static void encode (AVFormatContext ofmt_ctx, Track track, AVPacket packet) {
+        long start = StageMetrics.start();
+        int  ret   = av_buffersink_get_frame(track.sink, track.frame);
+
+        if (ret == AVERROR_EOF) {
+            FILTER.record(start, 0, 0, 0);
+            start = StageMetrics.start();
+            check( avcodec_send_frame(track.ctx, null), "Could not flush the encoder" );
+            ENCODE.record(start, 0, 0, 0);
+            track.done = true;
+        }
+        else {
+            check(ret, "Could not get a frame from the source");
+            FILTER.record(start, 1, 0, track.type == AVMEDIA_TYPE_AUDIO ? track.frame.nb_samples() : 0);
+
+            /* Sources mark every frame as an I frame, which encoders would take as an order to code it intra */
+            track.frame.pict_type(AV_PICTURE_TYPE_NONE);
+            track.frame.pts(av_rescale_q(track.frame.pts(), track.sink_time_base, track.ctx.time_base()));
+            track.next_pts = track.frame.pts() + (track.type == AVMEDIA_TYPE_AUDIO ? track.frame.nb_samples() : 1);
+
+            start = StageMetrics.start();
+            check( avcodec_send_frame(track.ctx, track.frame), "Could not encode a frame" );
+            ENCODE.record(start, 1, 0, track.type == AVMEDIA_TYPE_AUDIO ? track.frame.nb_samples() : 0);
+            av_frame_unref(track.frame);
+        }
+
+        while (true) {
+            start = StageMetrics.start();
+            ret   = avcodec_receive_packet(track.ctx, packet);
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                return;
+            }
+            check(ret, "Could not encode a frame");
+            ENCODE.add(StageMetrics.since(start), 0, packet.size(), 0);
+
+            int size = packet.size();
+
+            /* Without a duration, mp4 gives the last frame none and demuxers drop it */
+            if (packet.duration() == 0 && track.type == AVMEDIA_TYPE_VIDEO) {
+                packet.duration(1);
+            }
+
+            start = StageMetrics.start();
+            av_packet_rescale_ts(packet, track.ctx.time_base(), track.stream.time_base());
+            packet.stream_index(track.stream.index());
+            check( av_interleaved_write_frame(ofmt_ctx, packet), "Could not write a packet" );
+            WRITE.record(start, 1, size, 0);
+        }
+    }
+
+    public static void main (String[] args) throws IOException {
+        MediaGenerator generator = new MediaGenerator();
+        int            argi      = 0;
+
+        // -s WxH, -r fps, -t seconds, -vc/-ac encoder, -vs/-as stream count, -ch channels, -ar sample rate, -noise
+        for (; argi < args.length - 1 && args[argi].startsWith("-"); argi++) {
+            switch (args[argi]) {
+                case "-s":
+                    String[] size = args[++argi].split("x");
+                    generator.size(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                    break;
+                case "-r":
+                    generator.frame_rate    = Integer.parseInt(args[++argi]);
+                    break;
+                case "-t":
+                    generator.duration      = Double.parseDouble(args[++argi]);
+                    break;
+                case "-vc":
+                    generator.video_codec   = args[++argi];
+                    break;
+                case "-ac":
+                    generator.audio_codec   = args[++argi];
+                    break;
+                case "-vs":
+                    generator.video_streams = Integer.parseInt(args[++argi]);
+                    break;
+                case "-as":
+                    generator.audio_streams = Integer.parseInt(args[++argi]);
+                    break;
+                case "-ch":
+                    generator.channels      = Integer.parseInt(args[++argi]);
+                    break;
+                case "-ar":
+                    generator.sample_rate   = Integer.parseInt(args[++argi]);
+                    break;
+                case "-noise":
+                    generator.noise         = true;
+                    break;
+                default:
+                    argi = args.length;     // Unknown option, show the usage
+            }
+        }
+
+        if (args.length - argi != 1) {
+            System.err.println("\nexample usage: ");
+            System.err.println("java -jar media_generator.jar [-s WxH] [-r fps] [-t seconds] [-vc video_encoder] [-ac audio_encoder] "
+                             + "[-vs video_streams] [-as audio_streams] [-ch channels] [-ar sample_rate] [-noise] <output_file>");
+            System.err.println("Writes a test pattern and sine tones (or noise) of the given shape, the same bytes on every run.\n");
+            System.exit(-1);
+        }
+
+        av_register_all();
+        avfilter_register_all();
+        av_log_set_level(AV_LOG_ERROR);
+
+        generator.write(args[argi]);
+    }
+}
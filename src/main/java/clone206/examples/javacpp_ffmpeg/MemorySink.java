@@ -0,0 +1,99 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sink that keeps the whole output in a growable direct buffer, so tests
+ * and benchmarks can transcode without touching the disk. The result can
+ * be read back, or demuxed again through a {@link ByteBufferSource}.
+ */
+public class MemorySink implements AVIOSink {
+    private ByteBuffer buffer;
+    private long size;
+
+    public MemorySink () {
+        this(1024 * 1024);
+    }
+
+    public MemorySink (int initial_capacity) {
+        buffer = ByteBuffer.allocateDirect(initial_capacity);
+    }
+
+    @Override
+    public void write (ByteBuffer src) {
+        int end = buffer.position() + src.remaining();
+
+        if (end > buffer.capacity()) {
+            grow(end);
+        }
+        buffer.put(src);
+        size = Math.max(size, buffer.position());
+    }
+
+    /* Doubles the capacity until it holds at least min_capacity bytes */
+    private void grow (long min_capacity) {
+        long capacity = Math.max(buffer.capacity(), 1);
+
+        while (capacity < min_capacity) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("In-memory output larger than 2GB");
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocateDirect((int) capacity);
+        int position      = buffer.position();
+
+        buffer.position(0).limit((int) size);
+        bigger.put(buffer);
+        bigger.position(position);
+        buffer = bigger;
+    }
+
+    @Override
+    public long position () {
+        return buffer.position();
+    }
+
+    @Override
+    public void position (long new_position) {
+        if (new_position > buffer.capacity()) {
+            grow(new_position);
+        }
+        // Writes after a gap leave zeros in between, like a sparse file
+        buffer.position((int) new_position);
+    }
+
+    @Override
+    public long size () {
+        return size;
+    }
+
+    /** A read-only view of the bytes written so far. */
+    public ByteBuffer toByteBuffer () {
+        ByteBuffer view = buffer.duplicate();
+
+        view.position(0).limit((int) size);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close () {
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.Pointer;
+
+/**
+ * Native memory figures for the metrics summary and the batch tools:
+ *
+ *   live pointers   JavaCPP allocations not yet deallocated, whether closed
+ *                   by their owner or still waiting for the GC
+ *   total bytes     the bytes those allocations hold (Pointer.totalBytes())
+ *   physical bytes  the resident size of the process, including everything
+ *                   libav* allocated with av_malloc (Pointer.physicalBytes())
+ *
+ * Pointers the tools allocate per call are closed with try-with-resources
+ * (Pointer is AutoCloseable), so live pointers and total bytes stay flat
+ * over a long run instead of growing until the next collection.
+ *
+ * Reading the physical size costs a read of /proc, so StageMetrics samples
+ * it every SAMPLE_EVERY calls of a stage rather than on each one.
+ */
+public final class NativeMemory {
+    static final int SAMPLE_EVERY = 64;
+
+    private static final AtomicLong peak_physical = new AtomicLong(),
+                                    peak_total    = new AtomicLong();
+
+    /* JavaCPP 1.4 keeps its allocations in a list but exposes no count of them */
+    private static final Class<?> references;
+    private static final Field    head,
+                                  next;
+
+    static {
+        Class<?> c  = null;
+        Field    h  = null,
+                 n  = null;
+
+        try {
+            c = Class.forName("org.bytedeco.javacpp.Pointer$DeallocatorReference");
+            h = c.getDeclaredField("head");
+            n = c.getDeclaredField("next");
+            h.setAccessible(true);
+            n.setAccessible(true);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            h = n = null;       // Another JavaCPP version, live counts are reported as -1
+        }
+        references  = c;
+        head        = h;
+        next        = n;
+    }
+
+    private NativeMemory () {
+    }
+
+    /** Bytes held by JavaCPP allocations that have not been deallocated yet. */
+    public static long totalBytes () {
+        return peak(peak_total, Pointer.totalBytes());
+    }
+
+    /** Resident size of the process, in bytes. */
+    public static long physicalBytes () {
+        return peak(peak_physical, Pointer.physicalBytes());
+    }
+
+    public static long peakPhysicalBytes () {
+        return peak_physical.get();
+    }
+
+    public static long peakTotalBytes () {
+        return peak_total.get();
+    }
+
+    /** JavaCPP allocations not yet deallocated, -1 when this JavaCPP version doesn't let us count them. */
+    public static long livePointers () {
+        if (head == null) {
+            return -1;
+        }
+
+        long count = 0;
+
+        // The same lock JavaCPP takes to link and unlink its references
+        synchronized (references) {
+            try {
+                for (Object ref = head.get(null); ref != null; ref = next.get(ref)) {
+                    count++;
+                }
+            }
+            catch (IllegalAccessException e) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    static long peak (AtomicLong peak, long value) {
+        long p;
+
+        while (value > (p = peak.get()) && !peak.compareAndSet(p, value)) ;
+        return value;
+    }
+
+    /** Current, peak and limit figures as a JSON object. */
+    public static String toJson () {
+        StringBuilder sb = new StringBuilder("{");
+
+        Json.name(sb, "live_pointers").append(livePointers());
+        Json.name(sb, "total_bytes").append(totalBytes());
+        Json.name(sb, "peak_total_bytes").append(peakTotalBytes());
+        Json.name(sb, "physical_bytes").append(physicalBytes());
+        Json.name(sb, "peak_physical_bytes").append(peakPhysicalBytes());
+        Json.name(sb, "max_bytes").append(Pointer.maxBytes());
+        Json.name(sb, "max_physical_bytes").append(Pointer.maxPhysicalBytes());
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Mux stage of a pipelined transcode: a single thread that owns the output
+ * format context and writes the packets every producer (per-stream encoders,
+ * the demuxer for stream copies) hands it. Packets go through
+ * av_interleaved_write_frame(), which merges the streams in DTS order, so
+ * producers never wait for each other, only for room in the queue.
+ *
+ * Each producer calls {@link #finish} once when it is done; the thread exits
+ * after the last one. If writing fails the thread keeps taking (and freeing)
+ * packets, so producers never block on a dead muxer; the error is rethrown
+ * by {@link #join}. Queued packets come from, and go back to, a PacketPool.
+ */
+public class PacketMuxer implements Runnable {
+    private static final AVPacket           END   = new AVPacket();     // Queued by a producer that is done
+    private static final StageMetrics.Stage WRITE = StageMetrics.stage("write");
+
+    private final AVFormatContext ofmt_ctx;
+    private final PacketPool pool;
+    private final BlockingQueue<AVPacket> packets;
+    private final Thread thread;
+    private int producers;
+    private volatile Throwable error;
+    private long written;
+
+    public PacketMuxer (AVFormatContext ofmt_ctx, int producers, int queue_size, PacketPool pool) {
+        this.ofmt_ctx  = ofmt_ctx;
+        this.pool      = pool;
+        this.producers = producers;
+        this.packets   = new ArrayBlockingQueue<>(queue_size);
+        this.thread    = new Thread(this, "mux");
+    }
+
+    public void start () {
+        thread.start();
+    }
+
+    /** Takes over the packet's data (the packet is left blank) and queues it for writing. */
+    public void submit (AVPacket packet) throws InterruptedException {
+        AVPacket queued = pool.acquire();
+
+        av_packet_move_ref(queued, packet);
+        packets.put(queued);
+    }
+
+    /** Called once by every producer after its last packet */
+    public void finish () throws InterruptedException {
+        packets.put(END);
+    }
+
+    @Override
+    public void run () {
+        try {
+            while (producers > 0) {
+                AVPacket packet = packets.take();
+
+                if (packet == END) {
+                    producers--;
+                    continue;
+                }
+                if (error == null) {
+                    try {
+                        long start = StageMetrics.start();
+                        int  size  = packet.size();
+
+                        Transcoding.check(av_interleaved_write_frame(ofmt_ctx, packet));
+                        WRITE.record(start, 1, size, 0);
+                        written++;
+                    } catch (Throwable t) {
+                        error = t;
+                    }
+                }
+                pool.release(packet);
+            }
+        } catch (InterruptedException e) {
+            error = e;
+        }
+    }
+
+    /** Waits until every producer has finished and all their packets are written. Rethrows a write failure. */
+    public void join () throws InterruptedException {
+        thread.join();
+
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new RuntimeException("Muxing failed", error);
+        }
+    }
+
+    /** Whether writing has failed, cheap enough to ask per packet; {@link #join} rethrows the error */
+    public boolean failed () {
+        return error != null;
+    }
+
+    public long written () {
+        return written;
+    }
+}
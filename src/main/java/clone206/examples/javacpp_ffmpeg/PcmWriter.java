@@ -0,0 +1,121 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Writes decoded or filtered audio frames as raw interleaved PCM. Every frame is
+ * copied in bulk into one reusable direct buffer and handed to the channel with a
+ * single write, instead of crossing JNI and calling write() for every sample.
+ * Planar formats are interleaved on the way, so the output always has the packed
+ * layout of the frame's sample format (e.g. fltp comes out as f32le).
+ */
+public class PcmWriter implements Closeable {
+    private final WritableByteChannel out;
+    private ByteBuffer buffer;
+    private long bytes_written;
+
+    public PcmWriter (WritableByteChannel out) {
+        this(out, 64 * 1024);
+    }
+
+    public PcmWriter (WritableByteChannel out, int initial_capacity) {
+        this.out    = out;
+        this.buffer = ByteBuffer.allocateDirect(initial_capacity).order(ByteOrder.nativeOrder());
+    }
+
+    public void write (AVFrame frame) throws IOException {
+        final int format           = frame.format();
+        final int channels         = frame.channels();
+        final int nb_samples       = frame.nb_samples();
+        final int bytes_per_sample = av_get_bytes_per_sample(format);
+        final int size             = nb_samples * channels * bytes_per_sample;
+
+        if (bytes_per_sample <= 0) {
+            throw new IllegalArgumentException("Unsupported sample format " + format);
+        }
+        if (size > buffer.capacity()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2)).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+
+        if (av_sample_fmt_is_planar(format) == 0 || channels == 1) {
+            /* Packed samples are already interleaved: one memcpy for the whole frame */
+            buffer.put( frame.data(0).capacity(size).asByteBuffer() );
+        }
+        else {
+            interleave(frame, channels, nb_samples, bytes_per_sample);
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        bytes_written += size;
+    }
+
+    /* Copies one plane per channel into the buffer, sample by sample, without leaving Java */
+    private void interleave (AVFrame frame, int channels, int nb_samples, int bytes_per_sample) {
+        final int plane_size = nb_samples * bytes_per_sample;
+        final int stride     = channels * bytes_per_sample;
+
+        for (int c = 0; c < channels; c++) {
+            /* extended_data also covers layouts with more than AV_NUM_DATA_POINTERS channels */
+            ByteBuffer plane = frame.extended_data(c).capacity(plane_size).asByteBuffer().order(ByteOrder.nativeOrder());
+            int dst          = c * bytes_per_sample;
+
+            switch (bytes_per_sample) {
+                case 1:
+                    for (int s = 0; s < nb_samples; s++, dst += stride) {
+                        buffer.put(dst, plane.get(s));
+                    }
+                    break;
+                case 2:
+                    for (int s = 0; s < plane_size; s += 2, dst += stride) {
+                        buffer.putShort(dst, plane.getShort(s));
+                    }
+                    break;
+                case 4:
+                    for (int s = 0; s < plane_size; s += 4, dst += stride) {
+                        buffer.putInt(dst, plane.getInt(s));
+                    }
+                    break;
+                default:
+                    for (int s = 0; s < plane_size; s += 8, dst += stride) {
+                        buffer.putLong(dst, plane.getLong(s));
+                    }
+            }
+        }
+        buffer.position(nb_samples * stride);
+    }
+
+    public long bytesWritten () {
+        return bytes_written;
+    }
+
+    @Override
+    public void close () throws IOException {
+        out.close();
+    }
+}
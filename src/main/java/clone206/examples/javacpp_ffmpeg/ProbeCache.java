@@ -0,0 +1,345 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * On-disk cache of avformat_find_stream_info() results, keyed by a file's
+ * path, size and modification time, and the probesize and analyzeduration
+ * limits the analysis ran with, as tighter limits can find less.
+ *
+ * avformat_find_stream_info is the most expensive step of opening an input,
+ * since it decodes frames to fill in missing stream parameters. When an
+ * unchanged file is opened again, and its header still reports the same
+ * streams, the stored parameters are written back into the streams and the
+ * analysis is skipped.
+ *
+ * Disabled unless the probe.cache system property names the cache file.
+ * probe.cache.size bounds the number of entries (least recently used ones
+ * are evicted first). The cache is written back when the JVM exits.
+ */
+public class ProbeCache {
+    private static final int MAGIC   = 0x50524f42;  // "PROB"
+    private static final int VERSION = 2;   // 2: limits in the key
+
+    private static final StageMetrics.Stage PROBE = StageMetrics.stage("probe");
+
+    private static ProbeCache shared;
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    /* Stream parameters as found by avformat_find_stream_info(), for one input */
+    static class Entry {
+        long duration, start_time, bit_rate;
+        long[][] streams;       // Per stream: see the STREAM_* field order in store()/apply()
+        byte[][] extradata;     // Per stream, null when the stream has none
+    }
+
+    ProbeCache (Path file, final int max_entries) {
+        this.file = file;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, Entry> eldest) {
+                return size() > max_entries;
+            }
+        };
+    }
+
+    /** The cache configured by system properties, or null when caching is off. */
+    public static synchronized ProbeCache shared () {
+        String path = System.getProperty("probe.cache");
+
+        if (shared == null && path != null && !path.isEmpty()) {
+            final ProbeCache cache = new ProbeCache(Paths.get(path), Integer.getInteger("probe.cache.size", 1000));
+
+            try {
+                cache.load();
+            }
+            catch (IOException e) {
+                // A missing or unreadable cache just starts out empty
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cache.save();
+                }
+                catch (IOException e) {
+                    System.err.println("Could not save probe cache " + cache.file + ": " + e.getMessage());
+                }
+            }));
+            shared = cache;
+        }
+        return shared;
+    }
+
+    /**
+     * Drop-in replacement for avformat_find_stream_info(fmt_ctx, null) on an
+     * input opened from filename. Uses the shared cache when it is enabled
+     * and filename is a regular file, otherwise just runs the analysis.
+     */
+    public static int findStreamInfo (AVFormatContext fmt_ctx, String filename) {
+        long start       = StageMetrics.start();
+        ProbeCache cache = shared();
+        String key       = cache == null || filename == null ? null
+                         : key(Paths.get(filename), fmt_ctx.probesize(), fmt_ctx.max_analyze_duration());
+        int ret          = key == null ? avformat_find_stream_info(fmt_ctx, (PointerPointer) null)
+                                       : cache.findStreamInfoCached(fmt_ctx, key);
+
+        PROBE.record(start);
+        return ret;
+    }
+
+    /* Applies the entry for key if it still matches the opened input, otherwise analyzes and stores it */
+    int findStreamInfoCached (AVFormatContext fmt_ctx, String key) {
+        Entry entry;
+        int ret;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            dirty |= entry != null;     // LRU order changed
+        }
+
+        if (entry != null && matches(entry, fmt_ctx)) {
+            apply(entry, fmt_ctx);
+            return 0;
+        }
+
+        if ((ret = avformat_find_stream_info(fmt_ctx, (PointerPointer) null)) >= 0) {
+            entry = store(fmt_ctx);
+
+            synchronized (this) {
+                entries.put(key, entry);
+                dirty = true;
+            }
+        }
+        return ret;
+    }
+
+    /* path|size|mtime|probesize|analyzeduration, or null if the path isn't a regular file */
+    static String key (Path path, long probesize, long analyzeduration) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return path.toAbsolutePath().normalize() + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis()
+                    + "|" + probesize + "|" + analyzeduration;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /* The cached entry only applies if the header still reports the same streams */
+    static boolean matches (Entry entry, AVFormatContext fmt_ctx) {
+        if (entry.streams.length != fmt_ctx.nb_streams()) {
+            return false;
+        }
+
+        for (int i = 0; i < entry.streams.length; i++) {
+            AVCodecParameters par = fmt_ctx.streams(i).codecpar();
+
+            if (par.codec_type() != entry.streams[i][0] || par.codec_id() != entry.streams[i][1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Captures the parameters of an analyzed input */
+    static Entry store (AVFormatContext fmt_ctx) {
+        Entry entry     = new Entry();
+        int nb_streams  = fmt_ctx.nb_streams();
+
+        entry.duration   = fmt_ctx.duration();
+        entry.start_time = fmt_ctx.start_time();
+        entry.bit_rate   = fmt_ctx.bit_rate();
+        entry.streams    = new long[nb_streams][];
+        entry.extradata  = new byte[nb_streams][];
+
+        for (int i = 0; i < nb_streams; i++) {
+            AVStream stream         = fmt_ctx.streams(i);
+            AVCodecParameters par   = stream.codecpar();
+
+            entry.streams[i] = new long[] {
+                par.codec_type(), par.codec_id(), par.codec_tag(), par.format(), par.bit_rate(),
+                par.bits_per_coded_sample(), par.bits_per_raw_sample(), par.profile(), par.level(),
+                par.width(), par.height(), par.sample_aspect_ratio().num(), par.sample_aspect_ratio().den(),
+                par.field_order(), par.color_range(), par.color_primaries(), par.color_trc(),
+                par.color_space(), par.chroma_location(), par.video_delay(), par.channel_layout(),
+                par.channels(), par.sample_rate(), par.block_align(), par.frame_size(),
+                par.initial_padding(), par.trailing_padding(), par.seek_preroll(),
+                stream.duration(), stream.start_time(), stream.nb_frames(),
+                stream.avg_frame_rate().num(), stream.avg_frame_rate().den(),
+                stream.r_frame_rate().num(), stream.r_frame_rate().den(),
+                stream.sample_aspect_ratio().num(), stream.sample_aspect_ratio().den()
+            };
+
+            if (par.extradata_size() > 0 && par.extradata() != null && !par.extradata().isNull()) {
+                entry.extradata[i] = new byte[par.extradata_size()];
+                par.extradata().get(entry.extradata[i]);
+            }
+        }
+        return entry;
+    }
+
+    /* Writes cached parameters back into freshly opened streams, in the order store() read them */
+    static void apply (Entry entry, AVFormatContext fmt_ctx) {
+        fmt_ctx.duration(entry.duration);
+        fmt_ctx.start_time(entry.start_time);
+        fmt_ctx.bit_rate(entry.bit_rate);
+
+        for (int i = 0; i < entry.streams.length; i++) {
+            AVStream stream         = fmt_ctx.streams(i);
+            AVCodecParameters par   = stream.codecpar();
+            long[] s                = entry.streams[i];
+            int f                   = 2;
+
+            par.codec_tag((int) s[f++]);
+            par.format((int) s[f++]);
+            par.bit_rate(s[f++]);
+            par.bits_per_coded_sample((int) s[f++]);
+            par.bits_per_raw_sample((int) s[f++]);
+            par.profile((int) s[f++]);
+            par.level((int) s[f++]);
+            par.width((int) s[f++]);
+            par.height((int) s[f++]);
+            par.sample_aspect_ratio(av_make_q((int) s[f++], (int) s[f++]));
+            par.field_order((int) s[f++]);
+            par.color_range((int) s[f++]);
+            par.color_primaries((int) s[f++]);
+            par.color_trc((int) s[f++]);
+            par.color_space((int) s[f++]);
+            par.chroma_location((int) s[f++]);
+            par.video_delay((int) s[f++]);
+            par.channel_layout(s[f++]);
+            par.channels((int) s[f++]);
+            par.sample_rate((int) s[f++]);
+            par.block_align((int) s[f++]);
+            par.frame_size((int) s[f++]);
+            par.initial_padding((int) s[f++]);
+            par.trailing_padding((int) s[f++]);
+            par.seek_preroll((int) s[f++]);
+            stream.duration(s[f++]);
+            stream.start_time(s[f++]);
+            stream.nb_frames(s[f++]);
+            stream.avg_frame_rate(av_make_q((int) s[f++], (int) s[f++]));
+            stream.r_frame_rate(av_make_q((int) s[f++], (int) s[f++]));
+            stream.sample_aspect_ratio(av_make_q((int) s[f++], (int) s[f++]));
+
+            // Only fill in extradata the header didn't provide, e.g. parameter sets found in-band
+            if (entry.extradata[i] != null && par.extradata_size() == 0) {
+                BytePointer extradata = new BytePointer(av_mallocz(entry.extradata[i].length + AV_INPUT_BUFFER_PADDING_SIZE));
+
+                if (!extradata.isNull()) {
+                    extradata.put(entry.extradata[i]);
+                    par.extradata(extradata);
+                    par.extradata_size(entry.extradata[i].length);
+                }
+            }
+        }
+    }
+
+    synchronized void load () throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            for (int n = in.readInt(); n > 0; n--) {
+                String key  = in.readUTF();
+                Entry entry = new Entry();
+
+                entry.duration   = in.readLong();
+                entry.start_time = in.readLong();
+                entry.bit_rate   = in.readLong();
+                entry.streams    = new long[in.readInt()][];
+                entry.extradata  = new byte[entry.streams.length][];
+
+                for (int i = 0; i < entry.streams.length; i++) {
+                    entry.streams[i] = new long[in.readInt()];
+                    for (int j = 0; j < entry.streams[i].length; j++) {
+                        entry.streams[i][j] = in.readLong();
+                    }
+
+                    int extradata_size = in.readInt();
+                    if (extradata_size >= 0) {
+                        entry.extradata[i] = new byte[extradata_size];
+                        in.readFully(entry.extradata[i]);
+                    }
+                }
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /* Writes the cache to a temporary file next to it, then moves it into place */
+    synchronized void save () throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.duration);
+                out.writeLong(entry.start_time);
+                out.writeLong(entry.bit_rate);
+                out.writeInt(entry.streams.length);
+
+                for (int i = 0; i < entry.streams.length; i++) {
+                    out.writeInt(entry.streams[i].length);
+                    for (long v : entry.streams[i]) {
+                        out.writeLong(v);
+                    }
+
+                    out.writeInt(entry.extradata[i] == null ? -1 : entry.extradata[i].length);
+                    if (entry.extradata[i] != null) {
+                        out.write(entry.extradata[i]);
+                    }
+                }
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
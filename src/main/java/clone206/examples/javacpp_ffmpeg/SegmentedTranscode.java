@@ -0,0 +1,448 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Transcodes one file as several independent pieces. The video stream is cut
+ * at keyframes into segments, each segment is transcoded by its own
+ * Transcoding (demuxer, decoder, filter graph and encoder) into a temporary
+ * NUT file, and the segments are run concurrently. The other streams are
+ * transcoded in one piece alongside them, since audio encoders prime each
+ * start and would leave gaps at every cut. The video is always reencoded,
+ * even when it would come out unchanged.
+ *
+ * Segments keep their source timestamps, so the final pass only has to read
+ * them back one after the other, merge them with the other streams by DTS
+ * and mux the result without decoding anything. NUT can't store negative
+ * timestamps (B-frame DTS, audio priming) and would shift each file by its
+ * own amount, so the pieces are written with TIMESTAMP_OFFSET added and the
+ * final pass takes it off again.
+ *
+ * Cut points come from seeking: for each of the evenly spaced targets, the
+ * demuxer seeks back to the keyframe before it and that keyframe becomes a
+ * boundary. Targets landing on the same keyframe give fewer segments, so a
+ * file with long GOPs is split less than asked for.
+ */
+public class SegmentedTranscode {
+    private static final long TIMESTAMP_OFFSET = 10L * AV_TIME_BASE;  // Far more than any encoder delay
+
+    private final String                input;
+    private final String                output;
+    private final int                   segments;
+    private final String                dec_threads;
+    private final String                enc_threads;
+    private final String                thread_type;
+    private final int                   jobs;
+    private final Consumer<Transcoding> options;
+
+    /* options sets up each piece's Transcoding, e.g. its encoders and filters */
+    public SegmentedTranscode (String input, String output, int segments, String dec_threads,
+                               String enc_threads, String thread_type, int jobs, Consumer<Transcoding> options) {
+        this.input       = input;
+        this.output      = output;
+        this.segments    = segments;
+        this.dec_threads = dec_threads;
+        this.enc_threads = enc_threads;
+        this.thread_type = thread_type;
+        this.jobs        = jobs;
+        this.options     = options;
+    }
+
+    public void run () throws IOException {
+        AVFormatContext fmt_ctx = new AVFormatContext(null);
+        List<long[]>    bounds;
+        int             video_stream;
+        int             nb_streams;
+
+        /* Find the cut points */
+        Transcoding.check(avformat_open_input(fmt_ctx, input, null, null));
+        try {
+            Transcoding.check(ProbeCache.findStreamInfo(fmt_ctx, input));
+            nb_streams   = fmt_ctx.nb_streams();
+            video_stream = av_find_best_stream(fmt_ctx, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+            bounds       = video_stream < 0 ? new ArrayList<>() : find_boundaries(fmt_ctx, video_stream);
+        }
+        finally {
+            avformat_close_input(fmt_ctx);
+        }
+
+        if (bounds.size() < 2) {
+            System.err.println("Nothing to split, transcoding in one piece");
+            transcoding(i -> true).run(input, output);
+            return;
+        }
+
+        Path            tmp_dir   = Files.createTempDirectory("segments");
+        List<Path>      seg_files = new ArrayList<>();
+        Path            rest_file = nb_streams > 1 ? tmp_dir.resolve("rest.nut") : null;
+        int             parallel  = Math.min(bounds.size() + (rest_file != null ? 1 : 0),
+                                             Runtime.getRuntime().availableProcessors());
+        ExecutorService executor  = Executors.newFixedThreadPool(parallel);
+        List<Future<?>> results   = new ArrayList<>();
+        long            start     = System.nanoTime();
+
+        try {
+            /* The streams that are not cut go first, they are the longest job */
+            if (rest_file != null) {
+                results.add(executor.submit(() -> {
+                    transcoding(i -> i != video_stream).run(input, rest_file.toString());
+                    return null;
+                }));
+            }
+            for (int k = 0; k < bounds.size(); k++) {
+                long[] begin = bounds.get(k);
+                long   end   = k + 1 < bounds.size() ? bounds.get(k + 1)[0] : AV_NOPTS_VALUE;
+                Path   file  = tmp_dir.resolve("segment" + k + ".nut");
+                int    index = k;
+
+                seg_files.add(file);
+                results.add(executor.submit(() -> {
+                    long        seg_start  = System.nanoTime();
+                    Transcoding transcoding = transcoding(i -> i == video_stream);
+
+                    /*
+                     * A segment reads on into the next one's keyframe, which only the decoded path drops,
+                     * and copying a segment would gain nothing from running it in parallel anyway
+                     */
+                    transcoding.reencode = true;
+                    transcoding.limitToSegment(video_stream, begin[0], begin[1], end);
+                    transcoding.run(input, file.toString());
+                    System.err.println(String.format("Segment %d transcoded in %d ms", index,
+                            (System.nanoTime() - seg_start) / 1000000));
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException("Segment failed", e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the segments", e);
+                }
+            }
+
+            concat(seg_files, rest_file, video_stream, nb_streams);
+            System.err.println(String.format("%d segments on %d threads in %d ms", bounds.size(), parallel,
+                    (System.nanoTime() - start) / 1000000));
+        }
+        finally {
+            executor.shutdownNow();
+            for (Path file : seg_files) {
+                Files.deleteIfExists(file);
+            }
+            if (rest_file != null) {
+                Files.deleteIfExists(rest_file);
+            }
+            Files.deleteIfExists(tmp_dir);
+        }
+    }
+
+    private Transcoding transcoding (IntPredicate streams) {
+        Transcoding transcoding = new Transcoding();
+
+        options.accept(transcoding);
+
+        /* "auto" shares the cores between the jobs that run at the same time */
+        int sharing = jobs * Math.max(1, Math.min(segments, Runtime.getRuntime().availableProcessors()));
+
+        transcoding.decoderThreading = new CodecThreading(dec_threads, thread_type, sharing);
+        transcoding.encoderThreading = new CodecThreading(enc_threads, thread_type, sharing);
+        transcoding.includeStream    = streams;
+        transcoding.timestampOffset  = TIMESTAMP_OFFSET;
+        return transcoding;
+    }
+
+    /* {pts, dts} of each segment's first keyframe, the first segment starts at the beginning */
+    private List<long[]> find_boundaries (AVFormatContext fmt_ctx, int video_stream) {
+        List<long[]> bounds     = new ArrayList<>();
+        AVRational   time_base  = fmt_ctx.streams(video_stream).time_base();
+        long         start_time = fmt_ctx.start_time() != AV_NOPTS_VALUE ? fmt_ctx.start_time() : 0;
+        long         duration   = fmt_ctx.duration();
+        long[]       first      = next_keyframe(fmt_ctx, video_stream);
+
+        bounds.add(new long[] { AV_NOPTS_VALUE, AV_NOPTS_VALUE });
+        if (first == null || duration == AV_NOPTS_VALUE || duration <= 0) {
+            return bounds;
+        }
+
+        long last = first[0];
+
+        for (int k = 1; k < segments; k++) {
+            long target = av_rescale_q(start_time + duration * k / segments, av_make_q(1, AV_TIME_BASE), time_base);
+
+            if (av_seek_frame(fmt_ctx, video_stream, target, AVSEEK_FLAG_BACKWARD) < 0) {
+                break;
+            }
+
+            long[] keyframe = next_keyframe(fmt_ctx, video_stream);
+
+            if (keyframe != null && keyframe[0] > last) {
+                bounds.add(keyframe);
+                last = keyframe[0];
+            }
+        }
+        return bounds;
+    }
+
+    /* {pts, dts} of the next keyframe of the stream */
+    private static long[] next_keyframe (AVFormatContext fmt_ctx, int stream_index) {
+        try (AVPacket packet = new AVPacket()) {
+            while (av_read_frame(fmt_ctx, packet) >= 0) {
+                try {
+                    if (packet.stream_index() == stream_index && (packet.flags() & AV_PKT_FLAG_KEY) != 0) {
+                        long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+
+                        return new long[] { pts, packet.dts() };
+                    }
+                }
+                finally {
+                    av_packet_unref(packet);
+                }
+            }
+        }
+        return null;
+    }
+
+    /* Mux the video segments in order, interleaved by DTS with the streams that were not cut */
+    private void concat (List<Path> seg_files, Path rest_file, int video_stream, int nb_streams) throws IOException {
+        AVFormatContext   ofmt_ctx  = new AVFormatContext(null);
+        AVFormatContext   rest_ctx  = null;
+        SegmentReader     segs      = null;
+        AVIOOutput        out_io    = null;
+        int[]             rest_map  = new int[nb_streams];
+        AVPacket          seg_pkt   = new AVPacket();
+        AVPacket          rest_pkt  = new AVPacket();
+        long              last_dts  = Long.MIN_VALUE;
+
+        try {
+            Transcoding.check(avformat_alloc_output_context2(ofmt_ctx, null, null, output));
+            if (rest_file != null) {
+                rest_ctx = open_segment(rest_file);
+            }
+
+            /* Same stream order as the input, the first segment stands in for the video */
+            AVFormatContext first = open_segment(seg_files.get(0));
+
+            try {
+                for (int i = 0, rest = 0; i < nb_streams; i++) {
+                    AVStream in_stream  = i == video_stream ? first.streams(0) : rest_ctx.streams(rest);
+                    AVStream out_stream = avformat_new_stream(ofmt_ctx, null);
+
+                    if (i != video_stream) {
+                        rest_map[rest++] = i;
+                    }
+                    Transcoding.check(avcodec_parameters_copy(out_stream.codecpar(), in_stream.codecpar()));
+                    out_stream.codecpar().codec_tag(0);     /* NUT tags mean nothing to other containers */
+                    out_stream.time_base(in_stream.time_base());
+                }
+            }
+            finally {
+                avformat_close_input(first);
+            }
+
+            out_io = Transcoding.openOutputIO(ofmt_ctx, output, null);
+            Transcoding.check(avformat_write_header(ofmt_ctx, (AVDictionary) null));
+
+            AVRational video_tb  = ofmt_ctx.streams(video_stream).time_base();
+            boolean    have_seg;
+            boolean    have_rest = rest_ctx != null && av_read_frame(rest_ctx, rest_pkt) >= 0;
+
+            segs     = new SegmentReader(seg_files, video_tb);
+            have_seg = segs.read(seg_pkt);
+
+            while (have_seg || have_rest) {
+                boolean take_seg = have_seg && (!have_rest
+                        || av_compare_ts(seg_pkt.dts(), video_tb,
+                                         rest_pkt.dts() - offset(rest_ctx.streams(rest_pkt.stream_index()).time_base()),
+                                         rest_ctx.streams(rest_pkt.stream_index()).time_base()) <= 0);
+
+                if (take_seg) {
+                    seg_pkt.stream_index(video_stream);
+
+                    /* Encoder delays match, but keep DTS strictly increasing across cuts regardless */
+                    if (seg_pkt.dts() <= last_dts) {
+                        seg_pkt.dts(last_dts + 1);
+                    }
+                    last_dts = seg_pkt.dts();
+                    Transcoding.check(av_interleaved_write_frame(ofmt_ctx, seg_pkt));
+                    have_seg = segs.read(seg_pkt);
+                }
+                else {
+                    AVRational time_base = rest_ctx.streams(rest_pkt.stream_index()).time_base();
+                    int        out_index = rest_map[rest_pkt.stream_index()];
+
+                    Transcoding.offsetTimestamps(rest_pkt, -offset(time_base));
+                    av_packet_rescale_ts(rest_pkt, time_base, ofmt_ctx.streams(out_index).time_base());
+                    rest_pkt.stream_index(out_index);
+                    Transcoding.check(av_interleaved_write_frame(ofmt_ctx, rest_pkt));
+                    have_rest = av_read_frame(rest_ctx, rest_pkt) >= 0;
+                }
+            }
+
+            Transcoding.check(av_write_trailer(ofmt_ctx));
+        }
+        finally {
+            av_packet_unref(seg_pkt);
+            av_packet_unref(rest_pkt);
+            seg_pkt.close();
+            rest_pkt.close();
+            if (segs != null) {
+                segs.close();
+            }
+            if (rest_ctx != null) {
+                avformat_close_input(rest_ctx);
+            }
+            if (!ofmt_ctx.isNull()) {
+                Transcoding.closeOutput(ofmt_ctx, out_io);
+            }
+        }
+    }
+
+    /*
+     * Reads the video segments back to back, with the offset taken off and in the output time base.
+     * NUT stores no DTS: the demuxer derives it from the reordered PTS, which leaves the first few
+     * packets of each file without one. Those get values just below the first derived DTS, the
+     * segment's lowest PTS, so DTS stays below PTS and keeps increasing across the cuts.
+     */
+    private static class SegmentReader {
+        private final List<Path>           files;
+        private final AVRational           time_base;
+        private final ArrayDeque<AVPacket> pending = new ArrayDeque<>();
+        private AVFormatContext            fmt_ctx;
+        private int                        next_file;
+
+        SegmentReader (List<Path> files, AVRational time_base) {
+            this.files     = files;
+            this.time_base = time_base;
+        }
+
+        /* false once every segment has been read */
+        boolean read (AVPacket packet) {
+            if (pending.isEmpty()) {
+                fill();
+            }
+
+            AVPacket next = pending.poll();
+
+            if (next == null) {
+                return false;
+            }
+            av_packet_move_ref(packet, next);
+            av_packet_free(next);
+            return true;
+        }
+
+        private void fill () {
+            while (pending.isEmpty()) {
+                if (fmt_ctx == null) {
+                    if (next_file == files.size()) {
+                        return;
+                    }
+                    fmt_ctx = open_segment(files.get(next_file++));
+                }
+
+                /* Queue up to the first packet that has a DTS */
+                AVRational in_tb = fmt_ctx.streams(0).time_base();
+                long       first = AV_NOPTS_VALUE;
+                AVPacket   packet;
+
+                while (first == AV_NOPTS_VALUE) {
+                    packet = av_packet_alloc();
+                    if (av_read_frame(fmt_ctx, packet) < 0) {
+                        av_packet_free(packet);
+                        break;
+                    }
+                    Transcoding.offsetTimestamps(packet, -offset(in_tb));
+                    av_packet_rescale_ts(packet, in_tb, time_base);
+                    pending.add(packet);
+                    first = packet.dts();
+                }
+
+                if (first == AV_NOPTS_VALUE) {
+                    /* End of this segment */
+                    for (AVPacket p : pending) {
+                        first = first == AV_NOPTS_VALUE ? p.pts() : Math.min(first, p.pts());
+                    }
+                    avformat_close_input(fmt_ctx);
+                    fmt_ctx = null;
+                }
+
+                int below = 0;
+
+                for (AVPacket p : pending) {
+                    if (p.dts() == AV_NOPTS_VALUE) {
+                        below++;
+                    }
+                }
+                for (AVPacket p : pending) {
+                    if (p.dts() == AV_NOPTS_VALUE) {
+                        p.dts(first - below--);
+                    }
+                }
+            }
+        }
+
+        void close () {
+            for (AVPacket packet : pending) {
+                av_packet_free(packet);
+            }
+            pending.clear();
+            if (fmt_ctx != null) {
+                avformat_close_input(fmt_ctx);
+            }
+        }
+    }
+
+    /* The offset the pieces were written with */
+    private static long offset (AVRational time_base) {
+        return av_rescale_q(TIMESTAMP_OFFSET, av_make_q(1, AV_TIME_BASE), time_base);
+    }
+
+    private static AVFormatContext open_segment (Path file) {
+        AVFormatContext fmt_ctx = new AVFormatContext(null);
+
+        Transcoding.check(avformat_open_input(fmt_ctx, file.toString(), null, null));
+        Transcoding.check(avformat_find_stream_info(fmt_ctx, (PointerPointer) null));
+        return fmt_ctx;
+    }
+}
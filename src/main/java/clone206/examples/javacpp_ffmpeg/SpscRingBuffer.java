@@ -0,0 +1,218 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer byte ring in off-heap memory, with
+ * a drain thread that empties it into a downstream channel. The producer (the
+ * decoding thread) writes into it like any other channel, so a slow reader at
+ * the other end, e.g. ffplay or a network pipe, no longer stalls decoding until
+ * the ring is full.
+ *
+ * What happens when it is full is up to the {@link Policy}: BLOCK waits for the
+ * drain thread to make room, DROP discards the whole write (a complete frame
+ * from PcmWriter, so the output stays sample aligned) and counts it.
+ *
+ * Only the producer advances tail and only the drain thread advances head, so
+ * each index has a single writer and is published with lazySet.
+ *
+ * If the drain thread fails, whatever it threw is kept and the producer is
+ * woken; the next write, or close, throws it, under either policy.
+ */
+public class SpscRingBuffer implements WritableByteChannel {
+    public enum Policy { BLOCK, DROP }
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    /* How long a side parks while waiting for the other one */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final ByteBuffer ring;
+    private final ByteBuffer producer_view,                 // Separate views, so neither side touches
+                             consumer_view;                 // the other's position and limit
+    private final int capacity;
+    private final Policy policy;
+    private final WritableByteChannel out;
+    private final Thread drainer;
+    private volatile Thread producer;                       // Last thread to write, woken when the drain fails
+
+    private final AtomicLong head = new AtomicLong();       // Total bytes drained
+    private final AtomicLong tail = new AtomicLong();       // Total bytes written
+    private volatile boolean closed;
+    private volatile IOException error;                     // Set by the drain thread on failure
+    private long dropped_bytes;
+    private long dropped_writes;
+
+    public SpscRingBuffer (WritableByteChannel out) {
+        this(out, DEFAULT_CAPACITY, Policy.BLOCK);
+    }
+
+    public SpscRingBuffer (WritableByteChannel out, int capacity, Policy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+        }
+        this.ring          = ByteBuffer.allocateDirect(capacity);
+        this.producer_view = ring.duplicate();
+        this.consumer_view = ring.duplicate();
+        this.capacity      = capacity;
+        this.policy        = policy;
+        this.out           = out;
+
+        drainer = new Thread(this::drain, "ring-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Copies all of src into the ring. Under BLOCK this waits for room; under DROP
+     * a write that doesn't fit is discarded as a whole. Either way src is consumed.
+     */
+    @Override
+    public int write (ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (error != null) {
+            throw error;
+        }
+        producer = Thread.currentThread();
+
+        final int len = src.remaining();
+
+        if (policy == Policy.DROP && (len > capacity || capacity - (tail.get() - head.get()) < len)) {
+            src.position(src.limit());
+            dropped_bytes += len;
+            dropped_writes++;
+            return len;
+        }
+
+        while (src.hasRemaining()) {
+            long t   = tail.get();
+            int free = capacity - (int) (t - head.get());
+
+            if (free == 0) {
+                if (error != null) {
+                    throw error;
+                }
+                LockSupport.unpark(drainer);
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+
+            /* Copy up to the end of the ring or the free space, whichever comes first */
+            int offset = (int) (t % capacity),
+                chunk  = Math.min(Math.min(free, capacity - offset), src.remaining()),
+                limit  = src.limit();
+
+            producer_view.limit(offset + chunk).position(offset);
+            src.limit(src.position() + chunk);
+            producer_view.put(src);
+            src.limit(limit);
+            tail.lazySet(t + chunk);
+        }
+        LockSupport.unpark(drainer);
+
+        if (error != null) {
+            throw error;
+        }
+        return len;
+    }
+
+    /* Drain thread: writes everything between head and tail to the downstream channel */
+    private void drain () {
+        try {
+            while (true) {
+                long h = head.get(),
+                     t = tail.get();
+
+                if (h == t) {
+                    /* Re-read tail after seeing closed, so the producer's last write isn't lost */
+                    if (closed) {
+                        if (tail.get() == h) {
+                            return;
+                        }
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    continue;
+                }
+
+                int offset = (int) (h % capacity),
+                    chunk  = (int) Math.min(t - h, capacity - offset);
+
+                consumer_view.limit(offset + chunk).position(offset);
+                while (consumer_view.hasRemaining()) {
+                    out.write(consumer_view);
+                }
+                head.lazySet(h + chunk);
+            }
+        } catch (Throwable t) {
+            /* Anything, not just I/O errors: a silently dead drainer would leave a BLOCK producer parked for good */
+            error = t instanceof IOException ? (IOException) t : new IOException("Ring buffer drain failed", t);
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /** Bytes written but not yet drained */
+    public long buffered () {
+        return tail.get() - head.get();
+    }
+
+    public long droppedBytes () {
+        return dropped_bytes;
+    }
+
+    public long droppedWrites () {
+        return dropped_writes;
+    }
+
+    @Override
+    public boolean isOpen () {
+        return !closed;
+    }
+
+    /** Waits for the drain thread to empty the ring, then closes the downstream channel. Rethrows any write error. */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            LockSupport.unpark(drainer);
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while draining the ring buffer", e);
+        } finally {
+            out.close();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
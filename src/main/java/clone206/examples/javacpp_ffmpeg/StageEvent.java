@@ -0,0 +1,86 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+ * Periodic JFR event with the running totals of one StageMetrics stage.
+ * Only loaded by StageMetrics once it knows the JVM has JFR, so the tools
+ * still run on JVMs without it. Builds on JDKs before 11 leave it out (the
+ * no-jfr profile), so the rest compiles without jdk.jfr.
+ */
+@Name("clone206.examples.javacpp_ffmpeg.Stage")
+@Label("Media Stage")
+@Category({ "FFmpeg Examples" })
+@Description("Totals of one pipeline stage since the start")
+@Period("1 s")
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Calls")
+    long calls;
+
+    @Label("Frames")
+    long frames;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Samples")
+    long samples;
+
+    @Label("Total Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long total;
+
+    @Label("Max Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long max;
+
+    @Label("Peak Physical Memory")
+    @DataAmount
+    long peak;
+
+    static void register () {
+        FlightRecorder.addPeriodicEvent(StageEvent.class, () -> {
+            for (StageMetrics.Stage s : StageMetrics.stages()) {
+                StageEvent event = new StageEvent();
+
+                event.stage   = s.getName();
+                event.calls   = s.getCalls();
+                event.frames  = s.getFrames();
+                event.bytes   = s.getBytes();
+                event.samples = s.getSamples();
+                event.total   = (long) (s.getTotalMillis() * 1e6);
+                event.max     = (long) (s.getMaxMicros() * 1e3);
+                event.peak    = s.getPeakPhysicalBytes();
+                event.commit();
+            }
+        });
+    }
+}
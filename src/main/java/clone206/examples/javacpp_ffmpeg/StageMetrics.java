@@ -0,0 +1,312 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Timing and counters for the stages of the tools: read, decode, filter,
+ * encode, write and so on. Call sites take a timestamp before the libav*
+ * call and record the stage after it:
+ *
+ *     long start = StageMetrics.start();
+ *     ret = av_read_frame(fmt_ctx, packet);
+ *     READ.record(start, 0, packet.size(), 0);
+ *
+ * Recording is two System.nanoTime() calls and a few LongAdder increments,
+ * safe from any thread and cheap enough to leave on; -Dmetrics=false turns
+ * it into a no-op. Latencies go into a log-linear histogram (8 buckets per
+ * power of two, so percentiles are within about 12%).
+ *
+ * Each stage also keeps the peak native memory seen while it ran: the
+ * JavaCPP bytes on every call and the process' physical size on every
+ * NativeMemory.SAMPLE_EVERY-th call, see NativeMemory.
+ *
+ * Every stage is published three ways: as an MXBean under
+ * clone206.examples.javacpp_ffmpeg:type=Stage, as a periodic JFR event
+ * (StageEvent, on JVMs that have JFR), and as a JSON summary written at exit
+ * to the file named by -Dmetrics.json, or to stderr.
+ */
+public final class StageMetrics {
+    public static final boolean ENABLED = !"false".equals(System.getProperty("metrics"));
+
+    private static final String JSON_FILE = System.getProperty("metrics.json");
+    private static final String DOMAIN    = "clone206.examples.javacpp_ffmpeg";
+    private static final int    BUCKETS   = 8 * 62;
+
+    private static final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    /** The management view of a stage; times are in microseconds. */
+    public interface StageMXBean {
+        String getName ();
+        long   getCalls ();
+        long   getFrames ();
+        long   getBytes ();
+        long   getSamples ();
+        double getTotalMillis ();
+        double getMeanMicros ();
+        double getP50Micros ();
+        double getP99Micros ();
+        double getMaxMicros ();
+        long   getPeakTotalBytes ();
+        long   getPeakPhysicalBytes ();
+    }
+
+    public static final class Stage implements StageMXBean {
+        private final String          name;
+        private final LongAdder       calls   = new LongAdder();
+        private final LongAdder       nanos   = new LongAdder();
+        private final LongAdder       frames  = new LongAdder();
+        private final LongAdder       bytes   = new LongAdder();
+        private final LongAdder       samples = new LongAdder();
+        private final AtomicLong      max     = new AtomicLong();
+        private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+        private final AtomicLong      peak_total    = new AtomicLong();
+        private final AtomicLong      peak_physical = new AtomicLong();
+        private int                   tick;     /* racy on purpose, it only spaces out the samples */
+
+        private Stage (String name) {
+            this.name = name;
+        }
+
+        /** Records one call that began at start, a StageMetrics.start() timestamp. */
+        public void record (long start) {
+            record(start, 0, 0, 0);
+        }
+
+        public void record (long start, long frames, long bytes, long samples) {
+            if (ENABLED) {
+                add(System.nanoTime() - start, frames, bytes, samples);
+            }
+        }
+
+        /** Records one call that took the given time, for stages timed in several pieces. */
+        public void add (long elapsed, long frames, long bytes, long samples) {
+            if (!ENABLED) {
+                return;
+            }
+            calls.increment();
+            nanos.add(elapsed);
+            if (frames != 0) {
+                this.frames.add(frames);
+            }
+            if (bytes != 0) {
+                this.bytes.add(bytes);
+            }
+            if (samples != 0) {
+                this.samples.add(samples);
+            }
+            latency.incrementAndGet(bucket(elapsed));
+
+            long m;
+
+            while (elapsed > (m = max.get()) && !max.compareAndSet(m, elapsed)) ;
+
+            NativeMemory.peak(peak_total, NativeMemory.totalBytes());
+            if (tick++ % NativeMemory.SAMPLE_EVERY == 0) {
+                NativeMemory.peak(peak_physical, NativeMemory.physicalBytes());
+            }
+        }
+
+        public String getName ()        { return name; }
+        public long   getCalls ()       { return calls.sum(); }
+        public long   getFrames ()      { return frames.sum(); }
+        public long   getBytes ()       { return bytes.sum(); }
+        public long   getSamples ()     { return samples.sum(); }
+        public double getTotalMillis () { return nanos.sum() / 1e6; }
+        public double getMaxMicros ()   { return max.get() / 1e3; }
+        public double getP50Micros ()   { return percentile(0.50) / 1e3; }
+        public double getP99Micros ()   { return percentile(0.99) / 1e3; }
+        public long   getPeakTotalBytes ()    { return peak_total.get(); }
+        public long   getPeakPhysicalBytes () { return peak_physical.get(); }
+
+        public double getMeanMicros () {
+            long n = calls.sum();
+
+            return n == 0 ? 0 : nanos.sum() / 1e3 / n;
+        }
+
+        /* Upper bound of the bucket holding the given fraction of the calls, in ns */
+        private long percentile (double fraction) {
+            long total = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                total += latency.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                if ((seen += latency.get(i)) >= rank) {
+                    return i + 1 < BUCKETS ? Math.min(lower_bound(i + 1), max.get()) : max.get();
+                }
+            }
+            return max.get();
+        }
+
+        private void toJson (StringBuilder sb) {
+            Json.name(sb, name).append('{');
+            Json.name(sb, "calls").append(getCalls());
+            Json.name(sb, "frames").append(getFrames());
+            Json.name(sb, "bytes").append(getBytes());
+            Json.name(sb, "samples").append(getSamples());
+            Json.number(Json.name(sb, "total_ms"), getTotalMillis());
+            Json.number(Json.name(sb, "mean_us"), getMeanMicros());
+            Json.number(Json.name(sb, "p50_us"), getP50Micros());
+            Json.number(Json.name(sb, "p99_us"), getP99Micros());
+            Json.number(Json.name(sb, "max_us"), getMaxMicros());
+            Json.name(sb, "peak_total_bytes").append(getPeakTotalBytes());
+            Json.name(sb, "peak_physical_bytes").append(getPeakPhysicalBytes());
+            sb.append('}');
+        }
+    }
+
+    private StageMetrics () {
+    }
+
+    /** A timestamp for Stage.record, 0 when recording is off. */
+    public static long start () {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** Nanoseconds since a start() timestamp, for Stage.add. */
+    public static long since (long start) {
+        return ENABLED ? System.nanoTime() - start : 0;
+    }
+
+    /** The stage of that name, created and published on first use. */
+    public static Stage stage (String name) {
+        synchronized (stages) {
+            Stage stage = stages.get(name);
+
+            if (stage == null) {
+                if (stages.isEmpty()) {
+                    publish();
+                }
+                stage = new Stage(name);
+                stages.put(name, stage);
+                register(stage);
+            }
+            return stage;
+        }
+    }
+
+    /** Snapshot of every stage, in the order they were created. */
+    public static List<Stage> stages () {
+        synchronized (stages) {
+            return new ArrayList<>(stages.values());
+        }
+    }
+
+    /** All stages that saw any calls and the native memory report, as a JSON object. */
+    public static String toJson () {
+        StringBuilder sb = new StringBuilder("{");
+
+        Json.name(sb, "stages").append('{');
+        for (Stage stage : stages()) {
+            if (stage.getCalls() > 0) {
+                stage.toJson(sb);
+            }
+        }
+        sb.append('}');
+        Json.name(sb, "memory").append(NativeMemory.toJson());
+        return sb.append('}').toString();
+    }
+
+    private static void register (Stage stage) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stage,
+                    new ObjectName(DOMAIN + ":type=Stage,name=" + ObjectName.quote(stage.name)));
+        }
+        catch (Exception e) {
+            System.err.println("Could not register the " + stage.name + " stage MBean: " + e);
+        }
+    }
+
+    /* JFR events if the JVM has JFR, and the summary at exit */
+    private static void publish () {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            /* by name, as StageEvent isn't compiled on JDKs without JFR, see the no-jfr profile */
+            Class.forName("jdk.jfr.FlightRecorder");
+            Class.forName(StageMetrics.class.getPackage().getName() + ".StageEvent")
+                 .getDeclaredMethod("register").invoke(null);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            /* no JFR in this JVM, or built without StageEvent */
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(StageMetrics::summary, "metrics summary"));
+    }
+
+    private static void summary () {
+        if (stages().stream().allMatch(s -> s.getCalls() == 0)) {
+            return;
+        }
+
+        String json = toJson();
+
+        if (JSON_FILE == null) {
+            System.err.println("Stage metrics: " + json);
+            return;
+        }
+        try (Writer out = Files.newBufferedWriter(Paths.get(JSON_FILE), StandardCharsets.UTF_8)) {
+            out.write(json);
+            out.write('\n');
+        }
+        catch (IOException e) {
+            System.err.println("Could not write " + JSON_FILE + ": " + e);
+        }
+    }
+
+    /* Exact below 8ns, then 8 linear buckets per power of two */
+    static int bucket (long nanos) {
+        if (nanos < 8) {
+            return (int) Math.max(nanos, 0);
+        }
+
+        int log2 = 63 - Long.numberOfLeadingZeros(nanos);
+
+        return Math.min((log2 - 2) * 8 + (int) ((nanos >>> (log2 - 3)) & 7), BUCKETS - 1);
+    }
+
+    static long lower_bound (int bucket) {
+        if (bucket < 8) {
+            return bucket;
+        }
+        return (8L + bucket % 8) << (bucket / 8 - 1);
+    }
+}
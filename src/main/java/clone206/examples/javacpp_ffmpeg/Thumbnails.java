@@ -0,0 +1,349 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.*;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swscale.*;
+
+/**
+ * Keyframe-only thumbnail extraction.
+ *
+ * Rather than decoding every packet, seeks to evenly spaced sample points
+ * and decodes only the keyframe found at each one: the demuxer discards
+ * every other stream, non-key packets are never sent to the decoder and the
+ * decoder itself skips non-keyframes (AVDISCARD_NONKEY). Each keyframe is
+ * scaled with a cached SwsContext and written as a JPEG, PNG or raw RGB24
+ * file, picked by the output name's extension.
+ *
+ * @author Kevin Witmer
+ */
+public class Thumbnails {
+    /* Where the time goes, see StageMetrics */
+    static final StageMetrics.Stage SEEK   = StageMetrics.stage("seek"),
+                                    READ   = StageMetrics.stage("read"),
+                                    DECODE = StageMetrics.stage("decode"),
+                                    SCALE  = StageMetrics.stage("scale"),
+                                    ENCODE = StageMetrics.stage("encode"),
+                                    WRITE  = StageMetrics.stage("write");
+
+    final AVFormatContext fmt_ctx;
+    final AVCodecContext  dec_ctx;
+    final int             stream_index;
+    final int             width;        // Thumbnail size, -1 height keeps the aspect ratio
+    int                   height;
+    final int             enc_id;       // AV_CODEC_ID_NONE for raw RGB24
+    AVCodecContext        enc_ctx       = null;
+    SwsContext            sws_ctx       = null;
+    final AVFrame         frame         = av_frame_alloc(),
+                          scaled        = av_frame_alloc();
+    final AVPacket        pkt           = av_packet_alloc();
+
+    static String my_av_err2str (int err) {
+        try (BytePointer e = new BytePointer(512)) {
+            av_strerror(err, e, 512);
+            return e.getString().substring(0, (int) BytePointer.strlen(e));
+        }
+    }
+
+    static int check (int err, String what) {
+        if (err < 0) {
+            throw new RuntimeException(what + " (error '" + my_av_err2str(err) + "')");
+        }
+        return err;
+    }
+
+    /* The output format goes by extension: .jpg/.jpeg, .png, anything else is raw RGB24 */
+    static int codecFor (String output) {
+        String name = output.toLowerCase();
+
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return AV_CODEC_ID_MJPEG;
+        }
+        else if (name.endsWith(".png")) {
+            return AV_CODEC_ID_PNG;
+        }
+        return AV_CODEC_ID_NONE;
+    }
+
+    /* Opens the input with only its best video stream left undiscarded, and a keyframe-only decoder */
+    Thumbnails (String input, int width, int height, int enc_id) {
+        AVFormatContext fmt     = new AVFormatContext(null);
+        AVCodec         decoder = new AVCodec(null);
+        AVCodecContext  dec;
+
+        check(avformat_open_input(fmt, input, null, null), "Could not open input " + input);
+        fmt_ctx = fmt;
+        check(ProbeCache.findStreamInfo(fmt_ctx, input), "Could not find stream information");
+        stream_index = check(av_find_best_stream(fmt_ctx, AVMEDIA_TYPE_VIDEO, -1, -1, decoder, 0),
+                "Could not find a video stream");
+
+        // Packets of the other streams are dropped by the demuxer instead of being read and thrown away here
+        for (int i = 0; i < fmt_ctx.nb_streams(); i++) {
+            fmt_ctx.streams(i).discard(i == stream_index ? AVDISCARD_DEFAULT : AVDISCARD_ALL);
+        }
+
+        dec = avcodec_alloc_context3(decoder);
+        dec_ctx = dec;
+        check(avcodec_parameters_to_context(dec_ctx, fmt_ctx.streams(stream_index).codecpar()),
+                "Could not copy decoder parameters");
+        dec_ctx.skip_frame(AVDISCARD_NONKEY);
+        // Every keyframe is needed right away, so no frame threading delay
+        dec_ctx.thread_type(CodecThreading.FF_THREAD_SLICE);
+        check(avcodec_open2(dec_ctx, decoder, (AVDictionary) null), "Could not open decoder");
+
+        this.width  = width;
+        this.height = height;
+        this.enc_id = enc_id;
+    }
+
+    /* Sample point i of count, in stream time base: the middle of each of count equal spans */
+    long samplePoint (int i, int count) {
+        AVStream stream = fmt_ctx.streams(stream_index);
+        long start      = stream.start_time() != AV_NOPTS_VALUE ? stream.start_time() : 0;
+        long duration   = stream.duration();
+
+        if (duration <= 0 && fmt_ctx.duration() != AV_NOPTS_VALUE) {
+            duration = av_rescale_q(fmt_ctx.duration(), av_make_q(1, AV_TIME_BASE), stream.time_base());
+        }
+        if (duration <= 0) {
+            throw new RuntimeException("Input duration is unknown, can't place sample points");
+        }
+        return start + (long) (duration * ((i + 0.5) / count));
+    }
+
+    /*
+     * Seeks to the keyframe at or before ts and decodes it into frame.
+     * Returns false if no keyframe could be decoded from there to the end.
+     */
+    boolean decodeKeyframeAt (long ts) {
+        long start = StageMetrics.start();
+        int  ret;
+
+        check(av_seek_frame(fmt_ctx, stream_index, ts, AVSEEK_FLAG_BACKWARD), "Could not seek");
+        avcodec_flush_buffers(dec_ctx);
+        SEEK.record(start);
+
+        while (true) {
+            start = StageMetrics.start();
+            ret   = av_read_frame(fmt_ctx, pkt);
+            READ.record(start, 0, ret < 0 ? 0 : pkt.size(), 0);
+
+            if (ret < 0) {
+                return false;
+            }
+
+            try {
+                if (pkt.stream_index() != stream_index || (pkt.flags() & AV_PKT_FLAG_KEY) == 0) {
+                    continue;
+                }
+
+                /*
+                 * Drain right after the keyframe: otherwise a decoder with reordering
+                 * delay holds it back until more frames arrive. The next seek flushes.
+                 */
+                start = StageMetrics.start();
+                check(avcodec_send_packet(dec_ctx, pkt), "Could not decode");
+                check(avcodec_send_packet(dec_ctx, null), "Could not decode");
+                ret = avcodec_receive_frame(dec_ctx, frame);
+                DECODE.record(start, ret >= 0 ? 1 : 0, pkt.size(), 0);
+
+                if (ret >= 0) {
+                    return true;
+                }
+                if (ret != AVERROR_EOF()) {
+                    check(ret, "Could not decode");
+                }
+                // A keyframe the decoder still can't output on its own, try the next one
+                avcodec_flush_buffers(dec_ctx);
+            }
+            finally {
+                av_packet_unref(pkt);
+            }
+        }
+    }
+
+    /* Scales the decoded frame into scaled, in the encoder's pixel format (RGB24 for raw output) */
+    void scale () {
+        long start  = StageMetrics.start();
+        int dst_fmt = enc_id == AV_CODEC_ID_MJPEG ? AV_PIX_FMT_YUVJ420P : AV_PIX_FMT_RGB24;
+
+        if (height < 0) {
+            AVRational sar  = frame.sample_aspect_ratio();
+            double aspect   = frame.width() * (sar.num() > 0 && sar.den() > 0 ? av_q2d(sar) : 1) / frame.height();
+            height          = Math.max(2, (int) Math.round(width / aspect) & ~1);
+        }
+
+        if (scaled.width() != width || scaled.height() != height) {
+            av_frame_unref(scaled);
+            scaled.width(width);
+            scaled.height(height);
+            scaled.format(dst_fmt);
+            check(av_frame_get_buffer(scaled, 32), "Could not allocate the thumbnail frame");
+        }
+
+        // Only rebuilt if the source size or format changes between keyframes
+        sws_ctx = sws_getCachedContext(sws_ctx, frame.width(), frame.height(), frame.format(),
+                width, height, dst_fmt, SWS_BILINEAR, null, null, (DoublePointer) null);
+
+        if (sws_ctx == null || sws_ctx.isNull()) {
+            throw new RuntimeException("Could not create the scaling context");
+        }
+        sws_scale(sws_ctx, frame.data(), frame.linesize(), 0, frame.height(), scaled.data(), scaled.linesize());
+        SCALE.record(start, 1, 0, 0);
+    }
+
+    /* Encodes the scaled frame into one image file, or writes its RGB24 rows for raw output */
+    void write (String output) throws IOException {
+        long start;
+        byte[] data;
+
+        if (enc_id == AV_CODEC_ID_NONE) {
+            int row     = width * 3;
+            data        = new byte[row * height];
+
+            for (int y = 0; y < height; y++) {
+                scaled.data(0).position((long) y * scaled.linesize(0)).get(data, y * row, row);
+            }
+        }
+        else {
+            start = StageMetrics.start();
+            if (enc_ctx == null) {
+                openEncoder();
+            }
+            // The encoder wants increasing timestamps, even for unrelated pictures
+            scaled.pts(enc_ctx.frame_number());
+            check(avcodec_send_frame(enc_ctx, scaled), "Could not encode thumbnail");
+            check(avcodec_receive_packet(enc_ctx, pkt), "Could not encode thumbnail");
+            data = new byte[pkt.size()];
+            pkt.data().get(data);
+            av_packet_unref(pkt);
+            ENCODE.record(start, 1, data.length, 0);
+        }
+
+        start = StageMetrics.start();
+        try (OutputStream out = new FileOutputStream(output)) {
+            out.write(data);
+        }
+        WRITE.record(start, 1, data.length, 0);
+    }
+
+    /* Image encoders are intra-only, so one context serves every thumbnail */
+    void openEncoder () {
+        AVCodec encoder = avcodec_find_encoder(enc_id);
+
+        if (encoder == null) {
+            throw new RuntimeException("Could not find encoder " + avcodec_get_name(enc_id).getString());
+        }
+        enc_ctx = avcodec_alloc_context3(encoder);
+        enc_ctx.width(width);
+        enc_ctx.height(height);
+        enc_ctx.pix_fmt(scaled.format());
+        enc_ctx.time_base(av_make_q(1, 25));
+        check(avcodec_open2(enc_ctx, encoder, (AVDictionary) null), "Could not open encoder");
+    }
+
+    /* Writes count thumbnails, output is a pattern with a %d for the thumbnail number. Returns how many were written */
+    int run (int count, String output) throws IOException {
+        AVRational tb   = fmt_ctx.streams(stream_index).time_base();
+        long last_pts   = AV_NOPTS_VALUE;
+        int written     = 0;
+
+        for (int i = 0; i < count; i++) {
+            long ts = samplePoint(i, count);
+
+            if (!decodeKeyframeAt(ts)) {
+                break;
+            }
+            long pts = frame.best_effort_timestamp();
+
+            // With sparse keyframes two sample points can land on the same one
+            if (pts != last_pts || pts == AV_NOPTS_VALUE) {
+                String name = String.format(output, written + 1);
+
+                scale();
+                write(name);
+                System.err.println(String.format("%s: keyframe at %.3fs for %.3fs", name,
+                        pts == AV_NOPTS_VALUE ? Double.NaN : pts * av_q2d(tb), ts * av_q2d(tb)));
+                written++;
+            }
+            last_pts = pts;
+            av_frame_unref(frame);
+        }
+        return written;
+    }
+
+    void close () {
+        if (enc_ctx != null) {
+            avcodec_free_context(enc_ctx);
+        }
+        if (sws_ctx != null) {
+            sws_freeContext(sws_ctx);
+        }
+        avcodec_free_context(dec_ctx);
+        avformat_close_input(fmt_ctx);
+        av_frame_free(frame);
+        av_frame_free(scaled);
+        av_packet_free(pkt);
+    }
+
+    public static void main (String[] args) throws IOException {
+        int count   = 10,
+            width   = 320,
+            height  = -1,
+            argi    = 0;
+        Thumbnails thumbnails;
+
+        // -n thumbnail count, -s WxH or just W to keep the aspect ratio
+        for (; argi < args.length - 2 && args[argi].startsWith("-"); argi++) {
+            if (args[argi].equals("-n")) {
+                count = Integer.parseInt(args[++argi]);
+            }
+            else if (args[argi].equals("-s")) {
+                String[] size = args[++argi].split("x");
+                width         = Integer.parseInt(size[0]);
+                height        = size.length > 1 ? Integer.parseInt(size[1]) : -1;
+            }
+            else {
+                break;
+            }
+        }
+
+        if (args.length - argi != 2 || !args[argi + 1].contains("%")) {
+            System.err.println("\nexample usage: ");
+            System.err.println("java -jar thumbnails.jar [-n count] [-s W[xH]] <input_movie> <thumb_%03d.jpg|.png|.rgb>");
+            System.err.println("Writes count thumbnails from keyframes evenly spread over the input, without a full decode.\n");
+            System.exit(-1);
+        }
+
+        av_register_all();
+        av_log_set_level(AV_LOG_ERROR);
+
+        thumbnails = new Thumbnails(args[argi], width, height, codecFor(args[argi + 1]));
+        try {
+            int written = thumbnails.run(count, args[argi + 1]);
+            System.err.println(written + " thumbnails written");
+        }
+        finally {
+            thumbnails.close();
+        }
+    }
+}
@@ -19,6 +19,8 @@
 package clone206.examples.javacpp_ffmpeg;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 import org.bytedeco.javacpp.*;
 
 import static org.bytedeco.javacpp.avcodec.*;
@@ -41,30 +43,73 @@ import static org.bytedeco.javacpp.swresample.*;
  *
  * @example transcode_aac.c
  * Convert an input audio file to AAC in an MP4 container using FFmpeg.
+ *
+ * Each instance is one TranscodeSession, so several conversions can run in one JVM.
  */
-public class TranscodeAAC {
+public class TranscodeAAC implements TranscodeSession {
     /* The output bit rate in kbit/s */
     public static final int OUTPUT_BIT_RATE = 96000;
     /* The number of output channels */
     public static final byte OUTPUT_CHANNELS = 2;
 
-    /* Making these ffmpeg objects (and the below primitives) global helps avoid pass-by-value gotchas */
-    static AVCodecContext input_codec_context   = new AVCodecContext(null),
-                          output_codec_context  = new AVCodecContext(null);
-    static AVAudioFifo    fifo                  = new AVAudioFifo(null);
-    static AVFrame        input_frame           = av_frame_alloc(),
-                          output_frame          = av_frame_alloc();
+    /* Making these ffmpeg objects (and the below primitives) fields helps avoid pass-by-value gotchas */
+    AVCodecContext input_codec_context   = new AVCodecContext(null),
+                   output_codec_context  = new AVCodecContext(null);
+    AVAudioFifo    fifo                  = new AVAudioFifo(null);
+    AVFrame        input_frame           = new AVFrame(null),
+                   output_frame          = new AVFrame(null);
+
+    /* Set when reading from a custom source instead of a file */
+    AVIOInput input_io = null;
+    /* Set when writing through a custom sink (including the background file writer) */
+    AVIOOutput output_io = null;
+
+    /* The contexts and buffers of the conversion loop, see open() */
+    final String      input_filename,
+                      output_filename;
+    AVFormatContext   input_format_context      = new AVFormatContext(null),
+                      output_format_context     = new AVFormatContext(null);
+    SwrContext        resample_context          = new SwrContext(null);
+    PointerPointer<BytePointer> converted_input_samples = new PointerPointer<>((long) OUTPUT_CHANNELS);
+    AVPacket          input_packet              = new AVPacket(),
+                      output_packet             = new AVPacket();
+    IntPointer        data_present              = new IntPointer((long) 1),
+                      data_written              = new IntPointer((long) 1);
+    boolean           opened                    = false;
+    /* Input timestamp of the last decoded frame, see position() */
+    volatile long     position                  = AV_NOPTS_VALUE,
+                      start_position            = AV_NOPTS_VALUE;   // The first one, see duration()
+    volatile boolean  cancelled                 = false;    /* set by cancel(), checked once per output frame */
+
+    /* Where the time goes, see StageMetrics */
+    static final StageMetrics.Stage READ     = StageMetrics.stage("read"),
+                                    DECODE   = StageMetrics.stage("decode"),
+                                    RESAMPLE = StageMetrics.stage("resample"),
+                                    ENCODE   = StageMetrics.stage("encode"),
+                                    WRITE    = StageMetrics.stage("write");
 
     /* For deciding when we've exhausted a buffer */
-    static int finished = 0;
-    /* Global timestamp for the audio frames */
-    static long pts     = 0;
+    int finished = 0;
+    /* Running timestamp for the audio frames */
+    long pts     = 0;
+
+    /* Part of the input to convert (--ss/--to), and its bounds in samples once the input is open */
+    ClipRange clip              = ClipRange.ALL;
+    long      clip_start_sample = 0,
+              clip_end_sample   = Long.MAX_VALUE;
+
+    /* A session converting input_filename, "-" for stdin, into output_filename */
+    public TranscodeAAC (String input_filename, String output_filename) {
+        this.input_filename     = input_filename;
+        this.output_filename    = output_filename;
+    }
 
     /* Custom implementation of missing av_err2str() ffmpeg function */
     static String my_av_err2str (int err) {
-        BytePointer e = new BytePointer(512);
-        av_strerror(err, e, 512);
-        return e.getString().substring(0, (int) BytePointer.strlen(e));
+        try (BytePointer e = new BytePointer(512)) {
+            av_strerror(err, e, 512);
+            return e.getString().substring(0, (int) BytePointer.strlen(e));
+        }
     }
     
     /* Check for error code returned by ffmpeg func and throw error */
@@ -75,11 +120,30 @@ public class TranscodeAAC {
     }
 
     /* Open an input file and the required decoder. */
-    static void openInput (String filename, AVFormatContext input_format_context) {
+    void openInput (String filename, AVFormatContext input_format_context) {
         /* Open the input file to read from it. */
         check( avformat_open_input(input_format_context, filename, null, null) );
-        /* Get information on the input file (number of streams etc.). */
-        check( avformat_find_stream_info(input_format_context, (PointerPointer) null) );
+        openDecoder(input_format_context, filename);
+    }
+
+    /*
+     * Open a custom source (see AVIOSource) and the required decoder.
+     * The name is only used for format guessing. Returns the new format context.
+     */
+    AVFormatContext openInput (AVIOSource source, String name) {
+        AVFormatContext input_format_context = avformat_alloc_context();
+
+        input_io = new AVIOInput(source);
+        check( input_io.openInput(input_format_context, name) );
+        openDecoder(input_format_context, name);
+
+        return input_format_context;
+    }
+
+    /* Find and open the decoder for the single audio stream of an opened input. */
+    void openDecoder (AVFormatContext input_format_context, String filename) {
+        /* Get information on the input file (number of streams etc.), from the probe cache if enabled. */
+        check( ProbeCache.findStreamInfo(input_format_context, filename) );
 
         /* Make sure that there is only one stream in the input file. */
         if (input_format_context.nb_streams() != 1) {
@@ -110,18 +174,30 @@ public class TranscodeAAC {
      * Also set some basic encoder parameters.
      * Some of these parameters are based on the input file's parameters.
      */
-    static void openOutput (String filename, AVFormatContext output_format_context) {
+    void openOutput (String filename, AVFormatContext output_format_context) {
+        openOutput(filename, output_format_context, null);
+    }
+
+    /*
+     * Same as above, but mux into a custom sink, e.g. a MemorySink (the filename then only picks the container).
+     * Without a sink, files are written by a background writer thread and other protocols
+     * (pipe:, URLs) through avio_open, see AVIOOutput.open.
+     */
+    void openOutput (String filename, AVFormatContext output_format_context, AVIOSink sink) {
         AVCodecContext avctx = new AVCodecContext(null);
-        AVIOContext output_io_context = new AVIOContext(null);
         AVStream stream = new AVStream(null);
         AVCodec output_codec = new AVCodec(null);
 
         /* Create a new format context for the output container format. */
         check( avformat_alloc_output_context2(output_format_context, null, null, filename) );
-        /* Open the output file to write to it. */
-        check( avio_open(output_io_context, filename, AVIO_FLAG_WRITE) );
-        /* Associate the output file (pointer) with the container format context. */
-        output_format_context.pb( output_io_context );
+
+        /* Write through the sink, or a background writer so encoding never waits on the disk. */
+        try {
+            output_io = AVIOOutput.open(output_format_context, filename, sink);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open output file " + filename, e);
+        }
 
         /* Find the encoder to be used by its name. */
         if ( (output_codec = avcodec_find_encoder(AV_CODEC_ID_AAC)).isNull() ) {
@@ -151,7 +227,6 @@ public class TranscodeAAC {
         avctx.strict_std_compliance(FF_COMPLIANCE_EXPERIMENTAL);
 
         /* Set the sample rate for the container. */
-        stream.time_base(new AVRational());
         stream.time_base().den( input_codec_context.sample_rate() );
         stream.time_base().num( 1 );
 
@@ -185,7 +260,7 @@ public class TranscodeAAC {
      * If the input and output sample formats differ, a conversion is required
      * libswresample takes care of this, but requires initialization.
      */
-    static SwrContext init_resampler () {
+    SwrContext init_resampler () {
         SwrContext swctx = new SwrContext(null);
         /*
          * Create a resampler context for the conversion.
@@ -223,7 +298,7 @@ public class TranscodeAAC {
     }
 
     /* Initialize a FIFO buffer for the audio samples to be encoded. */
-    static void init_fifo () {
+    void init_fifo () {
         /* Create the FIFO buffer based on the specified output sample format. */
         if ( (fifo = av_audio_fifo_alloc(
                     output_codec_context.sample_fmt(),
@@ -235,14 +310,19 @@ public class TranscodeAAC {
     }
 
     /* Decode one audio frame from the input file. */
-    static void decode_audio_frame (AVFormatContext input_format_context, AVPacket input_packet, IntPointer data_present) {
+    void decode_audio_frame (AVFormatContext input_format_context, AVPacket input_packet, IntPointer data_present) {
         int error;
+        long start;
 
         /* Initialize packet used for temporary storage. */
         init_packet(input_packet);
 
         /* Read one audio frame from the input file into a temporary packet. */
-        if ( (error = av_read_frame(input_format_context, input_packet)) < 0) {
+        start = StageMetrics.start();
+        error = av_read_frame(input_format_context, input_packet);
+        READ.record(start, 0, error < 0 ? 0 : input_packet.size(), 0);
+
+        if (error < 0) {
             /* If we are at the end of the file, flush the decoder below. */
             if (error == AVERROR_EOF) {
                 finished = 1;
@@ -258,10 +338,12 @@ public class TranscodeAAC {
          * If we are at the end of the file, pass an empty packet to the decoder
          * to flush it.
          */
+        start = StageMetrics.start();
         if ( (error = avcodec_decode_audio4(input_codec_context, input_frame, data_present, input_packet)) < 0 ) {
             av_packet_unref(input_packet);
             throw new RuntimeException("Could not decode frame (error '" + my_av_err2str(error) + ")");
         }
+        DECODE.record(start, data_present.get(), input_packet.size(), data_present.get() != 0 ? input_frame.nb_samples() : 0);
 
         /*
          * If the decoder has not been flushed completely, we are not finished,
@@ -273,9 +355,8 @@ public class TranscodeAAC {
         av_packet_unref(input_packet);
     }
 
-    /* Add converted input audio samples to the FIFO buffer for later processing. */
-    static void add_samples_to_fifo (PointerPointer converted_input_samples) {
-        final int frame_size = input_frame.nb_samples();
+    /* Add the first frame_size converted input audio samples to the FIFO buffer for later processing. */
+    void add_samples_to_fifo (PointerPointer<BytePointer> converted_input_samples, final int frame_size) {
 
         /*
          * Make the FIFO as large as it needs to be to hold both,
@@ -293,8 +374,8 @@ public class TranscodeAAC {
      * Read one audio frame from the input file, decodes, converts and stores
      * it in the FIFO buffer.
      */
-    static void read_decode_convert_and_store (AVFormatContext input_format_context, SwrContext resample_context, 
-            PointerPointer converted_input_samples, AVPacket input_packet, IntPointer data_present) {
+    void read_decode_convert_and_store (AVFormatContext input_format_context, SwrContext resample_context, 
+            PointerPointer<BytePointer> converted_input_samples, AVPacket input_packet, IntPointer data_present) {
         try {
             /* Initialize temporary storage for one input frame. */
             if ( (input_frame = av_frame_alloc()).isNull() ) {
@@ -310,6 +391,32 @@ public class TranscodeAAC {
              * This must not be treated as an error.
              */
             if (finished == 0 && data_present.get() != 0) {
+                /*
+                 * Trim the frame to the clip: samples before its start are pre-roll
+                 * from the seek, and once its end is reached we stop reading.
+                 */
+                int nb_samples  = input_frame.nb_samples(),
+                    skip        = 0,
+                    keep        = nb_samples;
+                long first      = input_frame.best_effort_timestamp();
+
+                if (first != AV_NOPTS_VALUE) {
+                    position = av_rescale_q(first, input_format_context.streams(0).time_base(), ClipRange.TIME_BASE_Q);
+                    if (start_position == AV_NOPTS_VALUE) {
+                        start_position = position;
+                    }
+                    first = av_rescale_q(first, input_format_context.streams(0).time_base(),
+                            av_make_q(1, input_codec_context.sample_rate()));
+                    skip  = (int) Math.max(0, Math.min(nb_samples, clip_start_sample - first));
+                    keep  = (int) Math.max(0, Math.min(nb_samples, clip_end_sample - first));
+
+                    if (first + nb_samples >= clip_end_sample) {
+                        finished = 1;
+                    }
+                }
+                if (keep <= skip) {
+                    return;
+                }
         	    /* Initialize the temporary storage for the converted input samples. */
                 check( av_samples_alloc(
                     converted_input_samples, null, output_codec_context.channels(),
@@ -319,12 +426,18 @@ public class TranscodeAAC {
                 * Convert the input samples to the desired output sample format.
                 * This requires a temporary storage provided by converted_input_samples.
                 */
+                long start = StageMetrics.start();
                 check( swr_convert(
                     resample_context, converted_input_samples, input_frame.nb_samples(),
                     input_frame.extended_data(), input_frame.nb_samples()
                 ) );
+                RESAMPLE.record(start, 1, 0, input_frame.nb_samples());
         	    /* Add the converted input samples to the FIFO buffer for later processing. */
-                add_samples_to_fifo(converted_input_samples);
+                add_samples_to_fifo(converted_input_samples, keep);
+                /* Nothing before the clip start was stored, so the FIFO starts with this frame */
+                if (skip > 0) {
+                    av_audio_fifo_drain(fifo, skip);
+                }
             }
         }
         /* cleanup */
@@ -340,7 +453,7 @@ public class TranscodeAAC {
      * Initialize one input frame for writing to the output file.
      * The frame will be exactly frame_size samples large.
      */
-    static void init_output_frame (int frame_size) {
+    void init_output_frame (int frame_size) {
         int error;
 
     	/* Create a new frame to store the audio samples. */
@@ -371,7 +484,7 @@ public class TranscodeAAC {
     }
 
 	/* Encode one frame worth of audio to the output file. */
-    static void encode_audio_frame (AVFormatContext output_format_context, AVPacket output_packet, IntPointer data_written) {
+    void encode_audio_frame (AVFormatContext output_format_context, AVPacket output_packet, IntPointer data_written) {
         int error;
 
         init_packet(output_packet);
@@ -381,17 +494,25 @@ public class TranscodeAAC {
             pts += output_frame.nb_samples();
         }
 
+        long start = StageMetrics.start();
+
         if ( (error = avcodec_encode_audio2(output_codec_context, output_packet, output_frame, data_written)) < 0 ) {
             av_packet_unref(output_packet);
             throw new RuntimeException("Could not encode frame (error '" + my_av_err2str(error) + "')");
         }
+        ENCODE.record(start, data_written.get(), data_written.get() != 0 ? output_packet.size() : 0,
+                      output_frame.isNull() ? 0 : output_frame.nb_samples());
 
     	/* Write one audio frame from the temporary packet to the output file. */
         if (data_written.get() != 0) {
+            int size = output_packet.size();
+
+            start = StageMetrics.start();
             if ( (error = av_write_frame(output_format_context, output_packet)) < 0 ) {
                 av_packet_unref(output_packet);
                 throw new RuntimeException("Could not write frame (error '" + my_av_err2str(error) + "')");
             }
+            WRITE.record(start, 1, size, 0);
             av_packet_unref(output_packet);
         }
     }
@@ -400,7 +521,7 @@ public class TranscodeAAC {
      * Load one audio frame from the FIFO buffer, encode and write it to the
      * output file.
      */
-    static void load_encode_and_write (AVFormatContext output_format_context, AVPacket output_packet, 
+    void load_encode_and_write (AVFormatContext output_format_context, AVPacket output_packet, 
             IntPointer data_written) {
         final int frame_size = (av_audio_fifo_size(fifo) < output_codec_context.frame_size()
                 ? av_audio_fifo_size(fifo)
@@ -429,122 +550,203 @@ public class TranscodeAAC {
         }
     }
 
-	/* Convert an audio file to an AAC file in an MP4 container. */
-    public static void main (String[] args) throws IOException {
-        /* Args check */
-        if (args.length < 2) {
-            System.err.println("\nexample usage: ");
-            System.err.println("java -jar transcode_aac.jar <input_file> <output_file>");
-            System.exit(-1);
+    /* Open the input and output files, the codecs, the resampler and the FIFO, and write the output header. */
+    @Override
+    public void open () throws IOException {
+        data_present.put(0);
+        /* The sample pointers start out uninitialized, null them so the av_freep() cleanup is safe */
+        for (int i = 0; i < OUTPUT_CHANNELS; i++) {
+            converted_input_samples.put(i, null);
         }
-        
-        AVFormatContext input_format_context        = new AVFormatContext(null),
-                        output_format_context       = new AVFormatContext(null);
-        SwrContext      resample_context            = new SwrContext(null);
-        PointerPointer<?> converted_input_samples   = new PointerPointer<>((long) OUTPUT_CHANNELS);
-        AVPacket        input_packet                = new AVPacket(),
-                        output_packet               = new AVPacket();
-        IntPointer      data_present                = new IntPointer((long) 1),
-                        data_written                = new IntPointer((long) 1);
+        /* Open input and output files, passing along the contexts */
+        if (input_filename.equals("-")) {
+            /* Read from stdin, made seekable by a page cache */
+            input_format_context = openInput(new CachedStreamSource(System.in), "pipe:");
+        }
+        else {
+            openInput(input_filename, input_format_context);
+        }
+        openOutput(output_filename, output_format_context);
+
+        /* Seek to the clip start, rather than decoding everything before it */
+        clip = clip.in(input_format_context);
+        check( clip.seek(input_format_context) );
+        clip_start_sample   = clip.hasStart() ? clip.start(av_make_q(1, input_codec_context.sample_rate())) : 0;
+        clip_end_sample     = clip.end(av_make_q(1, input_codec_context.sample_rate()));
+
+	    /* Initialize the resampler to be able to convert audio sample formats. */
+        resample_context = init_resampler();
+	    /* Initialize the FIFO buffer to store audio samples to be encoded. */
+        init_fifo();
+	    /* Write the header of the output file container. */
+        check( avformat_write_header(output_format_context, (AVDictionary) null) );
+        opened = true;
+    }
 
-        /* Register all formats and codecs */
-        av_register_all();
+    /* Convert the whole input (or clip), flush the encoder and write the trailer. */
+    @Override
+    public void run () throws IOException {
+        if (!opened) {
+            open();
+        }
 
-        try {
-            data_present.put(0);
-            /* Open input and output files, passing along the contexts */
-            openInput(args[0], input_format_context);
-            openOutput(args[1], output_format_context);
-
-    	    /* Initialize the resampler to be able to convert audio sample formats. */
-            resample_context = init_resampler();
-    	    /* Initialize the FIFO buffer to store audio samples to be encoded. */
-            init_fifo();
-    	    /* Write the header of the output file container. */
-            check( avformat_write_header(output_format_context, (AVDictionary) null) );
-
-            while (finished == 0) {
-        	    /* Use the encoder's desired frame size for processing. */
-                final int output_frame_size = output_codec_context.frame_size();
-                finished = 0;
+        while (finished == 0) {
+            if (cancelled) {
+                throw new CancellationException("Conversion cancelled");
+            }
+    	    /* Use the encoder's desired frame size for processing. */
+            final int output_frame_size = output_codec_context.frame_size();
+            finished = 0;
 
+    	    /*
+            * Make sure that there is one frame worth of samples in the FIFO
+            * buffer so that the encoder can do its work.
+            * Since the decoder's and the encoder's frame size may differ, we
+            * need to FIFO buffer to store as many frames worth of input samples
+            * that they make up at least one frame worth of output samples.
+            */
+            while (av_audio_fifo_size(fifo) < output_frame_size) {
         	    /*
-                * Make sure that there is one frame worth of samples in the FIFO
-                * buffer so that the encoder can do its work.
-                * Since the decoder's and the encoder's frame size may differ, we
-                * need to FIFO buffer to store as many frames worth of input samples
-                * that they make up at least one frame worth of output samples.
+                * Decode one frame worth of audio samples, convert it to the
+                * output sample format and put it into the FIFO buffer.
                 */
-                while (av_audio_fifo_size(fifo) < output_frame_size) {
-            	    /*
-                    * Decode one frame worth of audio samples, convert it to the
-                    * output sample format and put it into the FIFO buffer.
-                    */
-                    read_decode_convert_and_store(input_format_context, resample_context, 
-                            converted_input_samples, output_packet, data_present);
-                    
-            	    /*
-                    * If we are at the end of the input file, we continue
-                    * encoding the remaining audio samples to the output file.
-                    */
-                    if (finished != 0) {
-                        break;
-                    }
-                }
-
+                read_decode_convert_and_store(input_format_context, resample_context, 
+                        converted_input_samples, output_packet, data_present);
+                
         	    /*
-                * If we have enough samples for the encoder, we encode them.
-                * At the end of the file, we pass the remaining samples to
-                * the encoder.
+                * If we are at the end of the input file, we continue
+                * encoding the remaining audio samples to the output file.
                 */
-                while (av_audio_fifo_size(fifo) >= output_frame_size
-                        || (finished != 0 && av_audio_fifo_size(fifo) > 0)) {
-            	    /*
-                    * Take one frame worth of audio samples from the FIFO buffer,
-                    * encode it and write it to the output file.
-                    */
-                    load_encode_and_write(output_format_context, output_packet, data_written);
+                if (finished != 0) {
+                    break;
                 }
+            }
 
+    	    /*
+            * If we have enough samples for the encoder, we encode them.
+            * At the end of the file, we pass the remaining samples to
+            * the encoder.
+            */
+            while (av_audio_fifo_size(fifo) >= output_frame_size
+                    || (finished != 0 && av_audio_fifo_size(fifo) > 0)) {
         	    /*
-                * If we are at the end of the input file and have encoded
-                * all remaining samples, we can exit this loop and finish.
+                * Take one frame worth of audio samples from the FIFO buffer,
+                * encode it and write it to the output file.
                 */
-                if (finished != 0) {
-                    data_written.put(0);
-            	    /* Flush the encoder as it may have delayed frames. */
-                    do {
-                        encode_audio_frame(output_format_context, output_packet, data_written);
-                    }
-                    while (data_written.get() != 0);
-                    break;
+                load_encode_and_write(output_format_context, output_packet, data_written);
+            }
+
+    	    /*
+            * If we are at the end of the input file and have encoded
+            * all remaining samples, we can exit this loop and finish.
+            */
+            if (finished != 0) {
+                data_written.put(0);
+        	    /* Flush the encoder as it may have delayed frames. */
+                do {
+                    encode_audio_frame(output_format_context, output_packet, data_written);
                 }
+                while (data_written.get() != 0);
+                break;
             }
+        }
 
-    	    /* Write the trailer of the output file container. */
-            check( av_write_trailer(output_format_context) );
+	    /* Write the trailer of the output file container. */
+        check( av_write_trailer(output_format_context) );
+    }
+
+    @Override
+    public long position () {
+        return position;
+    }
+
+    @Override
+    public long duration () {
+        long start = start_position;
+
+        return start != AV_NOPTS_VALUE ? Math.max(0, position - start) : 0;
+    }
+
+    @Override
+    public void cancel () {
+        cancelled = true;
+    }
+
+    /* Free everything that was opened, whether or not the conversion got through. Safe to call twice. */
+    @Override
+    public void close () throws IOException {
+        if ( !fifo.isNull() ) {
+            av_audio_fifo_free(fifo);
+            fifo = new AVAudioFifo(null);
         }
-        /* cleanup */
-        finally {
-            if ( !fifo.isNull() ) {
-                av_audio_fifo_free(fifo);
-            }
-            swr_free(resample_context);
-            
-            if ( !output_codec_context.isNull() ) {
-                avcodec_free_context(output_codec_context);
+        swr_free(resample_context);
+        
+        if ( !output_codec_context.isNull() ) {
+            avcodec_free_context(output_codec_context);
+        }
+        if ( !output_format_context.isNull() ) {
+            if (output_io != null) {
+                output_io.close();
+                output_io = null;
             }
-            if ( !output_format_context.isNull() ) {
+            else if (output_format_context.pb() != null) {
                 avio_closep(output_format_context.pb());
-                avformat_free_context(output_format_context);
             }
-            if ( !input_codec_context.isNull() ) {
-                avcodec_free_context(input_codec_context);
+            avformat_free_context(output_format_context);
+            output_format_context = new AVFormatContext(null);
+        }
+        if ( !input_codec_context.isNull() ) {
+            avcodec_free_context(input_codec_context);
+        }
+        if ( !input_format_context.isNull() ) {
+            avformat_close_input(input_format_context);
+        }
+        if (input_io != null) {
+            input_io.close();
+            input_io = null;
+        }
+        /* Free the reused packets and flags now, a daemon runs many sessions between collections */
+        input_packet.close();
+        output_packet.close();
+        data_present.close();
+        data_written.close();
+        opened = false;
+    }
+
+	/* Convert an audio file to an AAC file in an MP4 container. */
+    public static void main (String[] args) throws IOException {
+        String clip_from    = null,
+               clip_to      = null;
+        int argi            = 0;
+
+        /* --ss and --to convert only part of the input */
+        for (; argi < args.length - 2 && args[argi].startsWith("--"); argi++) {
+            if (args[argi].equals("--ss")) {
+                clip_from = args[++argi];
+            }
+            else if (args[argi].equals("--to")) {
+                clip_to = args[++argi];
             }
-            if ( !input_format_context.isNull() ) {
-                avformat_close_input(input_format_context);
+            else {
+                break;
             }
         }
+        args = Arrays.copyOfRange(args, argi, args.length);
+
+        /* Args check */
+        if (args.length < 2) {
+            System.err.println("\nexample usage: ");
+            System.err.println("java -jar transcode_aac.jar [--ss time] [--to time] <input_file|-> <output_file>");
+            System.exit(-1);
+        }
+
+        /* Register all formats and codecs */
+        av_register_all();
+
+        try (TranscodeAAC transcode = new TranscodeAAC(args[0], args[1])) {
+            transcode.clip = ClipRange.parse(clip_from, clip_to);
+            transcode.run();
+        }
 
         System.exit(0);
     }
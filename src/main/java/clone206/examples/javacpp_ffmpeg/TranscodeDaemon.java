@@ -0,0 +1,494 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bytedeco.javacpp.*;
+
+import static org.bytedeco.javacpp.avfilter.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Keeps one JVM with the FFmpeg natives loaded and registered, and runs
+ * probe, transcode and filter jobs sent to it over a loopback socket, so a
+ * job only costs the media work instead of a JVM start and native library
+ * load each time.
+ *
+ * A client sends one job per line, e.g. "transcode --vcodec mpeg4 in.mp4 out.mp4",
+ * with double quotes around arguments containing spaces. Every job gets a
+ * number, and the daemon answers with one JSON object per line for it:
+ * "accepted", "progress" every half second while it runs, then "done" with
+ * its result or "error". Jobs from all connections run concurrently on a
+ * fixed pool; a connection is closed once its input ended and its jobs are
+ * done, so "nc -q -1" or a half-closed socket works as a client.
+ *
+ * Any local process can connect to the loopback port, so a connection has
+ * to start with "auth <token>": the daemon writes a fresh random token at
+ * startup to a file only its user can read (~/.transcode_daemon_token by
+ * default). Jobs can't use "-" or pipe: for their files, which would be the
+ * daemon's own standard input and output.
+ *
+ * @author Kevin Witmer
+ */
+public class TranscodeDaemon {
+    public static final int DEFAULT_PORT    = 7206;
+    public static final String TOKEN_FILE   = ".transcode_daemon_token";     // In the user's home directory
+    static final long PROGRESS_INTERVAL_MS  = 500;
+
+    final ExecutorService          pool;
+    final ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(daemonThreads("job progress"));
+    final byte[]                   token;
+
+    public TranscodeDaemon (int jobs, String token) {
+        this.pool   = Executors.newFixedThreadPool(jobs, daemonThreads("job"));
+        this.token  = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /* A fresh random token, written to a file only the owner can read, replacing any earlier one */
+    static String write_token (Path file) throws IOException {
+        byte[] random       = new byte[16];
+        StringBuilder token = new StringBuilder();
+
+        new SecureRandom().nextBytes(random);
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the home directory's own permissions have to do
+            Files.createFile(file);
+        }
+        Files.write(file, (token + "\n").getBytes(StandardCharsets.US_ASCII));
+        return token.toString();
+    }
+
+    /* Whether a connection's first line is "auth <token>"; compares in constant time */
+    boolean authorized (String line) {
+        if (line == null || !line.startsWith("auth ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, line.substring(5).trim().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /* "-" and pipe: would be the daemon's own standard input or output, not the client's */
+    static void check_files (String... names) {
+        for (String name : names) {
+            if (name.equals("-") || name.startsWith("pipe:")) {
+                throw new IllegalArgumentException("Daemon jobs can't use standard input or output: " + name);
+            }
+        }
+    }
+
+    static ThreadFactory daemonThreads (String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /* Splits a job line on whitespace, keeping double-quoted arguments together */
+    static List<String> tokenize (String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = null;
+        boolean quoted      = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                quoted = !quoted;
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+            }
+            else if (Character.isWhitespace(c) && !quoted) {
+                if (token != null) {
+                    tokens.add(token.toString());
+                    token = null;
+                }
+            }
+            else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                token.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        if (token != null) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /* One client connection: reads job lines, writes the JSON events of its jobs */
+    class Connection implements Runnable {
+        final Socket socket;
+        final Writer out;
+        final Phaser jobs       = new Phaser(1);
+        int          next_id    = 1;
+        volatile boolean broken = false;
+
+        Connection (Socket socket) throws IOException {
+            this.socket = socket;
+            this.out    = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /* One event line, never interleaved with another job's; a vanished client only stops the writing */
+        void send (int id, String event, StringBuilder fields) {
+            StringBuilder sb = new StringBuilder("{");
+
+            Json.name(sb, "job").append(id);
+            Json.quote(Json.name(sb, "event"), event);
+            if (fields != null && fields.length() > 0) {
+                sb.append(',').append(fields);
+            }
+            sb.append("}\n");
+
+            synchronized (out) {
+                if (broken) {
+                    return;
+                }
+                try {
+                    out.write(sb.toString());
+                    out.flush();
+                }
+                catch (IOException e) {
+                    broken = true;
+                }
+            }
+        }
+
+        @Override
+        public void run () {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+
+                if (!authorized(in.readLine())) {
+                    error(0, new SecurityException("Not authorized: the first line must be \"auth <token>\""));
+                    return;
+                }
+                while ((line = in.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        submit(next_id++, line);
+                    }
+                }
+                // Input ended, answer the jobs still running before closing
+                jobs.arriveAndAwaitAdvance();
+            }
+            catch (IOException e) {
+                // The client went away; its running jobs still finish
+            }
+            finally {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // Nothing left to tell the client
+                }
+            }
+        }
+
+        void submit (int id, String line) {
+            List<String> args;
+
+            try {
+                args = tokenize(line);
+            }
+            catch (IllegalArgumentException e) {
+                error(id, e);
+                return;
+            }
+
+            jobs.register();
+            send(id, "accepted", Json.quote(Json.name(new StringBuilder("{"), "command"), line).deleteCharAt(0));
+            pool.execute(() -> {
+                try {
+                    run_job(this, id, args);
+                }
+                finally {
+                    jobs.arriveAndDeregister();
+                }
+            });
+        }
+
+        void error (int id, Throwable t) {
+            StringBuilder fields = new StringBuilder("{");
+
+            Json.quote(Json.name(fields, "message"), t.getMessage() != null ? t.getMessage() : t.toString());
+            send(id, "error", fields.deleteCharAt(0));
+        }
+    }
+
+    /* Runs one job on a pool thread and reports how it went */
+    void run_job (Connection conn, int id, List<String> args) {
+        long start = System.nanoTime();
+
+        try {
+            String command        = args.isEmpty() ? "" : args.get(0);
+            List<String> rest     = args.subList(Math.min(1, args.size()), args.size());
+            StringBuilder result  = new StringBuilder();
+
+            switch (command) {
+                case "probe":
+                    result.append(probe(rest));
+                    break;
+                case "transcode":
+                case "aac":
+                    result.append(transcode(conn, id, command, rest));
+                    break;
+                case "filter":
+                    result.append(filter(rest));
+                    break;
+                case "metrics":
+                    result.append(StageMetrics.toJson());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command '" + command
+                            + "', expected probe, transcode, aac, filter or metrics");
+            }
+
+            StringBuilder fields = new StringBuilder("{");
+            Json.number(Json.name(fields, "elapsed_ms"), (System.nanoTime() - start) / 1e6);
+            Json.name(fields, "result").append(result);
+            conn.send(id, "done", fields.deleteCharAt(0));
+        }
+        catch (Throwable t) {
+            conn.error(id, t);
+        }
+    }
+
+    /* probe <file>: the same JSON object as avio_reading -b */
+    String probe (List<String> args) throws IOException {
+        if (args.size() != 1) {
+            throw new IllegalArgumentException("Usage: probe <file>");
+        }
+        check_files(args.get(0));
+        return new BatchProbe(1, 0, 0, null).probe(Paths.get(args.get(0)));
+    }
+
+    /*
+     * transcode [--vcodec e] [--acodec e] [--vf f] [--af f] [--reencode] [--threads n] [--ss t] [--to t] <input> <output>
+     * aac [--ss t] [--to t] <input> <output>
+     * Jobs share the machine, so a job's codecs split a budget of cores between them rather than
+     * each taking all cores: the given threads, unless the job line names its own.
+     */
+    static TranscodeSession new_session (String command, List<String> args, int threads) {
+        String clip_from    = null,
+               clip_to      = null;
+        Transcoding options = new Transcoding();
+        int argi            = 0;
+
+        for (; argi < args.size() - 2 && args.get(argi).startsWith("--"); argi++) {
+            String option = args.get(argi);
+
+            if (option.equals("--ss")) {
+                clip_from = args.get(++argi);
+            }
+            else if (option.equals("--to")) {
+                clip_to = args.get(++argi);
+            }
+            else if (option.equals("--reencode") && command.equals("transcode")) {
+                options.reencode = true;
+            }
+            else if (!command.equals("transcode")) {
+                break;
+            }
+            else if (option.equals("--vcodec")) {
+                options.videoEncoder = args.get(++argi);
+            }
+            else if (option.equals("--acodec")) {
+                options.audioEncoder = args.get(++argi);
+            }
+            else if (option.equals("--vf")) {
+                options.videoFilter = args.get(++argi);
+            }
+            else if (option.equals("--af")) {
+                options.audioFilter = args.get(++argi);
+            }
+            else if (option.equals("--threads")) {
+                threads = Integer.parseInt(args.get(++argi));
+            }
+            else {
+                break;
+            }
+        }
+        if (args.size() - argi != 2) {
+            throw new IllegalArgumentException("Usage: " + command + " [options] <input> <output>");
+        }
+
+        String input  = args.get(argi),
+               output = args.get(argi + 1);
+
+        if (command.equals("aac")) {
+            TranscodeAAC aac    = new TranscodeAAC(input, output);
+            aac.clip            = ClipRange.parse(clip_from, clip_to);
+            return aac;
+        }
+
+        Transcoding transcoding = new Transcoding(input, output);
+        options.copyOptions(transcoding);
+        transcoding.clip                = ClipRange.parse(clip_from, clip_to);
+        transcoding.decoderThreading    = CodecThreading.budget(threads);
+        transcoding.encoderThreading    = CodecThreading.budget(threads);
+        return transcoding;
+    }
+
+    /* transcode and aac jobs, reporting the input position while they run */
+    String transcode (Connection conn, int id, String command, List<String> args) throws IOException {
+        TranscodeSession session;
+        String output            = args.get(args.size() - 1);
+
+        check_files(args.get(Math.max(0, args.size() - 2)), output);
+        session = new_session(command, args, 1);
+
+        ScheduledFuture<?> reporter = progress.scheduleAtFixedRate(() -> {
+            long position = session.position();
+
+            if (position != AV_NOPTS_VALUE) {
+                StringBuilder fields = new StringBuilder("{");
+                Json.number(Json.name(fields, "position"), position / (double) AV_TIME_BASE);
+                conn.send(id, "progress", fields.deleteCharAt(0));
+            }
+        }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        try (TranscodeSession s = session) {
+            s.run();
+        }
+        finally {
+            reporter.cancel(false);
+        }
+
+        StringBuilder result = new StringBuilder("{");
+        Json.quote(Json.name(result, "output"), output);
+        return result.append('}').toString();
+    }
+
+    /*
+     * filter [-s stream[,stream...]] <input> <output_%d.pcm>
+     * FilteringAudio keeps its input in static fields, so filter jobs take turns.
+     */
+    String filter (List<String> args) throws IOException, InterruptedException {
+        Set<Integer> selection = null;
+        int argi               = 0;
+
+        if (args.size() == 4 && args.get(0).equals("-s")) {
+            selection = new HashSet<>();
+            for (String index : args.get(1).split(",")) {
+                selection.add(Integer.parseInt(index.trim()));
+            }
+            argi = 2;
+        }
+        if (args.size() - argi != 2 || !args.get(argi + 1).contains("%")) {
+            throw new IllegalArgumentException("Usage: filter [-s stream[,stream...]] <input> <output_%d.pcm>");
+        }
+
+        check_files(args.get(argi), args.get(argi + 1));
+        synchronized (FilteringAudio.class) {
+            try {
+                FilteringAudio.filter_streams(args.get(argi), selection, args.get(argi + 1), 0, SpscRingBuffer.Policy.BLOCK);
+            }
+            finally {
+                FilteringAudio.close_input();
+            }
+        }
+
+        StringBuilder result = new StringBuilder("{");
+        Json.quote(Json.name(result, "output"), args.get(argi + 1));
+        return result.append('}').toString();
+    }
+
+    /* Accepts connections until the process is stopped */
+    void serve (ServerSocket server) throws IOException {
+        while (true) {
+            Socket socket = server.accept();
+            Thread thread = new Thread(new Connection(socket), "connection " + socket.getRemoteSocketAddress());
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public static void main (String[] args) throws IOException {
+        int port        = DEFAULT_PORT,
+            jobs        = Runtime.getRuntime().availableProcessors(),
+            argi        = 0;
+        Path token_file = Paths.get(System.getProperty("user.home"), TOKEN_FILE);
+
+        // -p port on the loopback interface, -j jobs run at once, -t the file to write the token to
+        for (; argi + 1 < args.length; argi += 2) {
+            if (args[argi].equals("-p")) {
+                port = Integer.parseInt(args[argi + 1]);
+            }
+            else if (args[argi].equals("-j")) {
+                jobs = Integer.parseInt(args[argi + 1]);
+            }
+            else if (args[argi].equals("-t")) {
+                token_file = Paths.get(args[argi + 1]);
+            }
+            else {
+                break;
+            }
+        }
+        if (argi != args.length) {
+            System.err.println("\nexample usage: ");
+            System.err.println("java -jar transcode_daemon.jar [-p port] [-j jobs] [-t token_file]");
+            System.err.println("Runs probe, transcode, aac and filter jobs sent as lines to the loopback port,");
+            System.err.println("after a first line \"auth <token>\" with the token written to token_file.\n");
+            System.exit(-1);
+        }
+
+        // Load and register everything once, up front, instead of per job
+        av_register_all();
+        avfilter_register_all();
+        Loader.load(swresample.class);
+        Loader.load(swscale.class);
+        av_log_set_level(AV_LOG_ERROR);
+
+        // Loopback only: jobs name arbitrary local files, so they must not come from the network,
+        // and only from processes that can read the token file
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            String token = write_token(token_file);
+
+            System.err.println("Listening on " + server.getLocalSocketAddress() + ", " + jobs + " jobs at once, token in " + token_file);
+            new TranscodeDaemon(jobs, token).serve(server);
+        }
+    }
+}
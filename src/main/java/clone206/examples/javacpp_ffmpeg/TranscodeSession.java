@@ -0,0 +1,76 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+import java.io.IOException;
+
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+
+/**
+ * One transcode job with an explicit lifecycle, so a long-running process can
+ * run many of them, one after another or concurrently, instead of paying JVM
+ * startup and native library loading per job.
+ *
+ * open() opens the input and output and sets up the codecs, run() transcodes
+ * and finishes the output, and close() frees every native resource whether
+ * or not the other steps succeeded. A session keeps no per-session static
+ * state and never exits the JVM, but it is used once: open a new one for the
+ * next job. The only static state sessions share are thread-safe pools: the
+ * frame and packet pools in Transcoding and the shared FilterGraphPool.
+ * Formats, codecs and filters are registered once by the caller beforehand
+ * (av_register_all(), avfilter_register_all()).
+ *
+ * <pre>
+ * try (TranscodeSession session = new Transcoding(input, output)) {
+ *     session.run();
+ * }
+ * </pre>
+ */
+public interface TranscodeSession extends AutoCloseable {
+    /** Opens the input and output, and the codecs between them */
+    void open () throws IOException;
+
+    /** Transcodes everything and writes the output trailer, opening the session first if needed */
+    void run () throws IOException;
+
+    /**
+     * How far into the input the session has read, in AV_TIME_BASE units of input timestamps,
+     * for reporting progress from another thread. AV_NOPTS_VALUE when unknown
+     */
+    default long position () {
+        return AV_NOPTS_VALUE;
+    }
+
+    /**
+     * How much of the input the session has read, in AV_TIME_BASE units: position() less
+     * the first input timestamp it read, as inputs and clips rarely start at 0. 0 when unknown
+     */
+    default long duration () {
+        return 0;
+    }
+
+    /**
+     * Asks a running run() to stop, from another thread, e.g. when a job times out.
+     * run() then fails with a CancellationException; close() still has to be called.
+     * Sessions that can't stop early ignore it
+     */
+    default void cancel () {
+    }
+
+    /** Frees the session's native resources and closes its files; safe to call more than once */
+    @Override
+    void close () throws IOException;
+}
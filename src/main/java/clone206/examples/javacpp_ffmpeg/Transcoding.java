@@ -4,6 +4,12 @@ package clone206.examples.javacpp_ffmpeg;
 import org.bytedeco.javacpp.*;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.IntPredicate;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avfilter.*;
@@ -14,43 +20,192 @@ import static org.bytedeco.javacpp.presets.avutil.AVERROR_EAGAIN;
 /**
  * java javacpp-presets/ffmpeg translation of the transcoding ffmpeg official example
  * https://github.com/FFmpeg/FFmpeg/blob/n3.4.1/doc/examples/transcoding.c
+ * Each instance is one TranscodeSession, so many can run in one JVM.
  * @author Bela Hullar
  */
-public class Transcoding {
+public class Transcoding implements TranscodeSession {
     static class FilteringContext {
         AVFilterContext bufferSinkContext;
         AVFilterContext bufferSourceContext;
         AVFilterGraph filterGraph;
+        FilterGraphPool.Graph pooled;
+        boolean stateless;  /* needs no flush, so the graph can go back to the pool */
+        boolean eofSent;
+        AVRational sinkTimeBase;
     }
 
-    static FilteringContext[] filteringContexts;
+    FilteringContext[] filteringContexts;
 
     static class StreamContext {
         AVCodecContext decoderContext;
         AVCodecContext encoderContext;
+        int outputIndex = -1;   /* -1 when the stream is left out of the output */
+        boolean copy;           /* remuxed as is, like subtitles */
+
+        /* Looked up once, so the per-frame path creates no JavaCPP wrappers */
+        int type;
+        AVRational inputTimeBase, decoderTimeBase, encoderTimeBase, outputTimeBase;
+        long outputOffset;
+        long frameStart, frameEnd;      /* clip range in decoder time base */
+        long packetStart, packetEnd;    /* and in input time base */
+        final int[] gotFrame = new int[1];
+        final int[] gotPacket = new int[1];
+        final AVPacket encodedPacket = new AVPacket();
     }
 
-    static StreamContext[] streamContexts;
+    StreamContext[] streamContexts;
 
-    static AVFormatContext inputFormatContext;
-    static AVFormatContext outputFormatContext;
+    /* Queued after a stream's last packet */
+    static final AVPacket END_OF_STREAM = new AVPacket();
+
+    /* Decode -> filter -> encode stage for one audio or video stream, fed by the demuxer */
+    class StreamWorker implements Runnable {
+        final int streamIndex;
+        final BlockingQueue<AVPacket> packets;
+        final Thread thread;
+        volatile Throwable error;
+
+        StreamWorker(int streamIndex, int queueSize) {
+            this.streamIndex = streamIndex;
+            this.packets = new ArrayBlockingQueue<>(queueSize);
+            this.thread = new Thread(this, "transcode stream " + streamIndex);
+        }
+
+        /* takes over the packet's data, the packet is left blank */
+        void submit(AVPacket packet) throws InterruptedException {
+            AVPacket queued = packetPool.acquire();
+            av_packet_move_ref(queued, packet);
+            packets.put(queued);
+        }
+
+        @Override
+        public void run() {
+            AVPacket packet = null;
+
+            try {
+                while ((packet = packets.take()) != END_OF_STREAM) {
+                    decodeFilterEncode(packet, streamIndex);
+                    packetPool.release(packet);
+                }
+                flushStream(streamIndex);
+            } catch (Throwable t) {
+                error = t;
+
+                /* keep draining, so the demuxer never blocks on a dead worker */
+                try {
+                    while (packet != END_OF_STREAM) {
+                        if (packet != null) {
+                            packetPool.release(packet);
+                        }
+                        packet = packets.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                try {
+                    muxer.finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    StreamWorker[] workers;
+    PacketMuxer muxer;
+
+    /* Recycled frames and packets, so the steady-state loop doesn't allocate */
+    static final FramePool framePool = new FramePool(64);
+    static final PacketPool packetPool = new PacketPool(256);
+
+    /* Where the time goes, see StageMetrics; the mux thread records "write" */
+    static final StageMetrics.Stage READ = StageMetrics.stage("read");
+    static final StageMetrics.Stage DECODE = StageMetrics.stage("decode");
+    static final StageMetrics.Stage FILTER = StageMetrics.stage("filter");
+    static final StageMetrics.Stage ENCODE = StageMetrics.stage("encode");
+
+    AVFormatContext inputFormatContext;
+    AVFormatContext outputFormatContext;
+    AVIOInput inputIO;
+    AVIOOutput outputIO;
+    CodecThreading decoderThreading = CodecThreading.auto();
+    CodecThreading encoderThreading = CodecThreading.auto();
+
+    /* Input streams to carry into the output, all by default */
+    IntPredicate includeStream = i -> true;
+
+    /* Keyframe range of segmentStream to transcode, see limitToSegment */
+    int segmentStream = -1;
+    long segmentStart = AV_NOPTS_VALUE;
+    long segmentStartDts = AV_NOPTS_VALUE;
+    long segmentEnd = AV_NOPTS_VALUE;
+
+    /* Added to every output timestamp, in AV_TIME_BASE units */
+    long timestampOffset;
+
+    /* Part of the input to transcode, output timestamps start from its start */
+    ClipRange clip = ClipRange.ALL;
+
+    /* Encoder names, null for the input's codec, and filter specs for the reencoded streams */
+    String videoEncoder;
+    String audioEncoder;
+    String videoFilter = "null";
+    String audioFilter = "anull";
+    boolean reencode;   /* also reencode streams that would come out unchanged */
+
+    /* What the session transcodes, see TranscodeSession */
+    String inputName;
+    String outputName;
+    boolean opened;
+    volatile long position = AV_NOPTS_VALUE;   /* input timestamp the demuxer has reached, see position() */
+    volatile long startPosition = AV_NOPTS_VALUE;  /* the first one it read, see duration() */
+    volatile boolean cancelled;                 /* set by cancel(), stops the demuxer */
+
+    Transcoding() {
+    }
+
+    /* A session transcoding input, "-" for stdin, into output */
+    public Transcoding(String input, String output) {
+        this.inputName = input;
+        this.outputName = output;
+    }
 
     static void check(int err) {
         if (err < 0) {
-            BytePointer e = new BytePointer(512);
-            av_strerror(err, e, 512);
-            throw new RuntimeException(e.getString().substring(0, (int) BytePointer.strlen(e)) + ":" + err);
+            try (BytePointer e = new BytePointer(512)) {
+                av_strerror(err, e, 512);
+                throw new RuntimeException(e.getString().substring(0, (int) BytePointer.strlen(e)) + ":" + err);
+            }
         }
     }
 
-    static void openInput(String fileName) {
+    void openInput(String fileName) {
         inputFormatContext = new AVFormatContext(null);
         check(avformat_open_input(inputFormatContext, fileName, null, null));
-        check(avformat_find_stream_info(inputFormatContext, (PointerPointer) null));
+        openDecoders(fileName);
+    }
+
+    /* Demux from a custom source instead of a file, name is only used for format guessing */
+    void openInput(AVIOSource source, String name) {
+        inputIO = new AVIOInput(source);
+        inputFormatContext = avformat_alloc_context();
+        check(inputIO.openInput(inputFormatContext, name));
+        openDecoders(name);
+    }
+
+    void openDecoders(String fileName) {
+        /* stream parameters come from the probe cache when enabled and the file is unchanged */
+        check(ProbeCache.findStreamInfo(inputFormatContext, fileName));
+        clip = clip.in(inputFormatContext);
         streamContexts = new StreamContext[inputFormatContext.nb_streams()];
-        
+        int videoCodecs = 0, audioCodecs = 0;
+
         for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
             streamContexts[i] = new StreamContext();
+            if (!includeStream.test(i)) {
+                continue;
+            }
             AVStream stream = inputFormatContext.streams(i);
             AVCodec decoder = avcodec_find_decoder(stream.codecpar().codec_id());
 
@@ -59,33 +214,98 @@ public class Transcoding {
             AVCodecContext codecContext = avcodec_alloc_context3(decoder);
             check(avcodec_parameters_to_context(codecContext, stream.codecpar()));
             
-            /* Reencode video & audio and remux subtitles etc. */
+            /* Reencode video & audio that need it and remux subtitles etc. */
             if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO || codecContext.codec_type() == AVMEDIA_TYPE_AUDIO) {
-                if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
-                    codecContext.framerate(av_guess_frame_rate(inputFormatContext, stream, null));
-                }
-                /* Open decoder */
-                check(avcodec_open2(codecContext, decoder, (AVDictionary) null));
+                streamContexts[i].copy = !reencode && isUnchanged(codecContext);
+            } else {
+                streamContexts[i].copy = true;
+            }
+
+            if (streamContexts[i].copy) {
+                System.err.println(String.format("Stream #%d copied", i));
+            } else if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
+                codecContext.framerate(av_guess_frame_rate(inputFormatContext, stream, null));
+                videoCodecs++;
+            } else {
+                audioCodecs++;
             }
             streamContexts[i].decoderContext = codecContext;
         }
+
+        /* every reencoded stream has a decoder and an encoder, sharing the job's cores */
+        CodecThreading.share(decoderThreading, videoCodecs, audioCodecs, encoderThreading, videoCodecs, audioCodecs);
+
+        for (int i = 0; i < streamContexts.length; i++) {
+            AVCodecContext codecContext = streamContexts[i].decoderContext;
+
+            if (codecContext == null || streamContexts[i].copy) {
+                continue;
+            }
+            /* Open decoder */
+            decoderThreading.apply(codecContext, i);
+            check(avcodec_open2(codecContext, codecContext.codec(), (AVDictionary) null));
+            System.err.println(String.format("Stream #%d decoder %s: %s", i,
+                    codecContext.codec().name().getString(), CodecThreading.describe(codecContext)));
+        }
         av_dump_format(inputFormatContext, 0, fileName, 0);
     }
 
-    static AVFormatContext openOutput(String fileName) {
+    /* Whether reencoding would only reproduce the stream: the filter passes frames through
+     * and the encoder is the input's codec */
+    boolean isUnchanged(AVCodecContext decoderContext) {
+        boolean video = decoderContext.codec_type() == AVMEDIA_TYPE_VIDEO;
+
+        if (!(video ? videoFilter.equals("null") : audioFilter.equals("anull"))) {
+            return false;
+        }
+        /* copied video could only start at a keyframe, a clip has to start at the exact frame */
+        if (video && clip.hasStart()) {
+            return false;
+        }
+        /* without an encoder asked for it would be the input's codec, which may not even have an encoder */
+        if ((video ? videoEncoder : audioEncoder) == null) {
+            return true;
+        }
+        return findEncoder(decoderContext).id() == decoderContext.codec_id();
+    }
+
+    AVCodec findEncoder(AVCodecContext decoderContext) {
+        String name = decoderContext.codec_type() == AVMEDIA_TYPE_VIDEO ? videoEncoder : audioEncoder;
+        AVCodec encoder = name != null ? avcodec_find_encoder_by_name(name)
+                : avcodec_find_encoder(decoderContext.codec_id());
+
+        if (encoder == null) {
+            throw new RuntimeException("Encoder not found: "
+                    + (name != null ? name : avcodec_get_name(decoderContext.codec_id()).getString()));
+        }
+        return encoder;
+    }
+
+    AVFormatContext openOutput(String fileName) {
+        return openOutput(fileName, null);
+    }
+
+    /* Mux into a custom sink, e.g. a MemorySink. fileName only picks the container format.
+     * Without a sink, files are written by a BackgroundFileSink and URLs through avio_open */
+    AVFormatContext openOutput(String fileName, AVIOSink sink) {
         outputFormatContext = new AVFormatContext(null);
         check(avformat_alloc_output_context2(outputFormatContext, null, null, fileName));
 
         for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
+            AVCodecContext decoderContext = streamContexts[i].decoderContext;
+
+            if (decoderContext == null) {
+                continue;
+            }
             AVCodec c = new AVCodec(null);
             AVStream outStream = avformat_new_stream(outputFormatContext, c);
             AVStream inStream = inputFormatContext.streams(i);
-            AVCodecContext decoderContext = streamContexts[i].decoderContext;
 
-            if (decoderContext.codec_type() == AVMEDIA_TYPE_VIDEO ||
-                    decoderContext.codec_type() == AVMEDIA_TYPE_AUDIO) {
-                /* in this example, we choose transcoding to same codec */
-                AVCodec encoder = avcodec_find_encoder(decoderContext.codec_id());
+            streamContexts[i].outputIndex = outStream.index();
+
+            if (!streamContexts[i].copy) {
+                /* the input's codec, unless another encoder was asked for */
+                AVCodec encoder = findEncoder(decoderContext);
                 AVCodecContext encoderContext = avcodec_alloc_context3(encoder);
 
                 /* In this example, we transcode to same properties (picture size,
@@ -113,14 +333,18 @@ public class Transcoding {
                     encoderContext.time_base(av_make_q(1, encoderContext.sample_rate()));
                 }
 
-                /* Third parameter can be used to pass settings to encoder */
-                check(avcodec_open2(encoderContext, encoder, (AVDictionary) null));
-                check(avcodec_parameters_from_context(outStream.codecpar(), encoderContext));
-
+                /* must be set before opening, or the encoder never emits the extradata */
                 if ((outputFormatContext.oformat().flags() & AVFMT_GLOBALHEADER) == AVFMT_GLOBALHEADER) {
                     encoderContext.flags(encoderContext.flags() | CODEC_FLAG_GLOBAL_HEADER);
                 }
 
+                /* Third parameter can be used to pass settings to encoder */
+                encoderThreading.apply(encoderContext, i);
+                check(avcodec_open2(encoderContext, encoder, (AVDictionary) null));
+                System.err.println(String.format("Stream #%d encoder %s: %s", i,
+                        encoder.name().getString(), CodecThreading.describe(encoderContext)));
+                check(avcodec_parameters_from_context(outStream.codecpar(), encoderContext));
+
                 outStream.time_base(encoderContext.time_base());
                 streamContexts[i].encoderContext = encoderContext;
             } else {
@@ -129,6 +353,7 @@ public class Transcoding {
                 } else {
                     /* if this stream must be remuxed */
                     check(avcodec_parameters_copy(outStream.codecpar(), inStream.codecpar()));
+                    outStream.codecpar().codec_tag(0);  /* let the muxer pick the tag for its container */
                     outStream.time_base(inStream.time_base());
                 }
             }
@@ -136,19 +361,98 @@ public class Transcoding {
         
         av_dump_format(outputFormatContext, 0, fileName, 1);
 
-        if ((outputFormatContext.flags() & AVFMT_NOFILE) != AVFMT_NOFILE) {
-            AVIOContext c = new AVIOContext();
-            check(avio_open(c, fileName, AVIO_FLAG_WRITE));
-            outputFormatContext.pb(c);
-        }
+        outputIO = openOutputIO(outputFormatContext, fileName, sink);
 
         /* init muxer, write output file header */
         check(avformat_write_header(outputFormatContext, (AVDictionary) null));
+
+        /* the muxer may have changed the stream time bases */
+        for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
+            StreamContext streamContext = streamContexts[i];
+
+            if (streamContext.outputIndex < 0) {
+                continue;
+            }
+            streamContext.type = inputFormatContext.streams(i).codecpar().codec_type();
+            streamContext.inputTimeBase = inputFormatContext.streams(i).time_base();
+            streamContext.decoderTimeBase = streamContext.decoderContext.time_base();
+            streamContext.outputTimeBase = outputFormatContext.streams(streamContext.outputIndex).time_base();
+            streamContext.outputOffset = av_rescale_q(timestampOffset - (clip.hasStart() ? clip.start : 0),
+                    av_make_q(1, AV_TIME_BASE), streamContext.outputTimeBase);
+            streamContext.frameStart = clip.start(streamContext.decoderTimeBase);
+            streamContext.frameEnd = clip.end(streamContext.decoderTimeBase);
+            streamContext.packetStart = clip.start(streamContext.inputTimeBase);
+            streamContext.packetEnd = clip.end(streamContext.inputTimeBase);
+            if (streamContext.encoderContext != null) {
+                streamContext.encoderTimeBase = streamContext.encoderContext.time_base();
+            }
+        }
         return outputFormatContext;
     }
 
-    static void initFilter(FilteringContext filteringContext, AVCodecContext decoderContext,
-                           AVCodecContext encoderContext, String filterSpec) {
+    /*
+     * Give an output context its I/O, see AVIOOutput.open: local files are written by a BackgroundFileSink,
+     * other protocols through avio_open. Returns the AVIOOutput to close afterwards, null when there is none
+     */
+    static AVIOOutput openOutputIO(AVFormatContext outputFormatContext, String fileName, AVIOSink sink) {
+        try {
+            return AVIOOutput.open(outputFormatContext, fileName, sink);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open output file " + fileName, e);
+        }
+    }
+
+    /* Close the I/O opened by openOutputIO and free the output context */
+    static void closeOutput(AVFormatContext outputFormatContext, AVIOOutput io) throws IOException {
+        if (io != null) {
+            io.close();
+        } else if ((outputFormatContext.oformat().flags() & AVFMT_NOFILE) != AVFMT_NOFILE) {
+            avio_closep(outputFormatContext.pb());
+        }
+        avformat_free_context(outputFormatContext);
+    }
+
+    void initFilter(FilteringContext filteringContext, AVCodecContext decoderContext,
+                    AVCodecContext encoderContext, String filterSpec) {
+        String args;
+        String sinkArgs;
+
+        if (decoderContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
+            args = String.format("video_size=%dx%d:pix_fmt=%d:time_base=%d/%d:pixel_aspect=%d/%d",
+                    decoderContext.width(), decoderContext.height(), decoderContext.pix_fmt(),
+                    decoderContext.time_base().num(), decoderContext.time_base().den(),
+                    decoderContext.sample_aspect_ratio().num(), decoderContext.sample_aspect_ratio().den());
+            sinkArgs = "pix_fmts=" + encoderContext.pix_fmt();
+        } else if (decoderContext.codec_type() == AVMEDIA_TYPE_AUDIO) {
+            if (decoderContext.channel_layout() == 0) {
+                decoderContext.channel_layout(av_get_default_channel_layout(decoderContext.channels()));
+            }
+
+            String chLayout;
+
+            try (BytePointer name = new BytePointer(100)) {
+                av_get_channel_layout_string(name, 100, decoderContext.channels(), decoderContext.channel_layout());
+                chLayout = name.getString().substring(0, (int) BytePointer.strlen(name));
+            }
+            args = String.format("time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=%s",
+                    decoderContext.time_base().num(), decoderContext.time_base().den(), decoderContext.sample_rate(),
+                    av_get_sample_fmt_name(decoderContext.sample_fmt()).getString(), chLayout);
+            sinkArgs = String.format("sample_fmts=%d:channel_layouts=0x%x:sample_rates=%d:frame_size=%d",
+                    encoderContext.sample_fmt(), encoderContext.channel_layout(), encoderContext.sample_rate(),
+                    fixedFrameSize(encoderContext));
+        } else {
+            throw new RuntimeException();
+        }
+
+        /* Reuse an idle graph built for the same spec and parameters */
+        String key = FilterGraphPool.key(filterSpec, args, sinkArgs);
+        FilterGraphPool.Graph pooled = FilterGraphPool.shared().acquire(key);
+
+        if (pooled != null) {
+            setGraph(filteringContext, pooled, encoderContext);
+            return;
+        }
+
         AVFilterInOut outputs = avfilter_inout_alloc();
         AVFilterInOut inputs = avfilter_inout_alloc();
         AVFilterGraph filterGraph = avfilter_graph_alloc();
@@ -161,52 +465,32 @@ public class Transcoding {
             if (decoderContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
                 buffersrc = avfilter_get_by_name("buffer");
                 buffersink = avfilter_get_by_name("buffersink");
-                String args = String.format("video_size=%dx%d:pix_fmt=%d:time_base=%d/%d:pixel_aspect=%d/%d",
-                        decoderContext.width(), decoderContext.height(), decoderContext.pix_fmt(),
-                        decoderContext.time_base().num(), decoderContext.time_base().den(),
-                        decoderContext.sample_aspect_ratio().num(), decoderContext.sample_aspect_ratio().den());
 
                 check(avfilter_graph_create_filter(buffersrcContext, buffersrc, "in", args, null, filterGraph));
                 check(avfilter_graph_create_filter(buffersinkContext, buffersink, "out", null, null, filterGraph));
 
-                BytePointer pixFmt = new BytePointer(4).putInt(encoderContext.pix_fmt());
-
-                check(av_opt_set_bin(buffersinkContext, "pix_fmts", pixFmt, 4, AV_OPT_SEARCH_CHILDREN));
+                /* av_opt_set_bin copies the option, so the blobs are freed right away instead of by the GC */
+                try (BytePointer pixFmt = new BytePointer(4).putInt(encoderContext.pix_fmt())) {
+                    check(av_opt_set_bin(buffersinkContext, "pix_fmts", pixFmt, 4, AV_OPT_SEARCH_CHILDREN));
+                }
             } else {
                 if (decoderContext.codec_type() == AVMEDIA_TYPE_AUDIO) {
                     buffersrc = avfilter_get_by_name("abuffer");
                     buffersink = avfilter_get_by_name("abuffersink");
 
-                    if (decoderContext.channel_layout() == 0) {
-                        decoderContext.channel_layout(av_get_default_channel_layout(decoderContext.channels()));
-                    }
-
-                    BytePointer name = new BytePointer(100);
-
-                    av_get_channel_layout_string(name, 100, decoderContext.channels(), decoderContext.channel_layout());
-
-                    String chLayout = name.getString().substring(0, (int) BytePointer.strlen(name));
-                    String args = String.format("time_base=%d/%d:sample_rate=%d:sample_fmt=%s:channel_layout=%s",
-                            decoderContext.time_base().num(), decoderContext.time_base().den(), decoderContext.sample_rate(),
-                            av_get_sample_fmt_name(decoderContext.sample_fmt()).getString(), chLayout);
-
                     check(avfilter_graph_create_filter(buffersrcContext, buffersrc, "in", args, null, filterGraph));
                     check(avfilter_graph_create_filter(buffersinkContext, buffersink, "out", null, null, filterGraph));
 
-                    BytePointer smplFmt = new BytePointer(4).putInt(encoderContext.sample_fmt());
-
-                    check(av_opt_set_bin(buffersinkContext, "sample_fmts", smplFmt, 4,
-                            AV_OPT_SEARCH_CHILDREN));
-
-                    BytePointer chL = new BytePointer(8).putLong(encoderContext.channel_layout());
-
-                    check(av_opt_set_bin(buffersinkContext, "channel_layouts", chL, 8,
-                            AV_OPT_SEARCH_CHILDREN));
-
-                    BytePointer sr = new BytePointer(8).putLong(encoderContext.sample_rate());
-
-                    check(av_opt_set_bin(buffersinkContext, "sample_rates", sr, 8,
-                            AV_OPT_SEARCH_CHILDREN));
+                    try (BytePointer smplFmt = new BytePointer(4).putInt(encoderContext.sample_fmt());
+                            BytePointer chL = new BytePointer(8).putLong(encoderContext.channel_layout());
+                            BytePointer sr = new BytePointer(8).putLong(encoderContext.sample_rate())) {
+                        check(av_opt_set_bin(buffersinkContext, "sample_fmts", smplFmt, 4,
+                                AV_OPT_SEARCH_CHILDREN));
+                        check(av_opt_set_bin(buffersinkContext, "channel_layouts", chL, 8,
+                                AV_OPT_SEARCH_CHILDREN));
+                        check(av_opt_set_bin(buffersinkContext, "sample_rates", sr, 8,
+                                AV_OPT_SEARCH_CHILDREN));
+                    }
                 } else {
                     throw new RuntimeException();
                 }
@@ -226,101 +510,228 @@ public class Transcoding {
             check(avfilter_graph_parse_ptr(filterGraph, filterSpec, inputs, outputs, null));
             check(avfilter_graph_config(filterGraph, null));
 
+            if (fixedFrameSize(encoderContext) > 0) {
+                av_buffersink_set_frame_size(buffersinkContext, fixedFrameSize(encoderContext));
+            }
+
             /* Fill FilteringContext */
-            filteringContext.bufferSourceContext = buffersrcContext;
-            filteringContext.bufferSinkContext = buffersinkContext;
-            filteringContext.filterGraph = filterGraph;
+            setGraph(filteringContext, new FilterGraphPool.Graph(key, filterGraph, buffersrcContext, buffersinkContext),
+                    encoderContext);
         } finally {
             avfilter_inout_free(inputs);
             avfilter_inout_free(outputs);
         }
     }
 
-    static void initFilters() {
+    /* Samples per frame for audio encoders that only take whole frames of one size, e.g. ac3, 0 otherwise */
+    static int fixedFrameSize(AVCodecContext encoderContext) {
+        if (encoderContext.codec_type() != AVMEDIA_TYPE_AUDIO
+                || (encoderContext.codec().capabilities() & AV_CODEC_CAP_VARIABLE_FRAME_SIZE) != 0) {
+            return 0;
+        }
+        return encoderContext.frame_size();
+    }
+
+    static void setGraph(FilteringContext filteringContext, FilterGraphPool.Graph graph, AVCodecContext encoderContext) {
+        filteringContext.pooled = graph;
+        filteringContext.bufferSourceContext = graph.source;
+        filteringContext.bufferSinkContext = graph.sink;
+        filteringContext.filterGraph = graph.graph;
+        /* a sink cutting fixed size frames holds the samples of the last, partial one */
+        filteringContext.stateless = FilterGraphPool.isStateless(graph.graph) && fixedFrameSize(encoderContext) == 0;
+        filteringContext.sinkTimeBase = av_buffersink_get_time_base(graph.sink);
+    }
+
+    /* Give the graph back to the pool if it can be reused, free it otherwise */
+    static void releaseFilter(FilteringContext filteringContext) {
+        if (filteringContext.stateless && !filteringContext.eofSent) {
+            FilterGraphPool.shared().release(filteringContext.pooled);
+        } else {
+            FilterGraphPool.shared().discard(filteringContext.pooled);
+        }
+        filteringContext.filterGraph = null;
+    }
+
+    void initFilters() {
         filteringContexts = new FilteringContext[inputFormatContext.nb_streams()];
 
         for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
             String filterSpec = null;
 
-            if (!(inputFormatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO
-                    || inputFormatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO)) {
+            if (streamContexts[i].outputIndex < 0 || streamContexts[i].copy) {
                 continue;
             }
 
             filteringContexts[i] = new FilteringContext();
 
             if (inputFormatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-                filterSpec = "null"; /* passthrough (dummy) filter for video */
+                filterSpec = videoFilter; /* "null", passthrough (dummy) filter for video, by default */
             } else {
-                filterSpec = "anull"; /* passthrough (dummy) filter for audio */
+                filterSpec = audioFilter; /* "anull", passthrough (dummy) filter for audio, by default */
             }
 
             initFilter(filteringContexts[i], streamContexts[i].decoderContext, streamContexts[i].encoderContext, filterSpec);
         }
     }
 
-    static boolean encodeWriteFrame(AVFrame filterFrame, int streamIndex) {
-        AVPacket encodedPacket = new AVPacket();
+    boolean encodeWriteFrame(AVFrame filterFrame, int streamIndex) {
+        StreamContext streamContext = streamContexts[streamIndex];
+        AVPacket encodedPacket = streamContext.encodedPacket;
+        int[] gotFrameLocal = streamContext.gotPacket;
+
         /* encode filtered frame */
+        av_init_packet(encodedPacket);
         encodedPacket.data(null);
         encodedPacket.size(0);
 
-        av_init_packet(encodedPacket);
-
-        int[] gotFrameLocal = new int[1];
+        long start = StageMetrics.start();
 
-        if (inputFormatContext.streams(streamIndex).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-            check(avcodec_encode_video2(streamContexts[streamIndex].encoderContext, encodedPacket, filterFrame, gotFrameLocal));
+        if (streamContext.type == AVMEDIA_TYPE_VIDEO) {
+            check(avcodec_encode_video2(streamContext.encoderContext, encodedPacket, filterFrame, gotFrameLocal));
         } else {
-            check(avcodec_encode_audio2(streamContexts[streamIndex].encoderContext, encodedPacket, filterFrame, gotFrameLocal));
+            check(avcodec_encode_audio2(streamContext.encoderContext, encodedPacket, filterFrame, gotFrameLocal));
         }
+        ENCODE.record(start, gotFrameLocal[0], gotFrameLocal[0] != 0 ? encodedPacket.size() : 0,
+                filterFrame != null && streamContext.type == AVMEDIA_TYPE_AUDIO ? filterFrame.nb_samples() : 0);
 
-        av_frame_free(filterFrame);
+        if (filterFrame != null) {
+            framePool.release(filterFrame);
+        }
 
         if (gotFrameLocal[0] == 0) {
             return false;
         }
 
         /* prepare packet for muxing */
-        encodedPacket.stream_index(streamIndex);
+        encodedPacket.stream_index(streamContext.outputIndex);
 
-        av_packet_rescale_ts(encodedPacket, streamContexts[streamIndex].encoderContext.time_base(),
-                outputFormatContext.streams(streamIndex).time_base());
+        av_packet_rescale_ts(encodedPacket, streamContext.encoderTimeBase, streamContext.outputTimeBase);
+        offsetTimestamps(encodedPacket, streamContext.outputOffset);
 
         /* mux encoded frame */
-        check(av_interleaved_write_frame(outputFormatContext, encodedPacket));
+        writePacket(encodedPacket);
 
         return true;
     }
 
-    static void filterEncodeWriteFrame(AVFrame frame, int streamIndex) {
+    static void offsetTimestamps(AVPacket packet, long offset) {
+        if (packet.pts() != AV_NOPTS_VALUE) {
+            packet.pts(packet.pts() + offset);
+        }
+        if (packet.dts() != AV_NOPTS_VALUE) {
+            packet.dts(packet.dts() + offset);
+        }
+    }
+
+    /* hand a packet to the mux stage, which interleaves the streams by DTS */
+    void writePacket(AVPacket packet) {
+        try {
+            muxer.submit(packet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing a packet for the muxer", e);
+        }
+    }
+
+    boolean decodeFilterEncode(AVPacket packet, int streamIndex) {
+        StreamContext streamContext = streamContexts[streamIndex];
+        int[] gotFrame = streamContext.gotFrame;
+        AVFrame frame = framePool.acquire();
+
+        try {
+            /* leaves the flush packet's unset timestamps alone */
+            av_packet_rescale_ts(packet, streamContext.inputTimeBase, streamContext.decoderTimeBase);
+
+            long start = StageMetrics.start();
+
+            if (streamContext.type == AVMEDIA_TYPE_VIDEO) {
+                check(avcodec_decode_video2(streamContext.decoderContext, frame, gotFrame, packet));
+            } else {
+                check(avcodec_decode_audio4(streamContext.decoderContext, frame, gotFrame, packet));
+            }
+            DECODE.record(start, gotFrame[0], packet.size(),
+                    gotFrame[0] != 0 && streamContext.type == AVMEDIA_TYPE_AUDIO ? frame.nb_samples() : 0);
+            if (gotFrame[0] != 0) {
+                frame.pts(frame.best_effort_timestamp());
+
+                /* the pre-roll from the keyframe before the clip start is decoded, but not kept */
+                if (frame.pts() == AV_NOPTS_VALUE
+                        || (frame.pts() >= streamContext.frameStart && frame.pts() < streamContext.frameEnd)) {
+                    filterEncodeWriteFrame(frame, streamIndex);
+                }
+            }
+        } finally {
+            framePool.release(frame);
+        }
+        return gotFrame[0] != 0;
+    }
+
+    /* drain the decoder, then flush filter and encoder */
+    void flushStream(int streamIndex) {
+        try (AVPacket flush = new AVPacket()) {
+            av_init_packet(flush);
+            flush.data(null);
+            flush.size(0);
+
+            /* decoders hold back frames, e.g. one per extra thread with frame threading */
+            while (decodeFilterEncode(flush, streamIndex)) ;
+        }
+
+        /* flush filter, unless it holds nothing to flush and can be reused as is */
+        if (!filteringContexts[streamIndex].stateless) {
+            filteringContexts[streamIndex].eofSent = true;
+            filterEncodeWriteFrame(null, streamIndex);
+        }
+        /* flush encoder */
+        flushEncoder(streamIndex);
+    }
+
+    void filterEncodeWriteFrame(AVFrame frame, int streamIndex) {
+        /* one filter call is the push and the pulls, not the encoding in between */
+        long start = StageMetrics.start();
+        long frames = 0;
+        long samples = 0;
+
         /* push the decoded frame into the filtergraph */
         check(av_buffersrc_add_frame_flags(filteringContexts[streamIndex].bufferSourceContext,
                 frame, 0));
+        long elapsed = StageMetrics.since(start);
 
         /* pull filtered frames from the filtergraph */
         while (true) {
-            AVFrame filterFrame = av_frame_alloc();
+            AVFrame filterFrame = framePool.acquire();
 
+            start = StageMetrics.start();
             int ret = av_buffersink_get_frame(filteringContexts[streamIndex].bufferSinkContext, filterFrame);
+            elapsed += StageMetrics.since(start);
 
             /* if no more frames for output - returns AVERROR(EAGAIN)
              * if flushed and no more frames for output - returns AVERROR_EOF
              * rewrite retcode to 0 to show it as normal procedure completion
              */
             if (ret == AVERROR_EOF() || ret == AVERROR_EAGAIN()) {
-                av_frame_free(filterFrame);
+                framePool.release(filterFrame);
+                FILTER.add(elapsed, frames, 0, samples);
                 return;
             }
 
             check(ret);
 
+            frames++;
+            samples += filterFrame.nb_samples();
             filterFrame.pict_type(AV_PICTURE_TYPE_NONE);
+
+            /* frames leave the graph in its sink's time base, e.g. 1/50 for 25 fps h264,
+             * while the encoder counts in 1/framerate */
+            if (filterFrame.pts() != AV_NOPTS_VALUE) {
+                filterFrame.pts(av_rescale_q(filterFrame.pts(), filteringContexts[streamIndex].sinkTimeBase,
+                        streamContexts[streamIndex].encoderTimeBase));
+            }
             encodeWriteFrame(filterFrame, streamIndex);
         }
     }
 
-    static void flushEncoder(int streamIndex) {
+    void flushEncoder(int streamIndex) {
         if ((streamContexts[streamIndex].encoderContext.codec().capabilities() & AV_CODEC_CAP_DELAY)
                 != AV_CODEC_CAP_DELAY) {
             return;
@@ -329,96 +740,425 @@ public class Transcoding {
         while (encodeWriteFrame(null, streamIndex)) ;
     }
 
-    public static void main(String[] args) throws IOException {
-        if (args.length < 2) {
-            System.out.println("Usage:Transcoding <input> <output>");
-            System.exit(-1);
+    /*
+     * Only transcode the frames of streamIndex from the keyframe at startPts up to, not including,
+     * the keyframe at endPts. AV_NOPTS_VALUE leaves that end open. Timestamps are kept as they are,
+     * so the segments of a file line up again when muxed one after the other.
+     *
+     * With open GOPs, the frames that follow the end keyframe in decode order but show before it
+     * (leading B-frames) reference this segment's last frames, so they belong to this segment: the
+     * end keyframe is decoded as their reference, and only frames before endPts are kept.
+     */
+    void limitToSegment(int streamIndex, long startPts, long startDts, long endPts) {
+        segmentStream = streamIndex;
+        segmentStart = startPts;
+        segmentStartDts = startDts;
+        segmentEnd = endPts;
+    }
+
+    /*
+     * -1 before the segment's first keyframe, 1 once past the next segment's keyframe and the leading
+     * frames that follow it, 0 inside. ending is whether that keyframe has been read
+     */
+    int segmentPosition(AVPacket packet, boolean started, boolean ending) {
+        long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+        boolean key = (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+
+        if (ending && (key || pts >= segmentEnd)) {
+            return 1;
+        }
+        if (segmentStart == AV_NOPTS_VALUE) {
+            return 0;
         }
+        /* leading frames of an open GOP refer to the previous segment, which transcodes them */
+        return (started || key) && pts >= segmentStart ? 0 : -1;
+    }
 
-        // Register all formats and codecs
-        av_register_all();
-        avfilter_register_all();
+    /* Whether packet is the next segment's keyframe */
+    boolean isSegmentEnd(AVPacket packet) {
+        long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
 
-        openInput(args[0]);
-        openOutput(args[1]);
+        return segmentEnd != AV_NOPTS_VALUE && (packet.flags() & AV_PKT_FLAG_KEY) != 0 && pts >= segmentEnd;
+    }
 
-        initFilters();
+    /*
+     * 1 once the packet is past the clip end, -1 for a copied packet before the clip start, 0 otherwise.
+     * Decoded streams get the packets before the start too, as pre-roll for the first frames of the clip
+     */
+    int clipPosition(AVPacket packet, int streamIndex) {
+        StreamContext streamContext = streamContexts[streamIndex];
+        long dts = packet.dts() != AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+        long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+
+        if (dts != AV_NOPTS_VALUE && dts >= streamContext.packetEnd) {
+            return 1;
+        }
+        if (workers[streamIndex] == null && pts != AV_NOPTS_VALUE && pts < streamContext.packetStart) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /*
+     * Run the pipeline: this thread demuxes and hands each packet to its stream's
+     * worker (or straight to the muxer for copied streams), the workers decode,
+     * filter and encode concurrently, and one mux thread writes the output.
+     */
+    void transcode() {
+        int nbStreams = inputFormatContext.nb_streams();
+        int producers = 1; /* the demuxer, for copied streams */
+        AVPacket packet = new AVPacket();
+        boolean segmentStarted = segmentStart == AV_NOPTS_VALUE;
+        boolean segmentEnding = false;  /* the next segment's keyframe has been read */
+        boolean[] pastClip = new boolean[nbStreams];
+        int clipStreams = 0;    /* audio and video streams not yet read up to the clip end */
+        Throwable error = null;
+
+        if (segmentStart != AV_NOPTS_VALUE) {
+            check(av_seek_frame(inputFormatContext, segmentStream, segmentStartDts, AVSEEK_FLAG_BACKWARD));
+        }
+        if (segmentEnd != AV_NOPTS_VALUE) {
+            /* the next segment's keyframe is decoded as a reference for leading frames, not kept */
+            StreamContext streamContext = streamContexts[segmentStream];
+            streamContext.frameEnd = Math.min(streamContext.frameEnd,
+                    av_rescale_q(segmentEnd, streamContext.inputTimeBase, streamContext.decoderTimeBase));
+        }
+        check(clip.seek(inputFormatContext));
+        for (int i = 0; clip.hasEnd() && i < nbStreams; i++) {
+            int type = inputFormatContext.streams(i).codecpar().codec_type();
+
+            if (streamContexts[i].outputIndex >= 0 && (type == AVMEDIA_TYPE_VIDEO || type == AVMEDIA_TYPE_AUDIO)) {
+                clipStreams++;
+            }
+        }
+
+        workers = new StreamWorker[nbStreams];
+        for (int i = 0; i < nbStreams; i++) {
+            if (filteringContexts[i] != null && filteringContexts[i].filterGraph != null) {
+                workers[i] = new StreamWorker(i, 32);
+                producers++;
+            }
+        }
+        muxer = new PacketMuxer(outputFormatContext, producers, 64, packetPool);
+        muxer.start();
+        for (StreamWorker worker : workers) {
+            if (worker != null) {
+                worker.thread.start();
+            }
+        }
 
         try {
-            int[] gotFrame = new int[1];
-            AVPacket packet = new AVPacket();
-            
             /* read all packets */
-            while (av_read_frame(inputFormatContext, packet) >= 0) {
+            for (long start = StageMetrics.start(); av_read_frame(inputFormatContext, packet) >= 0;
+                    start = StageMetrics.start()) {
+                READ.record(start, 0, packet.size(), 0);
                 try {
+                    if (cancelled) {
+                        throw new CancellationException("Transcoding cancelled");
+                    }
+                    if (pipelineFailed()) {
+                        /* the error is rethrown below, reading the rest of the input would only waste time */
+                        break;
+                    }
                     int streamIndex = packet.stream_index();
-                    int type = inputFormatContext.streams(streamIndex).codecpar().codec_type();
-
-                    if (filteringContexts[streamIndex].filterGraph != null) {
-                        AVFrame frame = av_frame_alloc();
-
-                        try {
-                            av_packet_rescale_ts(packet, inputFormatContext.streams(streamIndex).time_base(),
-                                    streamContexts[streamIndex].decoderContext.time_base());
-                            
-                            if (type == AVMEDIA_TYPE_VIDEO) {
-                                check(avcodec_decode_video2(streamContexts[streamIndex].decoderContext, frame, gotFrame, packet));
-                            } else {
-                                check(avcodec_decode_audio4(streamContexts[streamIndex].decoderContext, frame, gotFrame, packet));
-                            }
-                            if (gotFrame[0] != 0) {
-                                frame.pts(frame.best_effort_timestamp());
-                                filterEncodeWriteFrame(frame, streamIndex);
+
+                    if (streamContexts[streamIndex].outputIndex < 0 || pastClip[streamIndex]) {
+                        continue;
+                    }
+                    long dts = packet.dts() != AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+
+                    if (dts != AV_NOPTS_VALUE) {
+                        position = av_rescale_q(dts, streamContexts[streamIndex].inputTimeBase, ClipRange.TIME_BASE_Q);
+                        if (startPosition == AV_NOPTS_VALUE) {
+                            startPosition = position;
+                        }
+                    }
+                    if (clip != ClipRange.ALL) {
+                        int inClip = clipPosition(packet, streamIndex);
+
+                        if (inClip > 0) {
+                            /* DTS only grows, so nothing after this is in the clip either */
+                            pastClip[streamIndex] = true;
+                            int type = inputFormatContext.streams(streamIndex).codecpar().codec_type();
+
+                            if ((type == AVMEDIA_TYPE_VIDEO || type == AVMEDIA_TYPE_AUDIO) && --clipStreams == 0) {
+                                break;
                             }
-                        } finally {
-                            av_frame_free(frame);
+                            continue;
+                        }
+                        if (inClip < 0) {
+                            continue;
+                        }
+                    }
+                    if (streamIndex == segmentStream) {
+                        int inSegment = segmentPosition(packet, segmentStarted, segmentEnding);
+
+                        if (inSegment > 0) {
+                            break;
                         }
+                        if (inSegment < 0) {
+                            continue;
+                        }
+                        segmentStarted = true;
+                        segmentEnding = segmentEnding || isSegmentEnd(packet);
+                    }
+                    if (workers[streamIndex] != null) {
+                        workers[streamIndex].submit(packet);
                     } else {
                         /* remux this frame without reencoding */
-                        av_packet_rescale_ts(packet, inputFormatContext.streams(streamIndex).time_base(),
-                                outputFormatContext.streams(streamIndex).time_base());
-                        check(av_interleaved_write_frame(outputFormatContext, packet));
+                        av_packet_rescale_ts(packet, streamContexts[streamIndex].inputTimeBase,
+                                streamContexts[streamIndex].outputTimeBase);
+                        packet.stream_index(streamContexts[streamIndex].outputIndex);
+                        offsetTimestamps(packet, streamContexts[streamIndex].outputOffset);
+                        muxer.submit(packet);
                     }
                 } finally {
                     av_packet_unref(packet);
                 }
             }
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            /* let every stage finish, even after an error, so no thread is left blocked */
+            try {
+                for (StreamWorker worker : workers) {
+                    if (worker != null) {
+                        worker.packets.put(END_OF_STREAM);
+                    }
+                }
+                muxer.finish();
 
-            /* flush filters and encoders */
-            for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
-                /* flush filter */
-                if (filteringContexts[i].filterGraph == null) {
-                    continue;
+                for (StreamWorker worker : workers) {
+                    if (worker != null) {
+                        worker.thread.join();
+                        if (error == null) {
+                            error = worker.error;
+                        }
+                    }
                 }
+                muxer.join();
+            } catch (Throwable t) {
+                if (error == null) {
+                    error = t;
+                }
+            }
+            packet.close();
+        }
 
-                filterEncodeWriteFrame(null, i);
-                /* flush encoder */
-                flushEncoder(i);
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new RuntimeException("Transcoding failed", error);
+        }
+    }
+
+    /* A stream worker or the muxer has failed */
+    boolean pipelineFailed() {
+        if (muxer.failed()) {
+            return true;
+        }
+        for (StreamWorker worker : workers) {
+            if (worker != null && worker.error != null) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            av_write_trailer(outputFormatContext);
+    /* Codec and filter choices, for setting up further instances the same way */
+    void copyOptions(Transcoding to) {
+        to.videoEncoder = videoEncoder;
+        to.audioEncoder = audioEncoder;
+        to.videoFilter = videoFilter;
+        to.audioFilter = audioFilter;
+        to.reencode = reencode;
+    }
 
+    /* Transcode input, "-" for stdin, into output and free everything afterwards */
+    void run(String input, String output) throws IOException {
+        inputName = input;
+        outputName = output;
+        try {
+            run();
         } finally {
-            for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
-                avcodec_free_context(streamContexts[i].decoderContext);
+            close();
+        }
+    }
 
-                if (outputFormatContext != null && outputFormatContext.nb_streams() > 0 &&
-                        outputFormatContext.streams(i) != null && streamContexts[i].encoderContext != null) {
-                    avcodec_free_context(streamContexts[i].encoderContext);
-                }
+    @Override
+    public void open() throws IOException {
+        if (inputName.equals("-")) {
+            /* read from stdin, made seekable by a page cache */
+            openInput(new CachedStreamSource(System.in), "pipe:");
+        } else {
+            openInput(inputName);
+        }
+        openOutput(outputName);
 
-                if (filteringContexts != null && filteringContexts[i].filterGraph != null) {
-                    avfilter_graph_free(filteringContexts[i].filterGraph);
-                }
+        initFilters();
+        opened = true;
+    }
+
+    @Override
+    public void run() throws IOException {
+        if (!opened) {
+            open();
+        }
+        transcode();
+        check(av_write_trailer(outputFormatContext));
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public long duration() {
+        long start = startPosition;
+
+        return start != AV_NOPTS_VALUE ? Math.max(0, position - start) : 0;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; inputFormatContext != null && streamContexts != null && i < streamContexts.length; i++) {
+            if (streamContexts[i].decoderContext != null) {
+                avcodec_free_context(streamContexts[i].decoderContext);
+            }
+            if (streamContexts[i].encoderContext != null) {
+                avcodec_free_context(streamContexts[i].encoderContext);
             }
+            streamContexts[i].encodedPacket.close();
+            if (filteringContexts != null && filteringContexts[i] != null && filteringContexts[i].filterGraph != null) {
+                releaseFilter(filteringContexts[i]);
+            }
+        }
 
+        if (inputFormatContext != null) {
             avformat_close_input(inputFormatContext);
-            
-            if (outputFormatContext != null && (outputFormatContext.oformat().flags() & AVFMT_NOFILE) != AVFMT_NOFILE) {
-                avio_closep(outputFormatContext.pb());
+        }
+
+        if (inputIO != null) {
+            inputIO.close();
+        }
+
+        if (outputFormatContext != null) {
+            closeOutput(outputFormatContext, outputIO);
+        }
+        inputFormatContext = null;
+        outputFormatContext = null;
+        inputIO = null;
+        outputIO = null;
+        opened = false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String decThreads = "auto";
+        String encThreads = "auto";
+        String threadType = "both";
+        int jobs = 1;
+        int segments = 1;
+        String ladder = null;
+        String clipStart = null;
+        String clipEnd = null;
+        Transcoding options = new Transcoding();
+        int argi = 0;
+
+        for (; argi < args.length - 2 && args[argi].startsWith("--"); argi++) {
+            switch (args[argi]) {
+                case "--dec-threads":
+                    decThreads = args[++argi];
+                    break;
+                case "--enc-threads":
+                    encThreads = args[++argi];
+                    break;
+                case "--thread-type":
+                    threadType = args[++argi];
+                    break;
+                case "--jobs":
+                    /* transcodes sharing the machine, "auto" thread counts are divided by this */
+                    jobs = Integer.parseInt(args[++argi]);
+                    break;
+                case "--segments":
+                    segments = Integer.parseInt(args[++argi]);
+                    break;
+                case "--ladder":
+                    /* name:WxH:bitrate,... and an output name with %s for the rendition */
+                    ladder = args[++argi];
+                    break;
+                case "--ss":
+                    clipStart = args[++argi];
+                    break;
+                case "--to":
+                    clipEnd = args[++argi];
+                    break;
+                case "--vcodec":
+                    options.videoEncoder = args[++argi];
+                    break;
+                case "--acodec":
+                    options.audioEncoder = args[++argi];
+                    break;
+                case "--vf":
+                    options.videoFilter = args[++argi];
+                    break;
+                case "--af":
+                    options.audioFilter = args[++argi];
+                    break;
+                case "--reencode":
+                    options.reencode = true;
+                    break;
+                default:
+                    argi = args.length;
             }
-            
-            avformat_free_context(outputFormatContext);
+        }
+        args = Arrays.copyOfRange(args, Math.min(argi, args.length), args.length);
+
+        if (args.length != 2 || (segments > 1 && args[0].equals("-")) || (ladder != null && !args[1].contains("%s"))
+                || ((clipStart != null || clipEnd != null) && (segments > 1 || ladder != null))) {
+            System.out.println("Usage:Transcoding [--dec-threads N|auto|stream:N,...] [--enc-threads N|auto|stream:N,...]"
+                    + " [--thread-type frame|slice|both] [--jobs N] [--segments N] [--vcodec encoder] [--acodec encoder]"
+                    + " [--vf filters] [--af filters] [--reencode] [--ss time] [--to time] <input|-> <output>");
+            System.out.println("      Transcoding [--dec-threads ...] [--enc-threads ...] [--vcodec encoder]"
+                    + " --ladder name:WxH:bitrate[,...] <input> <output with %s>");
+            System.out.println("Streams that would come out unchanged are copied, unless --reencode is given");
+            System.out.println("--segments needs a seekable input file; --ss/--to don't combine with --segments or --ladder");
+            System.exit(-1);
+        }
+
+        // Register all formats and codecs
+        av_register_all();
+        avfilter_register_all();
+
+        try {
+            if (ladder != null) {
+                try (LadderTranscode transcode = new LadderTranscode(args[0], args[1],
+                        LadderTranscode.Rendition.parse(ladder))) {
+                    transcode.videoEncoder = options.videoEncoder;
+                    transcode.decoderThreading = new CodecThreading(decThreads, threadType, jobs);
+                    transcode.encoderThreading = new CodecThreading(encThreads, threadType, jobs);
+                    transcode.run();
+                }
+            } else if (segments > 1) {
+                new SegmentedTranscode(args[0], args[1], segments, decThreads, encThreads, threadType, jobs,
+                        options::copyOptions).run();
+            } else {
+                try (Transcoding transcoding = new Transcoding(args[0], args[1])) {
+                    options.copyOptions(transcoding);
+                    transcoding.clip = ClipRange.parse(clipStart, clipEnd);
+                    transcoding.decoderThreading = new CodecThreading(decThreads, threadType, jobs);
+                    transcoding.encoderThreading = new CodecThreading(encThreads, threadType, jobs);
+                    transcoding.run();
+                }
+            }
+        } finally {
+            System.err.println("Frame pool: " + framePool + "; packet pool: " + packetPool);
         }
     }
 }
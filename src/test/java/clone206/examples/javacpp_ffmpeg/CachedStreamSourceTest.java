@@ -0,0 +1,142 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CachedStreamSourceTest {
+    static final int PAGE = 16;
+
+    /* 10 full pages and a short one */
+    static final byte[] DATA = new byte[10 * PAGE + 5];
+
+    static {
+        for (int i = 0; i < DATA.length; i++) {
+            DATA[i] = (byte) (i * 31);
+        }
+    }
+
+    /* Serves DATA from any offset and remembers where it was opened */
+    static class Opener implements CachedStreamSource.Opener {
+        final List<Long> opens = new ArrayList<>();
+
+        @Override
+        public InputStream open (long offset) {
+            opens.add(offset);
+            return new ByteArrayInputStream(DATA, (int) offset, DATA.length - (int) offset);
+        }
+    }
+
+    /* Reads len bytes from position, in reads of at most 7 bytes so they straddle pages */
+    static byte[] read (CachedStreamSource source, long position, int len) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer dst            = ByteBuffer.allocate(7);
+
+        source.position(position);
+        while (out.size() < len) {
+            dst.clear().limit(Math.min(7, len - out.size()));
+            if (source.read(dst) < 0) {
+                break;
+            }
+            dst.flip();
+            out.write(dst.array(), 0, dst.limit());
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsThroughAndFindsTheEnd () throws IOException {
+        try (CachedStreamSource source = new CachedStreamSource(new ByteArrayInputStream(DATA), PAGE, 4)) {
+            assertArrayEquals(DATA, read(source, 0, DATA.length + 100));
+            assertEquals(DATA.length, source.size());
+            assertEquals(-1, source.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void shortSeekBackIsServedFromTheCache () throws IOException {
+        Opener opener = new Opener();
+
+        try (CachedStreamSource source = new CachedStreamSource(opener, DATA.length, PAGE, 4)) {
+            read(source, 0, 6 * PAGE);
+            assertArrayEquals(Arrays.copyOfRange(DATA, 3 * PAGE + 2, 5 * PAGE), read(source, 3 * PAGE + 2, 2 * PAGE - 2));
+            assertEquals(Arrays.asList(0L), opener.opens);
+        }
+    }
+
+    @Test
+    public void evictedPagesAreReadAgainFromTheirOffset () throws IOException {
+        Opener opener = new Opener();
+
+        try (CachedStreamSource source = new CachedStreamSource(opener, DATA.length, PAGE, 2)) {
+            assertArrayEquals(DATA, read(source, 0, DATA.length));
+
+            /* page 1 was evicted long ago, the stream restarts at its first byte */
+            assertArrayEquals(Arrays.copyOfRange(DATA, PAGE + 3, 4 * PAGE), read(source, PAGE + 3, 3 * PAGE - 3));
+            assertEquals(Arrays.asList(0L, (long) PAGE), opener.opens);
+
+            /* and the pages read then are cached again */
+            assertArrayEquals(Arrays.copyOfRange(DATA, 3 * PAGE, 4 * PAGE), read(source, 3 * PAGE, PAGE));
+            assertEquals(2, opener.opens.size());
+        }
+    }
+
+    @Test
+    public void pagesStillCachedAreReadOverAfterAReopen () throws IOException {
+        Opener opener = new Opener();
+
+        try (CachedStreamSource source = new CachedStreamSource(opener, DATA.length, PAGE, 5)) {
+            read(source, 0, 6 * PAGE);
+            read(source, 0, 1);                 // reopens at 0
+            read(source, 3 * PAGE, 2 * PAGE);   // keeps 3 and 4 cached, ahead of the stream
+            read(source, PAGE, 2 * PAGE);
+
+            /* reads through 3 and 4 again to get to 5, replacing their cached copies */
+            assertArrayEquals(Arrays.copyOfRange(DATA, 3 * PAGE, 8 * PAGE), read(source, 3 * PAGE, 5 * PAGE));
+            assertArrayEquals(DATA, read(source, 0, DATA.length));
+        }
+    }
+
+    @Test
+    public void farSeekAheadReopensInsteadOfReadingThrough () throws IOException {
+        Opener opener = new Opener();
+
+        try (CachedStreamSource source = new CachedStreamSource(opener, DATA.length, PAGE, 2)) {
+            read(source, 0, 1);
+            assertArrayEquals(Arrays.copyOfRange(DATA, 9 * PAGE, DATA.length), read(source, 9 * PAGE, DATA.length));
+            assertEquals(Arrays.asList(0L, 9L * PAGE), opener.opens);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void evictedPageWithoutOpenerFails () throws IOException {
+        try (CachedStreamSource source = new CachedStreamSource(new ByteArrayInputStream(DATA), PAGE, 2)) {
+            read(source, 0, DATA.length);
+            read(source, 0, 1);
+        }
+    }
+}
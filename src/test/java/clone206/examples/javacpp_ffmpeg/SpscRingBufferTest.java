@@ -0,0 +1,205 @@
+/* Copyright 2018 Kevin Witmer
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package clone206.examples.javacpp_ffmpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscRingBufferTest {
+    /* Collects what the drain thread writes, optionally held back by a gate or a few bytes at a time */
+    static class Sink implements WritableByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountDownLatch        gate;
+        final int                   max_write;
+        volatile boolean            open  = true;
+
+        Sink (CountDownLatch gate, int max_write) {
+            this.gate      = gate;
+            this.max_write = max_write;
+        }
+
+        @Override
+        public synchronized int write (ByteBuffer src) throws IOException {
+            try {
+                gate.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            int len = Math.min(src.remaining(), max_write);
+
+            for (int i = 0; i < len; i++) {
+                bytes.write(src.get());
+            }
+            return len;
+        }
+
+        synchronized byte[] written () {
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public boolean isOpen () {
+            return open;
+        }
+
+        @Override
+        public void close () {
+            open = false;
+        }
+    }
+
+    static byte[] sequence (int from, int len) {
+        byte[] b = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (from + i);
+        }
+        return b;
+    }
+
+    @Test(timeout = 10000)
+    public void wrapsAroundTheEndOfTheRing () throws IOException {
+        Sink sink           = new Sink(new CountDownLatch(0), Integer.MAX_VALUE);
+        SpscRingBuffer ring = new SpscRingBuffer(sink, 10, SpscRingBuffer.Policy.BLOCK);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 100; i++) {
+            byte[] chunk = sequence(i * 7, 7);
+
+            expected.write(chunk);
+            ring.write(ByteBuffer.wrap(chunk));
+        }
+        ring.close();
+
+        assertArrayEquals(expected.toByteArray(), sink.written());
+    }
+
+    @Test(timeout = 10000)
+    public void blockWaitsForRoom () throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        Sink sink           = new Sink(gate, Integer.MAX_VALUE);
+        SpscRingBuffer ring = new SpscRingBuffer(sink, 16, SpscRingBuffer.Policy.BLOCK);
+        byte[] data         = sequence(0, 64);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer     = new Thread(() -> {
+            try {
+                ring.write(ByteBuffer.wrap(data));
+            }
+            catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        producer.start();
+        producer.join(200);
+        assertTrue("write returned while the ring was full", producer.isAlive());
+
+        gate.countDown();
+        producer.join();
+        ring.close();
+
+        assertNull(failure.get());
+        assertArrayEquals(data, sink.written());
+        assertEquals(0, ring.droppedWrites());
+    }
+
+    @Test(timeout = 10000)
+    public void dropDiscardsWholeWritesThatDontFit () throws IOException {
+        CountDownLatch gate = new CountDownLatch(1);
+        Sink sink           = new Sink(gate, Integer.MAX_VALUE);
+        SpscRingBuffer ring = new SpscRingBuffer(sink, 8, SpscRingBuffer.Policy.DROP);
+        ByteBuffer first    = ByteBuffer.wrap(sequence(0, 8)),
+                   second   = ByteBuffer.wrap(sequence(8, 4));
+
+        assertEquals(8, ring.write(first));
+        assertEquals(4, ring.write(second));
+        assertFalse("a dropped write still counts as consumed", second.hasRemaining());
+        assertEquals(1, ring.droppedWrites());
+        assertEquals(4, ring.droppedBytes());
+
+        gate.countDown();
+        ring.close();
+        assertArrayEquals(sequence(0, 8), sink.written());
+    }
+
+    @Test(timeout = 10000)
+    public void closeDrainsWhatIsPending () throws IOException {
+        Sink sink           = new Sink(new CountDownLatch(0), 3);
+        SpscRingBuffer ring = new SpscRingBuffer(sink, 4096, SpscRingBuffer.Policy.BLOCK);
+        byte[] data         = sequence(0, 3000);
+
+        ring.write(ByteBuffer.wrap(data));
+        ring.close();
+
+        assertArrayEquals(data, sink.written());
+        assertEquals(0, ring.buffered());
+        assertFalse(sink.isOpen());
+        assertFalse(ring.isOpen());
+    }
+
+    /* A drain thread that dies of something other than an IOException mustn't leave the producer parked */
+    @Test(timeout = 10000)
+    public void blockedProducerSeesDrainFailure () {
+        WritableByteChannel broken = new Sink(new CountDownLatch(0), 1) {
+            @Override
+            public synchronized int write (ByteBuffer src) {
+                throw new IllegalStateException("downstream broke");
+            }
+        };
+        SpscRingBuffer ring = new SpscRingBuffer(broken, 16, SpscRingBuffer.Policy.BLOCK);
+
+        try {
+            ring.write(ByteBuffer.wrap(sequence(0, 64)));
+            fail("write should fail once the drain thread is gone");
+        }
+        catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void dropRethrowsDrainFailureOnNextWrite () throws Exception {
+        WritableByteChannel broken = new Sink(new CountDownLatch(0), 1) {
+            @Override
+            public synchronized int write (ByteBuffer src) {
+                throw new IllegalStateException("downstream broke");
+            }
+        };
+        SpscRingBuffer ring = new SpscRingBuffer(broken, 16, SpscRingBuffer.Policy.DROP);
+
+        ring.write(ByteBuffer.wrap(sequence(0, 4)));
+        try {
+            /* the drain fails on the first write; later ones must say so instead of being dropped silently */
+            for (int i = 0; i < 1000; i++) {
+                ring.write(ByteBuffer.wrap(sequence(0, 4)));
+                Thread.sleep(1);
+            }
+            fail("writes kept succeeding after the drain thread failed");
+        }
+        catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}